@@ -0,0 +1,29 @@
+#!/bin/sh
+#Runs a cluster of three relays on loopback, for testing forwarding between relays
+#Relays listen for clients on ports 1259, 1269 and 1279, and for each other on the port above
+#Usage: scripts/local-cluster.sh [extra arguments...]
+
+cd "$(dirname "$0")/.." || exit 1
+
+JAR=build/libs/airmessage-connect.jar
+if [ ! -f "$JAR" ]; then
+	./gradlew shadowJar || exit 1
+fi
+
+PEERS="relay-1=127.0.0.1:1260,relay-2=127.0.0.1:1270,relay-3=127.0.0.1:1280"
+SECRET=$(head -c 32 /dev/urandom | base64)
+PIDS=""
+
+for INDEX in 1 2 3; do
+	PORT=$((1249 + INDEX * 10))
+	DIRECTORY="build/local-cluster/relay-$INDEX"
+	mkdir -p "$DIRECTORY"
+	
+	(cd "$DIRECTORY" && RELAY_ID="relay-$INDEX" PORT=$PORT CLUSTER_PORT=$((PORT + 1)) RELAY_PEERS="$PEERS" CLUSTER_SECRET="$SECRET" \
+		exec java -jar "../../../$JAR" unlinked insecure "$@") &
+	PIDS="$PIDS $!"
+	echo "Started relay-$INDEX on port $PORT (logs in $DIRECTORY/logs)"
+done
+
+trap 'kill $PIDS 2>/dev/null' INT TERM
+wait
@@ -0,0 +1,160 @@
+package me.tagavari.airmessageconnect;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.enums.Opcode;
+import org.java_websocket.enums.ReadyState;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.protocols.IProtocol;
+
+import javax.net.ssl.SSLSession;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/**
+ * A connection that discards everything sent to it, for benchmarking the relay without a network
+ */
+public class NullWebSocket implements WebSocket {
+	private Object attachment;
+	private long sentBytes = 0;
+	
+	/**
+	 * Creates a new connection with client data attached
+	 * @param clientData The client data to attach
+	 */
+	public NullWebSocket(ClientData clientData) {
+		this.attachment = clientData;
+	}
+	
+	/**
+	 * Gets the amount of bytes sent to this connection, so that benchmarks can consume them
+	 * @return The total amount of bytes sent
+	 */
+	public long getSentBytes() {
+		return sentBytes;
+	}
+	
+	@Override
+	public void close(int code, String message) {
+	}
+	
+	@Override
+	public void close(int code) {
+	}
+	
+	@Override
+	public void close() {
+	}
+	
+	@Override
+	public void closeConnection(int code, String message) {
+	}
+	
+	@Override
+	public void send(String text) {
+		sentBytes += text.length();
+	}
+	
+	@Override
+	public void send(ByteBuffer bytes) {
+		sentBytes += bytes.remaining();
+	}
+	
+	@Override
+	public void send(byte[] bytes) {
+		sentBytes += bytes.length;
+	}
+	
+	@Override
+	public void sendFrame(Framedata framedata) {
+	}
+	
+	@Override
+	public void sendFrame(Collection<Framedata> frames) {
+	}
+	
+	@Override
+	public void sendPing() {
+	}
+	
+	@Override
+	public void sendFragmentedFrame(Opcode op, ByteBuffer buffer, boolean fin) {
+	}
+	
+	@Override
+	public boolean hasBufferedData() {
+		return false;
+	}
+	
+	@Override
+	public InetSocketAddress getRemoteSocketAddress() {
+		return null;
+	}
+	
+	@Override
+	public InetSocketAddress getLocalSocketAddress() {
+		return null;
+	}
+	
+	@Override
+	public boolean isOpen() {
+		return true;
+	}
+	
+	@Override
+	public boolean isClosing() {
+		return false;
+	}
+	
+	@Override
+	public boolean isFlushAndClose() {
+		return false;
+	}
+	
+	@Override
+	public boolean isClosed() {
+		return false;
+	}
+	
+	@Override
+	public Draft getDraft() {
+		return null;
+	}
+	
+	@Override
+	public ReadyState getReadyState() {
+		return ReadyState.OPEN;
+	}
+	
+	@Override
+	public String getResourceDescriptor() {
+		return null;
+	}
+	
+	@Override
+	public <T> void setAttachment(T attachment) {
+		this.attachment = attachment;
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> T getAttachment() {
+		return (T) attachment;
+	}
+	
+	@Override
+	public boolean hasSSLSupport() {
+		return false;
+	}
+	
+	@Override
+	public SSLSession getSSLSession() {
+		throw new IllegalArgumentException("Not an SSL connection");
+	}
+	
+	@Override
+	public IProtocol getProtocol() {
+		return null;
+	}
+}
\ No newline at end of file
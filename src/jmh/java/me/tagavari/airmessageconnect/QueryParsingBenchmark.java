@@ -0,0 +1,43 @@
+package me.tagavari.airmessageconnect;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures parsing the query string of a handshake request
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryParsingBenchmark {
+	private String serverQuery;
+	private String clientQuery;
+	private String resumeQuery;
+	
+	@Setup
+	public void setup() {
+		serverQuery = "communications=1&is_server=true&installation_id=4d2a9e1c-7b3f-4a8e-9c1d-2f6b8e0a5c3d&id_token=fake-user";
+		clientQuery = "communications=1&is_server=false&id_token=fake-user&fcm_token=dGhpcyBpcyBhbiBGQ00gdG9rZW4gZm9yIGJlbmNobWFya2luZw%3A%3D";
+		resumeQuery = "communications=1&is_server=false&resume=true&resume_token=AAABjY2Nz4QAAAABZmFrZS11c2Vy.q1Lrj8Xk9mVn3sXo0bY7Yy0w1uKx9PzJc5nHfGk2Ew4";
+	}
+	
+	@Benchmark
+	public Map<String, String> parseServerQuery() {
+		return Server.parseQueryParams(serverQuery);
+	}
+	
+	@Benchmark
+	public Map<String, String> parseClientQuery() {
+		return Server.parseQueryParams(clientQuery);
+	}
+	
+	@Benchmark
+	public Map<String, String> parseResumeQuery() {
+		return Server.parseQueryParams(resumeQuery);
+	}
+}
\ No newline at end of file
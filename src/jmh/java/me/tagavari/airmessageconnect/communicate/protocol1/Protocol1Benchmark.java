@@ -0,0 +1,168 @@
+package me.tagavari.airmessageconnect.communicate.protocol1;
+
+import me.tagavari.airmessageconnect.ClientData;
+import me.tagavari.airmessageconnect.NullWebSocket;
+import me.tagavari.airmessageconnect.structure.ConnectionGroup;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding every outgoing message type, and decoding every incoming message type through to its destination
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Protocol1Benchmark {
+	private static final String groupID = "benchmark-user";
+	private static final String fcmToken = "benchmark-fcm-token";
+	private static final String resumeToken = "AAABjY2Nz4QAAAABYmVuY2htYXJrLXVzZXI.q1Lrj8Xk9mVn3sXo0bY7Yy0w1uKx9PzJc5nHfGk2Ew4";
+	
+	/**
+	 * A group with a server and two clients, connected to nothing
+	 */
+	@State(Scope.Thread)
+	public static class Relay {
+		final Protocol1 protocol = new Protocol1();
+		NullWebSocket server;
+		NullWebSocket client;
+		
+		@Setup
+		public void setup() {
+			server = new NullWebSocket(new ClientData(true, new ClientData.Type(groupID, null), protocol));
+			ConnectionGroup group = new ConnectionGroup(server, groupID, null, null);
+			server.<ClientData>getAttachment().setConnectionGroup(group);
+			
+			for(int i = 0; i < 2; i++) {
+				int connectionID = group.nextConnectionID();
+				NullWebSocket socket = new NullWebSocket(new ClientData(false, new ClientData.Type(groupID, fcmToken), protocol));
+				socket.<ClientData>getAttachment().setConnectionGroup(group);
+				socket.<ClientData>getAttachment().setConnectionID(connectionID);
+				group.addClient(connectionID, socket, fcmToken);
+				if(client == null) client = socket;
+			}
+			group.addClientFCMToken(fcmToken);
+		}
+	}
+	
+	@State(Scope.Thread)
+	public static class Payload {
+		@Param({"16", "1024", "65536"})
+		int size;
+		
+		byte[] data;
+		
+		@Setup
+		public void setup() {
+			data = new byte[size];
+			for(int i = 0; i < size; i++) data[i] = (byte) i;
+		}
+	}
+	
+	/**
+	 * A proxied message, as received from a client or server
+	 */
+	@State(Scope.Thread)
+	public static class ProxyMessage {
+		@Param({"100", "210", "211"})
+		int type;
+		
+		byte[] message;
+		
+		@Setup
+		public void setup(Payload payload) {
+			ByteBuffer byteBuffer = ByteBuffer.allocate(Integer.BYTES * 2 + payload.data.length);
+			byteBuffer.putInt(type);
+			if(type == NHT.nhtServerProxy) byteBuffer.putInt(1);
+			byteBuffer.put(payload.data);
+			message = new byte[byteBuffer.position()];
+			byteBuffer.flip();
+			byteBuffer.get(message);
+		}
+		
+		boolean isFromServer() {
+			return type != NHT.nhtClientProxy;
+		}
+	}
+	
+	/**
+	 * A control message, as received from a client or server
+	 *
+	 * The client re-registers a token it already has, removes one that it doesn't have,
+	 * and the server closes a connection that doesn't exist, so that repeating the message leaves the group unchanged.
+	 */
+	@State(Scope.Thread)
+	public static class ControlMessage {
+		@Param({"110", "111", "201"})
+		int type;
+		
+		byte[] message;
+		
+		@Setup
+		public void setup() {
+			ByteBuffer byteBuffer;
+			if(type == NHT.nhtServerClose) {
+				byteBuffer = ByteBuffer.allocate(Integer.BYTES * 2);
+				byteBuffer.putInt(type);
+				byteBuffer.putInt(Integer.MAX_VALUE);
+			} else {
+				byte[] token = (type == NHT.nhtClientAddFCMToken ? fcmToken : "unknown-fcm-token").getBytes(StandardCharsets.UTF_8);
+				byteBuffer = ByteBuffer.allocate(Integer.BYTES + token.length);
+				byteBuffer.putInt(type);
+				byteBuffer.put(token);
+			}
+			message = byteBuffer.array();
+		}
+		
+		boolean isFromServer() {
+			return type == NHT.nhtServerClose;
+		}
+	}
+	
+	@Benchmark
+	public byte[] encodeConnectionOK(Relay relay) {
+		return relay.protocol.sendSharedConnectionOK();
+	}
+	
+	@Benchmark
+	public byte[] encodeConnectionOKResumable(Relay relay) {
+		return relay.protocol.sendSharedConnectionOK(resumeToken);
+	}
+	
+	@Benchmark
+	public byte[] encodeServerConnection(Relay relay) {
+		return relay.protocol.sendServerConnection(1);
+	}
+	
+	@Benchmark
+	public byte[] encodeServerDisconnection(Relay relay) {
+		return relay.protocol.sendServerDisconnection(1);
+	}
+	
+	@Benchmark
+	public byte[] encodeClientProxy(Relay relay, Payload payload) {
+		return relay.protocol.sendClientProxy(payload.data);
+	}
+	
+	@Benchmark
+	public byte[] encodeServerProxy(Relay relay, Payload payload) {
+		return relay.protocol.sendServerProxy(1, payload.data);
+	}
+	
+	@Benchmark
+	public long decodeProxy(Relay relay, ProxyMessage message) {
+		NullWebSocket sender = message.isFromServer() ? relay.server : relay.client;
+		relay.protocol.receive(sender, sender.getAttachment(), ByteBuffer.wrap(message.message));
+		return relay.server.getSentBytes() + relay.client.getSentBytes();
+	}
+	
+	@Benchmark
+	public void decodeControl(Relay relay, ControlMessage message) {
+		NullWebSocket sender = message.isFromServer() ? relay.server : relay.client;
+		relay.protocol.receive(sender, sender.getAttachment(), ByteBuffer.wrap(message.message));
+	}
+}
\ No newline at end of file
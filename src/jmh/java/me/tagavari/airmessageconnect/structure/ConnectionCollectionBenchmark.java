@@ -0,0 +1,104 @@
+package me.tagavari.airmessageconnect.structure;
+
+import me.tagavari.airmessageconnect.ClientData;
+import me.tagavari.airmessageconnect.NullWebSocket;
+import me.tagavari.airmessageconnect.communicate.protocol1.Protocol1;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures registering and removing groups, alone and while other threads do the same
+ *
+ * Each thread works with its own group IDs, so that threads contend on the collection rather than on the same groups.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionCollectionBenchmark {
+	private static final Protocol1 protocol = new Protocol1();
+	
+	//The amount of idle groups to fill the collection with
+	private static final int idleGroupCount = 10000;
+	
+	//The amount of group IDs each thread cycles through
+	private static final int threadGroupCount = 1024;
+	
+	/**
+	 * A collection shared between all threads of a benchmark, filled with idle groups
+	 */
+	@State(Scope.Benchmark)
+	public static class Collection {
+		final ConnectionCollection connectionCollection = new ConnectionCollection();
+		final AtomicInteger threadCounter = new AtomicInteger();
+		
+		@Setup
+		public void setup() {
+			for(int i = 0; i < idleGroupCount; i++) {
+				connectionCollection.addServer(createConnection(true), "idle-" + i, null, false);
+			}
+		}
+	}
+	
+	/**
+	 * The connections of a single thread's server and clients
+	 */
+	@State(Scope.Thread)
+	public static class Connections {
+		NullWebSocket server;
+		NullWebSocket[] clients;
+		String[] groupIDs;
+		int index = 0;
+		
+		@Setup
+		public void setup(Collection collection) {
+			server = createConnection(true);
+			clients = new NullWebSocket[] {createConnection(false), createConnection(false)};
+			
+			int threadIndex = collection.threadCounter.getAndIncrement();
+			groupIDs = new String[threadGroupCount];
+			for(int i = 0; i < threadGroupCount; i++) groupIDs[i] = "thread-" + threadIndex + "-" + i;
+		}
+		
+		String nextGroupID() {
+			return groupIDs[index++ & (threadGroupCount - 1)];
+		}
+	}
+	
+	@Benchmark
+	public void lifecycle(Collection collection, Connections connections) {
+		runLifecycle(collection.connectionCollection, connections);
+	}
+	
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(3)
+	public void contendedLifecycle(Collection collection, Connections connections) {
+		runLifecycle(collection.connectionCollection, connections);
+	}
+	
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(1)
+	public boolean contendedLookup(Collection collection) {
+		return collection.connectionCollection.hasGroup("idle-" + ThreadLocalRandom.current().nextInt(idleGroupCount));
+	}
+	
+	/**
+	 * Opens a group, connects two clients to it, and removes it again
+	 */
+	private static void runLifecycle(ConnectionCollection connectionCollection, Connections connections) {
+		String groupID = connections.nextGroupID();
+		connectionCollection.addServer(connections.server, groupID, null, false);
+		for(NullWebSocket client : connections.clients) connectionCollection.addClient(client, groupID, null, 0, -1);
+		connectionCollection.removeGroup(connections.server.<ClientData>getAttachment().getConnectionGroup());
+	}
+	
+	private static NullWebSocket createConnection(boolean isServer) {
+		return new NullWebSocket(new ClientData(isServer, new ClientData.Type("benchmark-user", null), protocol));
+	}
+}
\ No newline at end of file
@@ -0,0 +1,77 @@
+package me.tagavari.airmessageconnect.structure;
+
+import me.tagavari.airmessageconnect.ClientData;
+import me.tagavari.airmessageconnect.NullWebSocket;
+import me.tagavari.airmessageconnect.communicate.protocol1.Protocol1;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the operations on a group's FCM token list, with the list full and two clients connected
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionGroupBenchmark {
+	private static final int tokenCount = 8;
+	
+	private ConnectionGroup group;
+	private String[] tokens;
+	private int index = 0;
+	
+	@Setup
+	public void setup() {
+		Protocol1 protocol = new Protocol1();
+		NullWebSocket server = new NullWebSocket(new ClientData(true, new ClientData.Type("benchmark-user", null), protocol));
+		group = new ConnectionGroup(server, "benchmark-user", null, null);
+		
+		tokens = new String[tokenCount * 2];
+		for(int i = 0; i < tokens.length; i++) tokens[i] = "benchmark-fcm-token-" + i;
+		for(int i = 0; i < tokenCount; i++) group.addClientFCMToken(tokens[i]);
+		
+		//Connecting the clients with the two most recent tokens
+		for(int i = 0; i < 2; i++) {
+			int connectionID = group.nextConnectionID();
+			group.addClient(connectionID, new NullWebSocket(new ClientData(false, new ClientData.Type("benchmark-user", tokens[tokenCount - 1 - i]), protocol)), tokens[tokenCount - 1 - i]);
+		}
+	}
+	
+	/**
+	 * Adds a token that is already in the list, moving it to the top
+	 */
+	@Benchmark
+	public void addExistingToken() {
+		group.addClientFCMToken(tokens[index++ & (tokenCount - 1)]);
+	}
+	
+	/**
+	 * Adds tokens that aren't in the list, pushing out the oldest one each time
+	 */
+	@Benchmark
+	public void addNewToken() {
+		group.addClientFCMToken(tokens[index++ & (tokens.length - 1)]);
+	}
+	
+	/**
+	 * Removes a token and adds it back
+	 */
+	@Benchmark
+	public void removeAndAddToken() {
+		String token = tokens[index++ & (tokenCount - 1)];
+		group.removeClientFCMToken(token);
+		group.addClientFCMToken(token);
+	}
+	
+	/**
+	 * Copies the tokens of clients that aren't connected, as done for every push notification
+	 */
+	@Benchmark
+	public List<String> copyOfflineTokens() {
+		return group.copyOfflineClientFCMTokenList();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,99 @@
+package me.tagavari.airmessageconnect.load;
+
+import me.tagavari.airmessageconnect.Main;
+import me.tagavari.airmessageconnect.Server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Starts a relay in-process, and measures how much heap it retains for idle connections and groups
+ *
+ * The connections are opened by IdleConnections in a separate process, so that only the relay's side is measured.
+ * The amount of connections is configured with these environment variables:
+ * FOOTPRINT_SERVERS - the amount of servers to connect, each with its own group (5000)
+ * FOOTPRINT_CLIENTS_PER_SERVER - the amount of clients to connect to each server (2)
+ */
+public class FootprintTest {
+	//How long to wait for the relay to register connections after they are opened
+	private static final long settleTimeout = 30 * 1000;
+	
+	public static void main(String[] args) throws Exception {
+		int serverCount = Integer.parseInt(System.getenv().getOrDefault("FOOTPRINT_SERVERS", "5000"));
+		int clientsPerServer = Integer.parseInt(System.getenv().getOrDefault("FOOTPRINT_CLIENTS_PER_SERVER", "2"));
+		MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+		
+		//Starting the relay
+		Server server = Main.start(new String[]{"unlinked", "insecure"});
+		if(server == null || !server.awaitStart(10, TimeUnit.SECONDS)) {
+			System.err.println("The relay failed to start");
+			System.exit(1);
+		}
+		
+		//Starting the process that opens connections
+		Process process = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+				"-cp", System.getProperty("java.class.path"), IdleConnections.class.getName(), Integer.toString(server.getPort()))
+				.redirectError(ProcessBuilder.Redirect.INHERIT)
+				.start();
+		PrintWriter commandWriter = new PrintWriter(process.getOutputStream(), true, StandardCharsets.UTF_8);
+		BufferedReader responseReader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+		
+		try {
+			long baseHeap = measureHeap(memoryBean);
+			
+			//Opening servers, which each get a group
+			commandWriter.println("servers " + serverCount);
+			int openedServers = readOpened(responseReader);
+			awaitConnections(server, openedServers);
+			long serverHeap = measureHeap(memoryBean);
+			System.out.println("Opened " + openedServers + " servers: " + (serverHeap - baseHeap) / Math.max(openedServers, 1) + " bytes per group, including its server's connection");
+			
+			//Opening clients
+			commandWriter.println("clients " + clientsPerServer);
+			int openedClients = readOpened(responseReader);
+			awaitConnections(server, openedServers + openedClients);
+			long clientHeap = measureHeap(memoryBean);
+			System.out.println("Opened " + openedClients + " clients: " + (clientHeap - serverHeap) / Math.max(openedClients, 1) + " bytes per client connection");
+			
+			System.out.println("Total: " + (clientHeap - baseHeap) / Math.max(openedServers + openedClients, 1) + " bytes per connection");
+		} finally {
+			//Silencing the relay, which would otherwise log every connection that drops when the process goes away
+			Main.getLogger().setLevel(Level.OFF);
+			process.destroy();
+		}
+		
+		server.stop();
+		System.exit(0);
+	}
+	
+	private static int readOpened(BufferedReader reader) throws Exception {
+		String line = reader.readLine();
+		if(line == null || !line.startsWith("opened ")) throw new IllegalStateException("Unexpected response from connection process: " + line);
+		return Integer.parseInt(line.substring("opened ".length()));
+	}
+	
+	/**
+	 * Waits for the relay to finish registering the opened connections
+	 */
+	private static void awaitConnections(Server server, int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + settleTimeout;
+		while(server.getConnections().size() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(100);
+		}
+	}
+	
+	private static long measureHeap(MemoryMXBean memoryBean) throws InterruptedException {
+		for(int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(200);
+		}
+		return memoryBean.getHeapMemoryUsage().getUsed();
+	}
+}
\ No newline at end of file
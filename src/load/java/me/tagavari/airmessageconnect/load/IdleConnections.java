@@ -0,0 +1,90 @@
+package me.tagavari.airmessageconnect.load;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Opens idle connections to a relay on commands from standard input, for measuring the relay's footprint from another process
+ *
+ * Connections complete the WebSocket handshake and then never read or write again, so that they cost as little as possible on this side.
+ * Commands are "servers <count>" to open servers with their own groups, and "clients <count>" to open that many clients for every server.
+ * Each command is answered with "opened <count>" once the connections are open.
+ */
+public class IdleConnections {
+	private static final String handshakeKey = "dGhlIHNhbXBsZSBub25jZQ==";
+	
+	public static void main(String[] args) throws IOException {
+		InetSocketAddress address = new InetSocketAddress("127.0.0.1", Integer.parseInt(args[0]));
+		List<SocketChannel> channelList = new ArrayList<>();
+		int serverCount = 0;
+		
+		BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+		String line;
+		while((line = reader.readLine()) != null) {
+			String[] command = line.trim().split(" ");
+			if(command.length != 2) continue;
+			int count = Integer.parseInt(command[1]);
+			
+			int opened = 0;
+			if("servers".equals(command[0])) {
+				for(int i = 0; i < count; i++) {
+					int index = serverCount + i;
+					if(open(address, "is_server=true&installation_id=footprint-" + index + "&id_token=fake-footprint-" + index, channelList)) opened++;
+				}
+				serverCount += count;
+			} else if("clients".equals(command[0])) {
+				for(int i = 0; i < serverCount; i++) {
+					for(int j = 0; j < count; j++) {
+						if(open(address, "is_server=false&id_token=fake-footprint-" + i, channelList)) opened++;
+					}
+				}
+			}
+			
+			System.out.println("opened " + opened);
+			System.out.flush();
+		}
+	}
+	
+	/**
+	 * Opens a connection and completes its handshake
+	 * @return TRUE if the relay accepted the handshake
+	 */
+	private static boolean open(InetSocketAddress address, String query, List<SocketChannel> channelList) {
+		try {
+			SocketChannel channel = SocketChannel.open(address);
+			String request = "GET /?communications=1&" + query + " HTTP/1.1\r\n" +
+					"Host: " + address.getHostString() + ":" + address.getPort() + "\r\n" +
+					"Upgrade: websocket\r\n" +
+					"Connection: Upgrade\r\n" +
+					"Sec-WebSocket-Key: " + handshakeKey + "\r\n" +
+					"Sec-WebSocket-Version: 13\r\n\r\n";
+			channel.write(ByteBuffer.wrap(request.getBytes(StandardCharsets.US_ASCII)));
+			
+			//Reading the response headers, one byte at a time so that nothing after them is consumed
+			StringBuilder response = new StringBuilder();
+			ByteBuffer byteBuffer = ByteBuffer.allocate(1);
+			while(response.indexOf("\r\n\r\n") == -1) {
+				byteBuffer.clear();
+				if(channel.read(byteBuffer) == -1) break;
+				response.append((char) byteBuffer.get(0));
+			}
+			
+			if(!response.toString().startsWith("HTTP/1.1 101")) {
+				channel.close();
+				return false;
+			}
+			
+			channelList.add(channel);
+			return true;
+		} catch(IOException exception) {
+			return false;
+		}
+	}
+}
\ No newline at end of file
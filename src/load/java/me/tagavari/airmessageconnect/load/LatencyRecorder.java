@@ -0,0 +1,62 @@
+package me.tagavari.airmessageconnect.load;
+
+import java.util.Arrays;
+
+/**
+ * Collects latency samples, and reports their percentiles
+ */
+class LatencyRecorder {
+	//The maximum amount of samples to keep, so that long runs can't run out of memory
+	private static final int sampleLimit = 10 * 1000 * 1000;
+	
+	private long[] samples = new long[1024];
+	private int count = 0;
+	private long droppedCount = 0;
+	
+	/**
+	 * Records a sample
+	 * @param latency The latency in nanoseconds
+	 */
+	synchronized void record(long latency) {
+		if(count == samples.length) {
+			if(count >= sampleLimit) {
+				droppedCount++;
+				return;
+			}
+			samples = Arrays.copyOf(samples, Math.min(samples.length * 2, sampleLimit));
+		}
+		samples[count++] = latency;
+	}
+	
+	/**
+	 * Gets the amount of samples recorded, including those that didn't fit
+	 * @return The amount of samples
+	 */
+	synchronized long getCount() {
+		return count + droppedCount;
+	}
+	
+	/**
+	 * Summarizes the recorded samples
+	 * @return A line of percentiles, in milliseconds
+	 */
+	synchronized String summarize() {
+		if(count == 0) return "no samples";
+		
+		long[] sorted = Arrays.copyOf(samples, count);
+		Arrays.sort(sorted);
+		return "p50 " + formatMillis(percentile(sorted, 0.5)) +
+			   "  p90 " + formatMillis(percentile(sorted, 0.9)) +
+			   "  p99 " + formatMillis(percentile(sorted, 0.99)) +
+			   "  p99.9 " + formatMillis(percentile(sorted, 0.999)) +
+			   "  max " + formatMillis(sorted[sorted.length - 1]) + " ms";
+	}
+	
+	private static long percentile(long[] sorted, double percentile) {
+		return sorted[Math.min(sorted.length - 1, (int) Math.ceil(percentile * sorted.length) - 1)];
+	}
+	
+	private static String formatMillis(long nanos) {
+		return String.format("%.3f", nanos / 1e6);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,92 @@
+package me.tagavari.airmessageconnect.load;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The traffic sent and received by the simulated servers and clients
+ *
+ * Every proxied payload starts with its kind and the time it was sent, so that the receiver can measure how long it took.
+ */
+class LoadStats {
+	static final int kindClientProxy = 0;
+	static final int kindServerProxy = 1;
+	static final int kindBroadcast = 2;
+	static final String[] kindNames = {"client proxy", "server proxy", "broadcast"};
+	
+	//The size of the kind and send time at the start of every payload
+	static final int headerSize = Byte.BYTES + Long.BYTES;
+	
+	final LongAdder[] sentCounts = createAdders(kindNames.length);
+	final LongAdder[] receivedCounts = createAdders(kindNames.length);
+	final LatencyRecorder[] latencyRecorders = new LatencyRecorder[kindNames.length];
+	final LongAdder receivedBytes = new LongAdder();
+	final LongAdder notifyCount = new LongAdder();
+	final LongAdder unexpectedCloseCount = new LongAdder();
+	
+	//Only messages sent within the recording window are measured, in System.nanoTime() time
+	private volatile long recordStartTime = Long.MAX_VALUE;
+	private volatile long recordEndTime = Long.MAX_VALUE;
+	
+	LoadStats() {
+		for(int i = 0; i < latencyRecorders.length; i++) latencyRecorders[i] = new LatencyRecorder();
+	}
+	
+	/**
+	 * Starts measuring messages
+	 */
+	void startRecording() {
+		recordStartTime = System.nanoTime();
+	}
+	
+	/**
+	 * Stops measuring new messages, while still measuring the arrival of messages that are already on their way
+	 */
+	void stopRecording() {
+		recordEndTime = System.nanoTime();
+	}
+	
+	private boolean isInWindow(long time) {
+		return time >= recordStartTime && time < recordEndTime;
+	}
+	
+	/**
+	 * Writes the header of a payload
+	 * @param byteBuffer The buffer to write to
+	 * @param kind The kind of message
+	 */
+	void writeHeader(ByteBuffer byteBuffer, int kind) {
+		long time = System.nanoTime();
+		byteBuffer.put((byte) kind);
+		byteBuffer.putLong(time);
+		if(isInWindow(time)) sentCounts[kind].increment();
+	}
+	
+	/**
+	 * Counts a push notification request
+	 */
+	void countNotify() {
+		if(isInWindow(System.nanoTime())) notifyCount.increment();
+	}
+	
+	/**
+	 * Records a received payload
+	 * @param byteBuffer The buffer positioned at the start of the payload
+	 */
+	void recordPayload(ByteBuffer byteBuffer) {
+		int size = byteBuffer.remaining();
+		int kind = byteBuffer.get();
+		long sendTime = byteBuffer.getLong();
+		if(kind < 0 || kind >= kindNames.length || !isInWindow(sendTime)) return;
+		
+		receivedCounts[kind].increment();
+		receivedBytes.add(size);
+		latencyRecorders[kind].record(System.nanoTime() - sendTime);
+	}
+	
+	private static LongAdder[] createAdders(int count) {
+		LongAdder[] adders = new LongAdder[count];
+		for(int i = 0; i < count; i++) adders[i] = new LongAdder();
+		return adders;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,172 @@
+package me.tagavari.airmessageconnect.load;
+
+import me.tagavari.airmessageconnect.Main;
+import me.tagavari.airmessageconnect.Server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Starts a relay in-process, and drives it with simulated servers and clients over loopback
+ *
+ * The relay runs unlinked and insecure, and every group signs in with a fake ID token.
+ * The relay itself is configured from the environment as usual, and the load from the following variables:
+ * LOAD_SERVERS - the amount of servers to connect (100)
+ * LOAD_CLIENTS_PER_SERVER - the amount of clients to connect to each server (2)
+ * LOAD_PAYLOAD_SIZE - the size of proxied payloads in bytes (256)
+ * LOAD_CLIENT_RATE - messages per second sent by each client to its server (10)
+ * LOAD_SERVER_RATE - messages per second sent by each server to one of its clients (10)
+ * LOAD_BROADCAST_RATE - messages per second broadcast by each server to all of its clients (1)
+ * LOAD_NOTIFY_RATE - push notification requests per second sent by each server (0)
+ * LOAD_DURATION - how long to send traffic for, in seconds (30)
+ */
+public class LoadTest {
+	//How long to wait for connections to be accepted, and for messages to arrive after sending stops
+	private static final long setupTimeout = 60 * 1000;
+	private static final long drainTime = 2 * 1000;
+	
+	public static void main(String[] args) throws Exception {
+		int serverCount = (int) getEnvironmentLong("LOAD_SERVERS", 100);
+		int clientsPerServer = (int) getEnvironmentLong("LOAD_CLIENTS_PER_SERVER", 2);
+		int payloadSize = (int) getEnvironmentLong("LOAD_PAYLOAD_SIZE", 256);
+		long clientRate = getEnvironmentLong("LOAD_CLIENT_RATE", 10);
+		long serverRate = getEnvironmentLong("LOAD_SERVER_RATE", 10);
+		long broadcastRate = getEnvironmentLong("LOAD_BROADCAST_RATE", 1);
+		long notifyRate = getEnvironmentLong("LOAD_NOTIFY_RATE", 0);
+		long duration = getEnvironmentLong("LOAD_DURATION", 30) * 1000;
+		
+		MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+		long baseHeap = measureHeap(memoryBean);
+		
+		//Starting the relay
+		Server server = Main.start(new String[]{"unlinked", "insecure"});
+		if(server == null || !server.awaitStart(10, TimeUnit.SECONDS)) {
+			System.err.println("The relay failed to start");
+			System.exit(1);
+		}
+		String address = "ws://127.0.0.1:" + server.getPort() + "/?communications=1&";
+		System.out.println("Relay started on port " + server.getPort());
+		
+		LoadStats stats = new LoadStats();
+		
+		//Connecting the servers, and then their clients
+		List<SimulatedServer> serverList = new ArrayList<>(serverCount);
+		List<SimulatedClient> clientList = new ArrayList<>(serverCount * clientsPerServer);
+		{
+			CountDownLatch readyLatch = new CountDownLatch(serverCount);
+			for(int i = 0; i < serverCount; i++) {
+				serverList.add(new SimulatedServer(new URI(address + "is_server=true&installation_id=load-" + i + "&id_token=fake-load-" + i), stats, payloadSize, readyLatch));
+			}
+			reportSetup("servers", serverList, readyLatch);
+		}
+		{
+			CountDownLatch readyLatch = new CountDownLatch(serverCount * clientsPerServer);
+			for(int i = 0; i < serverCount; i++) {
+				for(int j = 0; j < clientsPerServer; j++) {
+					clientList.add(new SimulatedClient(new URI(address + "is_server=false&id_token=fake-load-" + i), stats, payloadSize, readyLatch));
+				}
+			}
+			reportSetup("clients", clientList, readyLatch);
+		}
+		
+		int connectionCount = serverList.size() + clientList.size();
+		long connectionHeap = measureHeap(memoryBean) - baseHeap;
+		System.out.println("Heap per connection: " + connectionHeap / connectionCount / 1024 + " KiB, counting both the relay and the simulated servers and clients");
+		
+		//Sending traffic
+		ScheduledExecutorService executor = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+			Thread thread = new Thread(runnable, "LoadSender");
+			thread.setDaemon(true);
+			return thread;
+		});
+		for(SimulatedClient client : clientList) schedule(executor, clientRate, client::sendProxy);
+		for(SimulatedServer simulatedServer : serverList) {
+			schedule(executor, serverRate, simulatedServer::sendProxy);
+			schedule(executor, broadcastRate, simulatedServer::sendBroadcast);
+			schedule(executor, notifyRate, simulatedServer::sendNotify);
+		}
+		
+		System.out.println("Sending traffic for " + duration / 1000 + " seconds");
+		stats.startRecording();
+		Thread.sleep(duration);
+		stats.stopRecording();
+		executor.shutdownNow();
+		Thread.sleep(drainTime);
+		
+		report(stats, duration);
+		
+		//Shutting everything down, disconnecting clients before their servers
+		for(SimulatedClient client : clientList) client.stop();
+		for(SimulatedServer simulatedServer : serverList) simulatedServer.stop();
+		server.stop();
+		System.exit(0);
+	}
+	
+	/**
+	 * Connects a set of simulated connections at once, and reports how quickly they were accepted
+	 */
+	private static void reportSetup(String name, List<? extends SimulatedConnection> connectionList, CountDownLatch readyLatch) throws InterruptedException {
+		long startTime = System.nanoTime();
+		for(SimulatedConnection connection : connectionList) connection.connect();
+		boolean isComplete = readyLatch.await(setupTimeout, TimeUnit.MILLISECONDS);
+		long setupTime = System.nanoTime() - startTime;
+		
+		long readyCount = connectionList.size() - readyLatch.getCount();
+		System.out.println("Connected " + readyCount + " of " + connectionList.size() + " " + name + " in " + setupTime / 1000000 + " ms" +
+						   " (" + String.format("%.1f", readyCount / (setupTime / 1e9)) + " per second)");
+		if(!isComplete) System.out.println("Gave up waiting for the remaining " + name + " after " + setupTimeout / 1000 + " seconds");
+	}
+	
+	private static void report(LoadStats stats, long duration) {
+		double seconds = duration / 1000D;
+		long totalReceived = 0;
+		for(int kind = 0; kind < LoadStats.kindNames.length; kind++) {
+			long sent = stats.sentCounts[kind].sum();
+			long received = stats.receivedCounts[kind].sum();
+			totalReceived += received;
+			if(sent == 0) continue;
+			
+			System.out.println(LoadStats.kindNames[kind] + ": sent " + sent + ", received " + received + " (" + String.format("%.1f", received / seconds) + " per second)");
+			System.out.println("  latency " + stats.latencyRecorders[kind].summarize());
+		}
+		if(stats.notifyCount.sum() > 0) System.out.println("push requests: sent " + stats.notifyCount.sum());
+		
+		System.out.println("Throughput: " + String.format("%.1f", totalReceived / seconds) + " messages per second, " +
+						   String.format("%.2f", stats.receivedBytes.sum() / seconds / (1024 * 1024)) + " MiB per second");
+		if(stats.unexpectedCloseCount.sum() > 0) System.out.println("Connections closed by the relay: " + stats.unexpectedCloseCount.sum());
+	}
+	
+	/**
+	 * Runs a task at a rate, starting at a random point within the first period so that connections don't send in lockstep
+	 */
+	private static void schedule(ScheduledExecutorService executor, long rate, Runnable task) {
+		if(rate <= 0) return;
+		
+		long period = TimeUnit.SECONDS.toNanos(1) / rate;
+		executor.scheduleAtFixedRate(task, ThreadLocalRandom.current().nextLong(period), period, TimeUnit.NANOSECONDS);
+	}
+	
+	private static long measureHeap(MemoryMXBean memoryBean) throws InterruptedException {
+		for(int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return memoryBean.getHeapMemoryUsage().getUsed();
+	}
+	
+	private static long getEnvironmentLong(String name, long defaultValue) {
+		String value = System.getenv(name);
+		if(value == null) return defaultValue;
+		
+		try {
+			return Long.parseLong(value.trim());
+		} catch(NumberFormatException exception) {
+			System.err.println("Invalid value for " + name + ": " + value + " - using default " + defaultValue);
+			return defaultValue;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,159 @@
+package me.tagavari.airmessageconnect.load;
+
+import me.tagavari.airmessageconnect.Main;
+import me.tagavari.airmessageconnect.Server;
+import me.tagavari.airmessageconnect.capture.CaptureReader;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Starts a relay in-process, and replays a traffic capture against it over loopback
+ *
+ * Records are replayed one at a time in the order they were captured, at the pace they were captured at or faster.
+ * The relay runs unlinked and insecure, and every group of the capture signs in with a fake ID token.
+ * Redacted messages are sent as their header followed by zeros, padded to their captured length.
+ * Groups whose server connected before the capture started are given a stand-in server, so that their clients are accepted.
+ *
+ * The relay itself is configured from the environment as usual, and the replay from the following variables:
+ * REPLAY_FILE - the capture to replay
+ * REPLAY_SPEED - how many times faster than captured to replay traffic (1)
+ */
+public class Replay {
+	//How long to wait for a connection to be accepted before using it, and for messages to arrive after the replay
+	private static final long readyTimeout = 5 * 1000;
+	private static final long drainTime = 2 * 1000;
+	
+	public static void main(String[] args) throws Exception {
+		String replayPath = System.getenv("REPLAY_FILE");
+		if(replayPath == null) {
+			System.err.println("No variable REPLAY_FILE provided");
+			System.exit(1);
+		}
+		double speed = 1;
+		String speedValue = System.getenv("REPLAY_SPEED");
+		if(speedValue != null) {
+			try {
+				speed = Double.parseDouble(speedValue.trim());
+				if(!(speed > 0)) throw new NumberFormatException();
+			} catch(NumberFormatException exception) {
+				System.err.println("Invalid value for REPLAY_SPEED: " + speedValue);
+				System.exit(1);
+			}
+		}
+		
+		CaptureReader reader = new CaptureReader(new File(replayPath));
+		System.out.println("Replaying " + replayPath + (reader.isRedacted() ? " (payloads redacted)" : "") + " at " + speed + "x speed");
+		
+		//Starting the relay
+		Server server = Main.start(new String[]{"unlinked", "insecure"});
+		if(server == null || !server.awaitStart(10, TimeUnit.SECONDS)) {
+			System.err.println("The relay failed to start");
+			System.exit(1);
+		}
+		String address = "ws://127.0.0.1:" + server.getPort() + "/?communications=1&";
+		
+		ReplayStats stats = new ReplayStats();
+		Map<Integer, ReplayConnection> connectionMap = new HashMap<>();
+		Map<Integer, ReplayConnection> groupServerMap = new HashMap<>();
+		List<ReplayConnection> connectionList = new ArrayList<>();
+		int serverCount = 0, clientCount = 0, standInCount = 0, recordCount = 0;
+		
+		long replayStartTime = System.nanoTime();
+		long captureStartTime = -1;
+		for(CaptureReader.Record record; (record = reader.next()) != null; ) {
+			recordCount++;
+			
+			//Waiting until the record is due
+			if(captureStartTime == -1) captureStartTime = record.getTime();
+			long dueTime = replayStartTime + (long) ((record.getTime() - captureStartTime) / speed);
+			long delay = dueTime - System.nanoTime();
+			if(delay > 0) TimeUnit.NANOSECONDS.sleep(delay);
+			else stats.lagRecorder.record(-delay);
+			
+			switch(record.getKind()) {
+				case CaptureReader.Record.kindOpen: {
+					int group = record.getGroup();
+					ReplayConnection connection;
+					if(record.isServer()) {
+						connection = new ReplayConnection(new URI(address + "is_server=true&installation_id=replay-" + group + "&id_token=fake-replay-" + group), stats, true);
+						groupServerMap.put(group, connection);
+						serverCount++;
+					} else {
+						//Standing in for servers that connected before the capture started
+						ReplayConnection groupServer = groupServerMap.get(group);
+						if(groupServer == null) {
+							groupServer = new ReplayConnection(new URI(address + "is_server=true&installation_id=replay-" + group + "&id_token=fake-replay-" + group), stats, true);
+							groupServerMap.put(group, groupServer);
+							connectionList.add(groupServer);
+							groupServer.connect();
+							standInCount++;
+						}
+						groupServer.awaitReady(readyTimeout);
+						groupServer.expectClient(record.getConnectionID());
+						
+						connection = new ReplayConnection(new URI(address + "is_server=false&id_token=fake-replay-" + group), stats, false);
+						clientCount++;
+					}
+					
+					connectionMap.put(record.getCaptureID(), connection);
+					connectionList.add(connection);
+					connection.connect();
+					break;
+				}
+				case CaptureReader.Record.kindClose: {
+					ReplayConnection connection = connectionMap.remove(record.getCaptureID());
+					if(connection != null) connection.stop();
+					break;
+				}
+				case CaptureReader.Record.kindMessage: {
+					ReplayConnection connection = connectionMap.get(record.getCaptureID());
+					if(connection == null) {
+						stats.skippedCount.increment();
+						break;
+					}
+					
+					//Giving connections that were just opened a chance to be accepted, which matters when replaying faster than captured
+					if(!connection.isReady()) connection.awaitReady(readyTimeout);
+					
+					byte[] data = record.getData();
+					if(data.length < record.getLength()) data = Arrays.copyOf(data, record.getLength());
+					connection.sendCaptured(data);
+					break;
+				}
+			}
+		}
+		long replayTime = System.nanoTime() - replayStartTime;
+		Thread.sleep(drainTime);
+		
+		//Reporting
+		double seconds = replayTime / 1e9;
+		System.out.println("Replayed " + recordCount + " records in " + String.format("%.1f", seconds) + " seconds");
+		System.out.println("Connected " + serverCount + " servers and " + clientCount + " clients" + (standInCount > 0 ? ", with " + standInCount + " stand-in servers" : ""));
+		System.out.println("Sent " + stats.sentCount.sum() + " messages (" + String.format("%.1f", stats.sentCount.sum() / seconds) + " per second, " +
+						   String.format("%.2f", stats.sentBytes.sum() / seconds / (1024 * 1024)) + " MiB per second)" +
+						   (stats.skippedCount.sum() > 0 ? ", skipped " + stats.skippedCount.sum() + " for connections that weren't open" : ""));
+		System.out.println("Received " + stats.receivedCount.sum() + " messages (" + String.format("%.2f", stats.receivedBytes.sum() / seconds / (1024 * 1024)) + " MiB per second)");
+		if(stats.lagRecorder.getCount() > 0) System.out.println("Behind schedule for " + stats.lagRecorder.getCount() + " records: " + stats.lagRecorder.summarize());
+		if(stats.unexpectedCloseCount.sum() > 0) System.out.println("Connections closed by the relay: " + stats.unexpectedCloseCount.sum());
+		
+		//Shutting everything down, disconnecting clients before their servers
+		//Silencing the relay, which would otherwise log servers that close before it's done with their clients
+		Main.getLogger().setLevel(Level.OFF);
+		for(ReplayConnection connection : connectionList) {
+			if(!connection.isServer()) connection.stop();
+		}
+		for(ReplayConnection connection : connectionList) {
+			if(connection.isServer()) connection.stop();
+		}
+		server.stop();
+		System.exit(0);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,138 @@
+package me.tagavari.airmessageconnect.load;
+
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A server or client from a traffic capture, connected to the relay over loopback
+ *
+ * The relay hands out its own connection IDs, so servers map the connection IDs of the capture to the ones of the replay,
+ * in the order that their clients are accepted.
+ */
+class ReplayConnection extends WebSocketClient {
+	private final ReplayStats stats;
+	private final boolean isServer;
+	private final CountDownLatch readyLatch = new CountDownLatch(1);
+	private volatile boolean isStopping = false;
+	
+	//Connection IDs of the capture waiting for the relay to accept their clients, and the IDs the relay gave them
+	private final Queue<Integer> pendingConnectionIDs = new ConcurrentLinkedQueue<>();
+	private final Map<Integer, Integer> connectionIDMap = new ConcurrentHashMap<>();
+	
+	/**
+	 * @param uri The address of the relay, with the handshake's query parameters
+	 * @param stats The stats to record traffic to
+	 * @param isServer TRUE if this connection is a server
+	 */
+	ReplayConnection(URI uri, ReplayStats stats, boolean isServer) {
+		super(uri);
+		this.stats = stats;
+		this.isServer = isServer;
+		setConnectionLostTimeout(0);
+	}
+	
+	boolean isServer() {
+		return isServer;
+	}
+	
+	boolean isReady() {
+		return readyLatch.getCount() == 0;
+	}
+	
+	/**
+	 * Waits for the relay to accept this connection
+	 * @return TRUE if the connection was accepted in time
+	 */
+	boolean awaitReady(long timeout) throws InterruptedException {
+		return readyLatch.await(timeout, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Notes that a client of this server is connecting
+	 * @param connectionID The connection ID the client had in the capture
+	 */
+	void expectClient(int connectionID) {
+		pendingConnectionIDs.add(connectionID);
+	}
+	
+	/**
+	 * Sends a message from the capture
+	 * @param data The message, with the capture's connection ID for messages addressed to a single client
+	 */
+	void sendCaptured(byte[] data) {
+		if(!isReady() || !isOpen()) {
+			stats.skippedCount.increment();
+			return;
+		}
+		
+		//Addressing messages to the client's connection ID in this replay
+		if(isServer && data.length >= Integer.BYTES * 2) {
+			ByteBuffer byteBuffer = ByteBuffer.wrap(data);
+			int type = byteBuffer.getInt(0);
+			if(type == SimulatedConnection.nhtServerProxy || type == SimulatedConnection.nhtServerClose) {
+				Integer connectionID = connectionIDMap.get(byteBuffer.getInt(Integer.BYTES));
+				if(connectionID == null) {
+					stats.skippedCount.increment();
+					return;
+				}
+				byteBuffer.putInt(Integer.BYTES, connectionID);
+			}
+		}
+		
+		send(data);
+		stats.sentCount.increment();
+		stats.sentBytes.add(data.length);
+	}
+	
+	/**
+	 * Closes this connection without counting it as unexpected
+	 */
+	void stop() {
+		isStopping = true;
+		close();
+	}
+	
+	@Override
+	public void onOpen(ServerHandshake handshake) {
+	}
+	
+	@Override
+	public void onMessage(String message) {
+	}
+	
+	@Override
+	public void onMessage(ByteBuffer bytes) {
+		int size = bytes.remaining();
+		int type = bytes.getInt();
+		if(type == SimulatedConnection.nhtConnectionOK) {
+			readyLatch.countDown();
+			return;
+		}
+		
+		if(isServer && type == SimulatedConnection.nhtServerOpen) {
+			Integer captureConnectionID = pendingConnectionIDs.poll();
+			if(captureConnectionID != null) connectionIDMap.put(captureConnectionID, bytes.getInt());
+		}
+		
+		stats.receivedCount.increment();
+		stats.receivedBytes.add(size);
+	}
+	
+	@Override
+	public void onClose(int code, String reason, boolean remote) {
+		if(!isStopping) stats.unexpectedCloseCount.increment();
+	}
+	
+	@Override
+	public void onError(Exception exception) {
+	}
+}
\ No newline at end of file
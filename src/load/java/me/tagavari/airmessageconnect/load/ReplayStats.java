@@ -0,0 +1,18 @@
+package me.tagavari.airmessageconnect.load;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The traffic sent and received while replaying a capture
+ */
+class ReplayStats {
+	final LongAdder sentCount = new LongAdder();
+	final LongAdder sentBytes = new LongAdder();
+	final LongAdder skippedCount = new LongAdder();
+	final LongAdder receivedCount = new LongAdder();
+	final LongAdder receivedBytes = new LongAdder();
+	final LongAdder unexpectedCloseCount = new LongAdder();
+	
+	//How far behind the capture's schedule records were replayed
+	final LatencyRecorder lagRecorder = new LatencyRecorder();
+}
\ No newline at end of file
@@ -0,0 +1,26 @@
+package me.tagavari.airmessageconnect.load;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A simulated AirMessage client, which sends messages to its server
+ */
+class SimulatedClient extends SimulatedConnection {
+	SimulatedClient(URI uri, LoadStats stats, int payloadSize, CountDownLatch readyLatch) {
+		super(uri, stats, payloadSize, readyLatch);
+	}
+	
+	@Override
+	void handleMessage(int type, ByteBuffer bytes) {
+		if(type == nhtClientProxy) stats.recordPayload(bytes);
+	}
+	
+	/**
+	 * Sends a message to this client's server
+	 */
+	void sendProxy() {
+		sendIfOpen(createMessage(nhtClientProxy, -1, LoadStats.kindClientProxy));
+	}
+}
\ No newline at end of file
@@ -0,0 +1,111 @@
+package me.tagavari.airmessageconnect.load;
+
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A simulated server or client, connected to the relay over loopback
+ */
+abstract class SimulatedConnection extends WebSocketClient {
+	//The message types of communications version 1, as seen from the other end of the connection
+	static final int nhtConnectionOK = 0;
+	static final int nhtClientProxy = 100;
+	static final int nhtServerOpen = 200;
+	static final int nhtServerClose = 201;
+	static final int nhtServerProxy = 210;
+	static final int nhtServerProxyBroadcast = 211;
+	static final int nhtServerNotifyPush = 212;
+	
+	final LoadStats stats;
+	final int payloadSize;
+	private final CountDownLatch readyLatch;
+	private volatile boolean isReady = false;
+	private volatile boolean isStopping = false;
+	
+	/**
+	 * @param uri The address of the relay, with the handshake's query parameters
+	 * @param stats The stats to record traffic to
+	 * @param payloadSize The size of proxied payloads, including their header
+	 * @param readyLatch Counted down once the relay accepts this connection
+	 */
+	SimulatedConnection(URI uri, LoadStats stats, int payloadSize, CountDownLatch readyLatch) {
+		super(uri);
+		this.stats = stats;
+		this.payloadSize = Math.max(payloadSize, LoadStats.headerSize);
+		this.readyLatch = readyLatch;
+		setConnectionLostTimeout(0);
+	}
+	
+	boolean isReady() {
+		return isReady;
+	}
+	
+	/**
+	 * Closes this connection without counting it as unexpected, and waits for it to close
+	 */
+	void stop() throws InterruptedException {
+		isStopping = true;
+		closeBlocking();
+	}
+	
+	/**
+	 * Creates a message with a measured payload
+	 * @param type The NHT of the message
+	 * @param connectionID The connection ID to address the message to, or -1 to leave it out
+	 * @param kind The kind of message, to measure it by
+	 * @return The message
+	 */
+	byte[] createMessage(int type, int connectionID, int kind) {
+		ByteBuffer byteBuffer = ByteBuffer.allocate(Integer.BYTES + (connectionID != -1 ? Integer.BYTES : 0) + payloadSize);
+		byteBuffer.putInt(type);
+		if(connectionID != -1) byteBuffer.putInt(connectionID);
+		stats.writeHeader(byteBuffer, kind);
+		return byteBuffer.array();
+	}
+	
+	/**
+	 * Sends a message if this connection is open, dropping it otherwise
+	 */
+	void sendIfOpen(byte[] message) {
+		if(isReady && isOpen()) send(message);
+	}
+	
+	@Override
+	public void onOpen(ServerHandshake handshake) {
+	}
+	
+	@Override
+	public void onMessage(String message) {
+	}
+	
+	@Override
+	public void onMessage(ByteBuffer bytes) {
+		int type = bytes.getInt();
+		if(type == nhtConnectionOK) {
+			isReady = true;
+			readyLatch.countDown();
+		} else {
+			handleMessage(type, bytes);
+		}
+	}
+	
+	/**
+	 * Handles a message from the relay
+	 * @param type The NHT of the message
+	 * @param bytes The rest of the message
+	 */
+	abstract void handleMessage(int type, ByteBuffer bytes);
+	
+	@Override
+	public void onClose(int code, String reason, boolean remote) {
+		if(!isStopping) stats.unexpectedCloseCount.increment();
+	}
+	
+	@Override
+	public void onError(Exception exception) {
+	}
+}
\ No newline at end of file
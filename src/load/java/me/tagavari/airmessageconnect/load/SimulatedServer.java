@@ -0,0 +1,72 @@
+package me.tagavari.airmessageconnect.load;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A simulated AirMessage server, which keeps track of its clients and sends them messages
+ */
+class SimulatedServer extends SimulatedConnection {
+	private final List<Integer> connectionIDs = new CopyOnWriteArrayList<>();
+	private final AtomicInteger nextClientIndex = new AtomicInteger();
+	
+	SimulatedServer(URI uri, LoadStats stats, int payloadSize, CountDownLatch readyLatch) {
+		super(uri, stats, payloadSize, readyLatch);
+	}
+	
+	@Override
+	void handleMessage(int type, ByteBuffer bytes) {
+		switch(type) {
+			case nhtServerOpen:
+				connectionIDs.add(bytes.getInt());
+				break;
+			case nhtServerClose:
+				connectionIDs.remove((Integer) bytes.getInt());
+				break;
+			case nhtServerProxy:
+				bytes.getInt(); //Connection ID
+				stats.recordPayload(bytes);
+				break;
+		}
+	}
+	
+	/**
+	 * Sends a message to one of this server's clients, taking turns between them
+	 */
+	void sendProxy() {
+		int clientCount = connectionIDs.size();
+		if(clientCount == 0) return;
+		
+		int connectionID;
+		try {
+			connectionID = connectionIDs.get(Math.floorMod(nextClientIndex.getAndIncrement(), clientCount));
+		} catch(IndexOutOfBoundsException exception) {
+			//A client disconnected in the meantime
+			return;
+		}
+		sendIfOpen(createMessage(nhtServerProxy, connectionID, LoadStats.kindServerProxy));
+	}
+	
+	/**
+	 * Sends a message to all of this server's clients
+	 */
+	void sendBroadcast() {
+		sendIfOpen(createMessage(nhtServerProxyBroadcast, -1, LoadStats.kindBroadcast));
+	}
+	
+	/**
+	 * Asks the relay to send a push notification to this server's clients
+	 */
+	void sendNotify() {
+		if(!isReady() || !isOpen()) return;
+		
+		ByteBuffer byteBuffer = ByteBuffer.allocate(Integer.BYTES);
+		byteBuffer.putInt(nhtServerNotifyPush);
+		send(byteBuffer.array());
+		stats.countNotify();
+	}
+}
\ No newline at end of file
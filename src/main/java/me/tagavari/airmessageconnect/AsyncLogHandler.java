@@ -0,0 +1,100 @@
+package me.tagavari.airmessageconnect;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * A log handler that hands records to a background thread, which formats and writes them to other handlers
+ *
+ * Records are kept in a bounded buffer. If the writer falls behind and the buffer fills up,
+ * new records are dropped instead of blocking the thread that logged them, and the writer reports how many were lost once it catches up.
+ */
+public class AsyncLogHandler extends Handler {
+	private final Handler[] handlers;
+	private final BlockingQueue<LogRecord> recordQueue;
+	private final Thread writerThread;
+	private volatile boolean isClosed = false;
+	
+	//Records dropped since the last report, and in total
+	private final LongAdder pendingDroppedCount = new LongAdder();
+	private final LongAdder droppedCount = new LongAdder();
+	
+	/**
+	 * Creates and starts a new asynchronous log handler
+	 * @param capacity The maximum amount of records to buffer
+	 * @param handlers The handlers to write records to
+	 */
+	public AsyncLogHandler(int capacity, Handler... handlers) {
+		this.handlers = handlers;
+		recordQueue = new ArrayBlockingQueue<>(capacity);
+		
+		writerThread = new Thread(this::runWrite, "LogWriter");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+	
+	@Override
+	public void publish(LogRecord record) {
+		if(isClosed || !isLoggable(record)) return;
+		
+		if(!recordQueue.offer(record)) {
+			pendingDroppedCount.increment();
+			droppedCount.increment();
+		}
+	}
+	
+	private void runWrite() {
+		while(!isClosed || !recordQueue.isEmpty()) {
+			LogRecord record;
+			try {
+				record = recordQueue.poll(100, TimeUnit.MILLISECONDS);
+			} catch(InterruptedException exception) {
+				continue;
+			}
+			if(record != null) write(record);
+			
+			//Reporting dropped records once we've caught up
+			if(recordQueue.isEmpty()) {
+				long dropped = pendingDroppedCount.sumThenReset();
+				if(dropped > 0) write(new LogRecord(Level.WARNING, "Dropped " + dropped + " log records - the log writer couldn't keep up"));
+			}
+		}
+	}
+	
+	private void write(LogRecord record) {
+		for(Handler handler : handlers) handler.publish(record);
+	}
+	
+	/**
+	 * Gets the amount of records that were dropped because the buffer was full
+	 * @return The total amount of dropped records
+	 */
+	public long getDroppedCount() {
+		return droppedCount.sum();
+	}
+	
+	@Override
+	public void flush() {
+		for(Handler handler : handlers) handler.flush();
+	}
+	
+	/**
+	 * Stops accepting records, and waits for buffered records to be written before closing the underlying handlers
+	 */
+	@Override
+	public void close() {
+		isClosed = true;
+		try {
+			writerThread.join(TimeUnit.SECONDS.toMillis(5));
+		} catch(InterruptedException exception) {
+			Thread.currentThread().interrupt();
+		}
+		
+		for(Handler handler : handlers) handler.close();
+	}
+}
\ No newline at end of file
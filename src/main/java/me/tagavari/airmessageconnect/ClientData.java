@@ -1,5 +1,6 @@
 package me.tagavari.airmessageconnect;
 
+import me.tagavari.airmessageconnect.cluster.ForwardedClient;
 import me.tagavari.airmessageconnect.communicate.Protocol;
 import me.tagavari.airmessageconnect.structure.ConnectionGroup;
 
@@ -8,16 +9,36 @@ import me.tagavari.airmessageconnect.structure.ConnectionGroup;
  */
 public class ClientData {
 	private final int closeCode;
+	private final String closeReason;
 	private final boolean isServer;
 	private Type type;
 	private final Protocol protocol;
 	private ConnectionGroup connectionGroup;
 	private int connectionID;
 	private boolean disableCleanup = false;
+	private ForwardedClient forwardedClient = null;
+	private boolean isResumable = false;
+	private boolean isResumed = false;
+	
+	//The time that the oldest data not yet decoded was queued, or 0 if none
+	private volatile long queueTime = 0;
+	
+	//The ID of this connection in the traffic capture, or 0 if it isn't captured
+	private int captureID = 0;
 	
 	//For failed clients
 	public ClientData(int closeCode) {
+		this(closeCode, null);
+	}
+	
+	/**
+	 * For failed clients that are told why they were rejected
+	 * @param closeCode The code to close the connection with
+	 * @param closeReason The message to close the connection with
+	 */
+	public ClientData(int closeCode, String closeReason) {
 		this.closeCode = closeCode;
+		this.closeReason = closeReason;
 		this.isServer = false;
 		this.type = null;
 		this.protocol = null;
@@ -31,6 +52,7 @@ public class ClientData {
 	 */
 	public ClientData(boolean isServer, Type type, Protocol protocol) {
 		this.closeCode = -1;
+		this.closeReason = null;
 		this.isServer = isServer;
 		this.type = type;
 		this.protocol = protocol;
@@ -44,6 +66,10 @@ public class ClientData {
 		return closeCode;
 	}
 	
+	public String getCloseReason() {
+		return closeReason;
+	}
+	
 	public boolean isServer() {
 		return isServer;
 	}
@@ -84,13 +110,90 @@ public class ClientData {
 		this.disableCleanup = disableCleanup;
 	}
 	
+	/**
+	 * Gets the forwarding state of this client, if its group is hosted on another relay
+	 * @return The forwarded client, or NULL if this client's group is hosted on this relay
+	 */
+	public ForwardedClient getForwardedClient() {
+		return forwardedClient;
+	}
+	
+	public void setForwardedClient(ForwardedClient forwardedClient) {
+		this.forwardedClient = forwardedClient;
+	}
+	
+	/**
+	 * Gets whether this client asked for resume tokens, and should have its connection ID held for it when it disconnects
+	 */
+	public boolean isResumable() {
+		return isResumable;
+	}
+	
+	public void setResumable(boolean resumable) {
+		isResumable = resumable;
+	}
+	
+	/**
+	 * Gets whether this client got its previous connection ID back, so that the server wasn't told about it reconnecting
+	 */
+	public boolean isResumed() {
+		return isResumed;
+	}
+	
+	public void setResumed(boolean resumed) {
+		isResumed = resumed;
+	}
+	
+	/**
+	 * Records that data from this client was queued to be decoded, unless earlier data is still waiting
+	 * @param time The time the data was queued
+	 */
+	public void markQueued(long time) {
+		if(queueTime == 0) queueTime = time;
+	}
+	
+	/**
+	 * Gets and clears the time that the data being decoded was queued
+	 * @return The time the data was queued, or 0 if unknown
+	 */
+	public long takeQueueTime() {
+		long time = queueTime;
+		if(time != 0) queueTime = 0;
+		return time;
+	}
+	
+	public int getCaptureID() {
+		return captureID;
+	}
+	
+	public void setCaptureID(int captureID) {
+		this.captureID = captureID;
+	}
+	
 	public static class Type {
 		private final String groupID;
 		private final String fcmToken;
+		private final String installationID;
+		private final long resumeGroupEpoch;
+		private final int resumeConnectionID;
 		
 		public Type(String groupID, String fcmToken) {
+			this(groupID, fcmToken, null, 0, -1);
+		}
+		
+		/**
+		 * @param groupID The group ID of the client
+		 * @param fcmToken The FCM token of the client, or NULL if unavailable
+		 * @param installationID The installation ID of the server, or NULL if this client isn't a server
+		 * @param resumeGroupEpoch The group epoch from the client's resume token, if it has one
+		 * @param resumeConnectionID The connection ID the client would like back from its resume token, or -1 if none
+		 */
+		public Type(String groupID, String fcmToken, String installationID, long resumeGroupEpoch, int resumeConnectionID) {
 			this.groupID = groupID;
 			this.fcmToken = fcmToken;
+			this.installationID = installationID;
+			this.resumeGroupEpoch = resumeGroupEpoch;
+			this.resumeConnectionID = resumeConnectionID;
 		}
 		
 		public String getGroupID() {
@@ -100,5 +203,17 @@ public class ClientData {
 		public String getFCMToken() {
 			return fcmToken;
 		}
+		
+		public String getInstallationID() {
+			return installationID;
+		}
+		
+		public long getResumeGroupEpoch() {
+			return resumeGroupEpoch;
+		}
+		
+		public int getResumeConnectionID() {
+			return resumeConnectionID;
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,79 @@
+package me.tagavari.airmessageconnect;
+
+/**
+ * The load at which the relay reports itself as degraded or overloaded on /health
+ *
+ * A limit of 0 means that the value isn't limited.
+ */
+public class HealthLimits {
+	private final long maxConnections;
+	private final long maxGroups;
+	private final long maxHandshakes;
+	private final long maxBufferedBytes;
+	private final long minHeapHeadroom;
+	private final int degradedPercent;
+	
+	/**
+	 * @param maxConnections The maximum amount of open connections
+	 * @param maxGroups The maximum amount of active groups
+	 * @param maxHandshakes The maximum amount of handshakes being verified at once
+	 * @param maxBufferedBytes The maximum amount of bytes waiting to be written to connections
+	 * @param minHeapHeadroom The minimum amount of heap memory left, in bytes
+	 * @param degradedPercent The percentage of a limit at which the relay is reported as degraded
+	 */
+	public HealthLimits(long maxConnections, long maxGroups, long maxHandshakes, long maxBufferedBytes, long minHeapHeadroom, int degradedPercent) {
+		if(maxConnections < 0 || maxGroups < 0 || maxHandshakes < 0 || maxBufferedBytes < 0 || minHeapHeadroom < 0) throw new IllegalArgumentException("Health limits can't be negative");
+		if(degradedPercent < 1 || degradedPercent > 100) throw new IllegalArgumentException("Invalid degraded percentage " + degradedPercent);
+		
+		this.maxConnections = maxConnections;
+		this.maxGroups = maxGroups;
+		this.maxHandshakes = maxHandshakes;
+		this.maxBufferedBytes = maxBufferedBytes;
+		this.minHeapHeadroom = minHeapHeadroom;
+		this.degradedPercent = degradedPercent;
+	}
+	
+	/**
+	 * Creates limits that never report the relay as degraded or overloaded
+	 */
+	public static HealthLimits unlimited() {
+		return new HealthLimits(0, 0, 0, 0, 0, 100);
+	}
+	
+	/**
+	 * Checks a load report against these limits
+	 * @return The state of the relay
+	 */
+	public State check(long connections, long groups, long handshakes, long bufferedBytes, long heapHeadroom) {
+		State state = State.OK;
+		state = max(state, checkMaximum(connections, maxConnections));
+		state = max(state, checkMaximum(groups, maxGroups));
+		state = max(state, checkMaximum(handshakes, maxHandshakes));
+		state = max(state, checkMaximum(bufferedBytes, maxBufferedBytes));
+		
+		//Treating the headroom as degraded once only a little more than the minimum is left
+		if(minHeapHeadroom > 0) {
+			if(heapHeadroom < minHeapHeadroom) state = State.OVERLOADED;
+			else if(heapHeadroom * degradedPercent / 100 < minHeapHeadroom) state = max(state, State.DEGRADED);
+		}
+		
+		return state;
+	}
+	
+	private State checkMaximum(long value, long limit) {
+		if(limit == 0) return State.OK;
+		if(value >= limit) return State.OVERLOADED;
+		if(value * 100 >= limit * degradedPercent) return State.DEGRADED;
+		return State.OK;
+	}
+	
+	private static State max(State a, State b) {
+		return a.compareTo(b) >= 0 ? a : b;
+	}
+	
+	public enum State {
+		OK,
+		DEGRADED,
+		OVERLOADED
+	}
+}
\ No newline at end of file
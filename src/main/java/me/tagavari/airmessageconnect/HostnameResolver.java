@@ -0,0 +1,67 @@
+package me.tagavari.airmessageconnect;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Looks up the hostnames of remote addresses in the background, so that logging a connection never waits on DNS
+ *
+ * Hostnames are cached for a limited time. Until a lookup finishes, callers get no hostname.
+ */
+public class HostnameResolver {
+	//How long to keep a looked-up hostname
+	private static final long cacheTTL = TimeUnit.MINUTES.toMillis(10);
+	
+	//The maximum amount of hostnames to keep, and lookups to queue
+	private static final int cacheLimit = 10000;
+	private static final int queueLimit = 1000;
+	
+	private static final Map<InetAddress, CacheEntry> cacheMap = new ConcurrentHashMap<>();
+	private static final Map<InetAddress, Boolean> pendingMap = new ConcurrentHashMap<>();
+	private static final ExecutorService executor = new ThreadPoolExecutor(2, 2, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueLimit), runnable -> {
+		Thread thread = new Thread(runnable, "HostnameResolver");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	/**
+	 * Gets the hostname of an address if it's known, and starts looking it up otherwise
+	 * @param address The address to get the hostname of
+	 * @return The hostname, or NULL if it hasn't been looked up yet
+	 */
+	public static String getHostName(InetAddress address) {
+		CacheEntry entry = cacheMap.get(address);
+		if(entry != null && entry.expiry > System.currentTimeMillis()) return entry.hostName;
+		
+		//Looking up the hostname in the background
+		if(pendingMap.putIfAbsent(address, Boolean.TRUE) == null) {
+			try {
+				executor.execute(() -> {
+					try {
+						//Making room by dropping everything, rather than tracking the age of every entry
+						if(cacheMap.size() >= cacheLimit) cacheMap.clear();
+						cacheMap.put(address, new CacheEntry(address.getHostName(), System.currentTimeMillis() + cacheTTL));
+					} finally {
+						pendingMap.remove(address);
+					}
+				});
+			} catch(RejectedExecutionException exception) {
+				pendingMap.remove(address);
+			}
+		}
+		
+		//Returning the expired hostname until the new one is ready
+		return entry != null ? entry.hostName : null;
+	}
+	
+	private static class CacheEntry {
+		final String hostName;
+		final long expiry;
+		
+		CacheEntry(String hostName, long expiry) {
+			this.hostName = hostName;
+			this.expiry = expiry;
+		}
+	}
+}
\ No newline at end of file
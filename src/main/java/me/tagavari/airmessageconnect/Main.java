@@ -3,12 +3,31 @@ package me.tagavari.airmessageconnect;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.firebase.FirebaseApp;
 import com.google.firebase.FirebaseOptions;
+import me.tagavari.airmessageconnect.capture.TrafficCapture;
+import me.tagavari.airmessageconnect.cluster.ClusterNode;
+import me.tagavari.airmessageconnect.cluster.HashRing;
+import me.tagavari.airmessageconnect.document.DocumentUser;
+import me.tagavari.airmessageconnect.metrics.MessageTracer;
+import me.tagavari.airmessageconnect.metrics.RelayMetrics;
+import me.tagavari.airmessageconnect.push.CircuitBreaker;
+import me.tagavari.airmessageconnect.push.FakePushSender;
+import me.tagavari.airmessageconnect.push.FirebasePushSender;
+import me.tagavari.airmessageconnect.push.PushCoalescer;
+import me.tagavari.airmessageconnect.push.PushDispatcher;
+import me.tagavari.airmessageconnect.push.PushSender;
+import me.tagavari.airmessageconnect.snapshot.SnapshotReconciler;
+import me.tagavari.airmessageconnect.snapshot.StateSnapshot;
+import me.tagavari.airmessageconnect.storage.CachedStorageBackend;
+import me.tagavari.airmessageconnect.storage.DelayedStorageBackend;
+import me.tagavari.airmessageconnect.storage.FirestoreStorageBackend;
+import me.tagavari.airmessageconnect.storage.LocalStorageBackend;
+import me.tagavari.airmessageconnect.storage.StorageBackend;
+import me.tagavari.airmessageconnect.structure.ConnectionCollection;
+import me.tagavari.airmessageconnect.tls.CertificateWatcher;
+import me.tagavari.airmessageconnect.tls.TLSServerFactory;
 import org.java_websocket.WebSocket;
-import org.java_websocket.server.CustomSSLWebSocketServerFactory;
-import org.java_websocket.server.WebSocketServer;
 
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLEngine;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -16,36 +35,56 @@ import java.io.StringWriter;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.file.Files;
+import java.security.SecureRandom;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.*;
 
 public class Main {
 	public static final String VERSION = "1.0.3";
-	private static final int port = 1259;
+	private static final int defaultPort = 1259;
+	private static final String defaultRelayID = "relay-zero";
 	
 	private static final File logFile = new File("logs", "latest.log");
 	private static final Formatter loggerFormatter = getLoggerFormatter();
 	
-	private static Logger logger;
+	private static Logger logger = Logger.getGlobal();
+	private static AsyncLogHandler logHandler;
 	
 	private static final String argUnlinked = "unlinked";
 	private static final String argInsecure = "insecure";
 	private static boolean isUnlinked = false;
 	private static boolean isInsecure = false;
 	
+	private static String relayID = defaultRelayID;
+	
 	public static void main(String[] args) {
+		start(args);
+	}
+	
+	/**
+	 * Sets up and starts the relay, configured from the command-line arguments and the environment
+	 * @param args The command-line arguments
+	 * @return The server, which may still be binding to its port, or NULL if the relay couldn't be set up
+	 */
+	public static Server start(String[] args) {
 		//Initializing the logger
-		logger = Logger.getGlobal();
-		logger.setLevel(Level.FINEST);
 		for(Handler handler : logger.getParent().getHandlers()) logger.getParent().removeHandler(handler);
+		List<Handler> logHandlerList = new ArrayList<>();
 		{
 			ConsoleHandler handler = new ConsoleHandler();
 			handler.setLevel(Level.FINEST);
 			handler.setFormatter(loggerFormatter);
-			logger.addHandler(handler);
+			logHandlerList.add(handler);
 		}
+		boolean isLogFileAvailable;
 		try {
 			if(!logFile.getParentFile().exists()) logFile.getParentFile().mkdir();
 			else if(logFile.exists()) Files.move(logFile.toPath(), FileHelper.findFreeFile(logFile.getParentFile(), new SimpleDateFormat("YYYY-MM-dd").format(new Date()) + ".log", "-", 1).toPath());
@@ -53,11 +92,30 @@ public class Main {
 			FileHandler handler = new FileHandler(logFile.getPath());
 			handler.setLevel(Level.FINEST);
 			handler.setFormatter(loggerFormatter);
-			logger.addHandler(handler);
+			logHandlerList.add(handler);
+			isLogFileAvailable = true;
 		} catch(IOException exception) {
-			Main.getLogger().log(Level.SEVERE, "Failed to initialize log file - continuing without saving logs to disk");
+			isLogFileAvailable = false;
 		}
 		
+		//Writing logs on a background thread, so that logging never blocks a socket thread
+		logHandler = new AsyncLogHandler((int) getEnvironmentLong("LOG_BUFFER", 8192), logHandlerList.toArray(new Handler[0]));
+		logger.addHandler(logHandler);
+		RelayMetrics.registry.counter("relay_log_records_dropped_total", "Log records dropped because the log writer couldn't keep up", logHandler::getDroppedCount);
+		if(!isLogFileAvailable) Main.getLogger().log(Level.SEVERE, "Failed to initialize log file - continuing without saving logs to disk");
+		
+		//Skipping disabled levels at the call site
+		String logLevel = System.getenv("LOG_LEVEL");
+		Level level = Level.FINEST;
+		if(logLevel != null) {
+			try {
+				level = Level.parse(logLevel.trim().toUpperCase());
+			} catch(IllegalArgumentException exception) {
+				Main.getLogger().log(Level.WARNING, "Invalid value for LOG_LEVEL: " + logLevel + " - using default " + level);
+			}
+		}
+		logger.setLevel(level);
+		
 		Main.getLogger().log(Level.INFO, "Starting AirMessage Connect version " + VERSION);
 		
 		//Reading the arguments
@@ -75,6 +133,11 @@ public class Main {
 			}
 		}
 		
+		//Issuing stateless session tickets, which JSSE reads once before the first TLS connection (including Firebase's)
+		if(!isInsecure() && System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null) {
+			System.setProperty("jdk.tls.server.enableSessionTicketExtension", String.valueOf(!"false".equals(System.getenv("TLS_SESSION_TICKETS"))));
+		}
+		
 		if(!isUnlinked()) {
 			//Initializing Firebase
 			try {
@@ -85,49 +148,380 @@ public class Main {
 				FirebaseApp.initializeApp(options);
 			} catch(IOException exception) {
 				Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
-				return;
+				return null;
 			}
 			Main.getLogger().log(Level.INFO, "Firebase initialized");
-			
-			//Initializing data utils
-			StorageUtils.instance().initialize();
+		}
+		
+		//Initializing storage
+		StorageBackend storageBackend;
+		String localStoragePath = System.getenv("STORAGE_LOCAL_FILE");
+		if(localStoragePath != null) {
+			try {
+				storageBackend = new LocalStorageBackend(new File(localStoragePath));
+			} catch(IOException exception) {
+				Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
+				return null;
+			}
+			Main.getLogger().log(Level.INFO, "Local storage initialized at " + localStoragePath);
+		} else if(!isUnlinked()) {
+			storageBackend = new FirestoreStorageBackend();
 			Main.getLogger().log(Level.INFO, "Firestore initialized");
+		} else {
+			storageBackend = null;
+		}
+		
+		if(storageBackend != null) {
+			//Adding artificial latency to storage operations
+			String storageLatency = System.getenv("STORAGE_LATENCY");
+			if(storageLatency != null) {
+				try {
+					long[] latencyRange = parseRange(storageLatency);
+					storageBackend = new DelayedStorageBackend(storageBackend, latencyRange[0], latencyRange[1]);
+				} catch(IllegalArgumentException exception) {
+					Main.getLogger().log(Level.SEVERE, "Invalid STORAGE_LATENCY value: " + storageLatency);
+					return null;
+				}
+				Main.getLogger().log(Level.INFO, "Storage latency set to " + storageLatency + " ms");
+			}
+		}
+		
+		//Caching user documents to be saved in snapshots
+		String snapshotPath = System.getenv("SNAPSHOT_FILE");
+		File snapshotFile = snapshotPath != null ? new File(snapshotPath) : null;
+		CachedStorageBackend cachedStorageBackend;
+		if(snapshotFile != null && storageBackend != null) {
+			cachedStorageBackend = new CachedStorageBackend(storageBackend);
+			storageBackend = cachedStorageBackend;
+		} else {
+			cachedStorageBackend = null;
+		}
+		StorageUtils.initialize(storageBackend);
+		
+		//Initializing push notifications
+		PushSender pushSender;
+		if("fake".equals(System.getenv("PUSH_SENDER"))) {
+			String pushLatency = System.getenv("PUSH_FAKE_LATENCY");
+			try {
+				long[] latencyRange = pushLatency != null ? parseRange(pushLatency) : new long[]{50, 150};
+				pushSender = new FakePushSender(latencyRange[0], latencyRange[1],
+						getEnvironmentLong("PUSH_FAKE_UNREGISTERED_RATE", 0) / 100D,
+						getEnvironmentLong("PUSH_FAKE_RETRYABLE_RATE", 0) / 100D,
+						getEnvironmentLong("PUSH_FAKE_FAILURE_RATE", 0) / 100D);
+			} catch(IllegalArgumentException exception) {
+				Main.getLogger().log(Level.SEVERE, "Invalid fake push sender configuration: " + exception.getMessage());
+				return null;
+			}
+			Main.getLogger().log(Level.INFO, "Using fake push sender");
+		} else if(!isUnlinked()) {
+			pushSender = new FirebasePushSender();
+		} else {
+			pushSender = null;
 		}
 		
+		if(pushSender != null) {
+			long coalesceWindow = getEnvironmentLong("PUSH_COALESCE_WINDOW", 0);
+			long coalesceMaxDelay = getEnvironmentLong("PUSH_COALESCE_MAX_DELAY", coalesceWindow * 4);
+			int coalescePayloadLimit = (int) getEnvironmentLong("PUSH_COALESCE_PAYLOADS", 1);
+			int pushQueueCapacity = (int) getEnvironmentLong("PUSH_QUEUE_CAPACITY", 10000);
+			int pushConcurrency = (int) getEnvironmentLong("PUSH_CONCURRENCY", 4);
+			int pushRetryLimit = (int) getEnvironmentLong("PUSH_RETRY_LIMIT", 4);
+			long breakerThreshold = getEnvironmentLong("PUSH_BREAKER_THRESHOLD", 50);
+			long breakerOpenTime = getEnvironmentLong("PUSH_BREAKER_OPEN_TIME", 30 * 1000);
+			try {
+				//Opening the breaker once enough messages within 10 seconds fail
+				CircuitBreaker circuitBreaker = new CircuitBreaker(breakerThreshold / 100D, 20, 10 * 1000, breakerOpenTime);
+				PushDispatcher pushDispatcher = new PushDispatcher(pushSender, pushQueueCapacity, pushConcurrency, pushRetryLimit, circuitBreaker);
+				PushUtils.initialize(new PushCoalescer(coalesceWindow, coalesceMaxDelay, coalescePayloadLimit, pushDispatcher::submit), pushDispatcher);
+			} catch(IllegalArgumentException exception) {
+				Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
+				return null;
+			}
+			if(coalesceWindow > 0) Main.getLogger().log(Level.INFO, "Coalescing push notifications within " + coalesceWindow + " ms (up to " + coalesceMaxDelay + " ms, " + coalescePayloadLimit + " payloads)");
+		}
+		
+		//Initializing resume tokens
+		long resumeTokenLifetime = getEnvironmentLong("RESUME_TOKEN_LIFETIME", 60 * 60 * 1000);
+		if(resumeTokenLifetime > 0) {
+			String resumeTokenSecret = System.getenv("RESUME_TOKEN_SECRET");
+			byte[] secret;
+			if(resumeTokenSecret != null) {
+				try {
+					secret = Base64.getDecoder().decode(resumeTokenSecret.trim());
+				} catch(IllegalArgumentException exception) {
+					Main.getLogger().log(Level.SEVERE, "Invalid resume token secret: " + exception.getMessage());
+					return null;
+				}
+			} else {
+				//Tokens from a random secret only work on this relay, until it restarts
+				secret = new byte[32];
+				new SecureRandom().nextBytes(secret);
+			}
+			
+			ResumeTokenUtils.initialize(secret, resumeTokenLifetime, getEnvironmentLong("RESUME_CONNECTION_WINDOW", 30 * 1000));
+		}
+		
+		//Reading the relay's identity
+		String relayIDValue = System.getenv("RELAY_ID");
+		if(relayIDValue != null && !relayIDValue.isBlank()) relayID = relayIDValue.trim();
+		int port = (int) getEnvironmentLong("PORT", defaultPort);
+		Main.getLogger().log(Level.INFO, "Running as relay " + relayID + " on port " + port);
+		
 		//Creating the server
-		WebSocketServer server = new Server(new InetSocketAddress(port));
+		Server server = new Server(new InetSocketAddress(port));
+		if(PushUtils.getDispatcher() != null) PushUtils.getDispatcher().setGroupLookup(server.getConnectionCollection()::getGroup);
+		try {
+			server.setDrainRate(getEnvironmentLong("DRAIN_RATE", 100));
+			server.setDrainDeadline(getEnvironmentLong("DRAIN_DEADLINE", 20) * 1000);
+			MessageTracer.setSampleInterval((int) getEnvironmentLong("TRACE_SAMPLE_INTERVAL", 0));
+			server.setServerGracePeriod(getEnvironmentLong("SERVER_GRACE_PERIOD", 0), (int) getEnvironmentLong("SERVER_GRACE_BUFFER", 1024 * 1024));
+			server.setHealthLimits(new HealthLimits(
+					getEnvironmentLong("HEALTH_MAX_CONNECTIONS", 0),
+					getEnvironmentLong("HEALTH_MAX_GROUPS", 0),
+					getEnvironmentLong("HEALTH_MAX_HANDSHAKES", 0),
+					getEnvironmentLong("HEALTH_MAX_BUFFERED_BYTES", 0),
+					getEnvironmentLong("HEALTH_MIN_HEAP_HEADROOM", 0),
+					(int) getEnvironmentLong("HEALTH_DEGRADED_PERCENT", 80)));
+		} catch(IllegalArgumentException exception) {
+			Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
+			return null;
+		}
+		
+		//Linking up with the other relays of the cluster
+		String relayPeers = System.getenv("RELAY_PEERS");
+		Map<String, InetSocketAddress> peerMap = null;
+		if(relayPeers != null) {
+			try {
+				//Requiring a secret, since linked relays can add clients to any group
+				String clusterSecret = System.getenv("CLUSTER_SECRET");
+				if(clusterSecret == null) throw new IllegalArgumentException("CLUSTER_SECRET must be set to link up with other relays");
+				byte[] secret = Base64.getDecoder().decode(clusterSecret.trim());
+				
+				//Accepting links on the address listed for this relay, unless another one is set
+				peerMap = ClusterNode.parsePeers(relayPeers, null);
+				InetSocketAddress ownAddress = peerMap.remove(relayID);
+				String bindAddress = System.getenv("CLUSTER_BIND_ADDRESS");
+				if(bindAddress == null) {
+					if(ownAddress == null) throw new IllegalArgumentException("CLUSTER_BIND_ADDRESS must be set if RELAY_PEERS doesn't list this relay");
+					bindAddress = ownAddress.getHostString();
+				}
+				
+				ClusterNode clusterNode = new ClusterNode(relayID, new InetSocketAddress(bindAddress.trim(), (int) getEnvironmentLong("CLUSTER_PORT", port + 1)), peerMap, secret, server);
+				server.setClusterNode(clusterNode);
+				clusterNode.start();
+			} catch(IllegalArgumentException | IOException exception) {
+				Main.getLogger().log(Level.SEVERE, "Failed to set up cluster: " + exception.getMessage(), exception);
+				return null;
+			}
+		}
+		
+		//Loading the ring of relays to redirect groups to
+		String ringPath = System.getenv("RELAY_RING_FILE");
+		HashRing hashRing = null;
+		if(ringPath != null) {
+			try {
+				hashRing = HashRing.fromFile(new File(ringPath));
+			} catch(IOException exception) {
+				Main.getLogger().log(Level.SEVERE, "Failed to read relay ring " + ringPath + ": " + exception.getMessage(), exception);
+				return null;
+			}
+		} else if("redirect".equals(System.getenv("RELAY_ROUTING")) && peerMap != null) {
+			//Building the ring from the cluster's relays
+			List<HashRing.Node> nodeList = new ArrayList<>();
+			nodeList.add(new HashRing.Node(relayID, null));
+			for(String peerID : peerMap.keySet()) nodeList.add(new HashRing.Node(peerID, null));
+			hashRing = new HashRing(nodeList);
+		}
+		if(hashRing != null) {
+			if(!hashRing.containsNode(relayID)) Main.getLogger().log(Level.WARNING, "Relay " + relayID + " is not part of the relay ring - all groups will be redirected");
+			server.setHashRing(hashRing);
+			Main.getLogger().log(Level.INFO, "Redirecting groups across " + hashRing.getNodeList().size() + " relays");
+		}
+		
+		//Capturing traffic to be replayed later
+		String capturePath = System.getenv("CAPTURE_FILE");
+		TrafficCapture trafficCapture;
+		if(capturePath != null) {
+			long captureSizeLimit = getEnvironmentLong("CAPTURE_SIZE_LIMIT", 1024) * 1024 * 1024;
+			boolean isCaptureRedacted = !"full".equals(System.getenv("CAPTURE_PAYLOADS"));
+			try {
+				trafficCapture = new TrafficCapture(new File(capturePath), (int) Math.min(captureSizeLimit, Integer.MAX_VALUE), isCaptureRedacted);
+			} catch(IllegalArgumentException | IOException exception) {
+				Main.getLogger().log(Level.SEVERE, "Failed to set up traffic capture: " + exception.getMessage(), exception);
+				return null;
+			}
+			server.setTrafficCapture(trafficCapture);
+			Main.getLogger().log(Level.INFO, "Capturing traffic to " + capturePath + (isCaptureRedacted ? " with payloads redacted" : " with full payloads"));
+		} else {
+			trafficCapture = null;
+		}
+		
+		//Restoring the state from the last shutdown
+		if(snapshotFile != null && snapshotFile.exists()) {
+			restoreSnapshot(snapshotFile, server.getConnectionCollection(), cachedStorageBackend);
+		}
 		
 		if(!Main.isInsecure()) {
 			//Loading the SSL context
 			String certificatePath = System.getenv("SERVER_CERTIFICATE");
 			if(certificatePath == null) {
 				Main.getLogger().log(Level.SEVERE, "No variable SERVER_CERTIFICATE provided");
-				return;
+				return null;
 			}
 			
 			SSLContext sslContext = SecurityUtils.loadPEM(new File(certificatePath));
 			if(sslContext == null) {
-				return;
-			} else {
-				SSLEngine engine = sslContext.createSSLEngine();
-				String[] ciphers = engine.getEnabledCipherSuites();
-				server.setWebSocketFactory(new CustomSSLWebSocketServerFactory(sslContext, new String[]{"TLSv1.2"}, ciphers));
+				return null;
+			}
+			
+			//Accepting TLS 1.3 and 1.2 by default, and keeping sessions around for clients to resume
+			String tlsProtocols = System.getenv("TLS_PROTOCOLS");
+			String[] protocols = tlsProtocols != null ? tlsProtocols.trim().split("\\s*,\\s*") : new String[]{"TLSv1.3", "TLSv1.2"};
+			int sessionCacheSize = (int) getEnvironmentLong("TLS_SESSION_CACHE_SIZE", 20480);
+			int sessionTimeout = (int) getEnvironmentLong("TLS_SESSION_TIMEOUT", 24 * 60 * 60);
+			int handshakeThreads = (int) Math.max(getEnvironmentLong("TLS_HANDSHAKE_THREADS", Runtime.getRuntime().availableProcessors()), 1);
+			
+			TLSServerFactory tlsServerFactory;
+			try {
+				tlsServerFactory = new TLSServerFactory(sslContext, protocols, sessionCacheSize, sessionTimeout, handshakeThreads);
+			} catch(IllegalArgumentException exception) {
+				Main.getLogger().log(Level.SEVERE, "Invalid value for TLS_PROTOCOLS: " + exception.getMessage());
+				return null;
+			}
+			server.setWebSocketFactory(tlsServerFactory);
+			Main.getLogger().log(Level.INFO, "Accepting " + String.join(", ", tlsServerFactory.getProtocols()) + " with session tickets " + ("true".equals(System.getProperty("jdk.tls.server.enableSessionTicketExtension")) ? "enabled" : "disabled"));
+			
+			//Picking up renewed certificates without restarting
+			long certificateReloadInterval = getEnvironmentLong("CERTIFICATE_RELOAD_INTERVAL", 60);
+			if(certificateReloadInterval > 0) {
+				new CertificateWatcher(new File(certificatePath), certificateReloadInterval * 1000, tlsServerFactory).start();
 			}
 		}
 		
+		//Exiting once a drain requested over HTTP finishes, which runs the shutdown hook below
+		server.setDrainFinishedListener(() -> System.exit(0));
+		
 		//Starting the server
 		server.setReuseAddr(true);
 		server.start();
 		
 		//Adding a shutdown hook
-		/* Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-			//Stopping the server
-			try {
-				server.stop();
-			} catch(IOException | InterruptedException exception) {
-				Main.getLogger().log(Level.WARNING, exception.getMessage(), exception);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			if(snapshotFile != null) {
+				//Stopping the server, leaving groups in place to be saved
+				try {
+					server.stopPreservingGroups();
+				} catch(InterruptedException exception) {
+					Main.getLogger().log(Level.WARNING, exception.getMessage(), exception);
+				}
+				
+				saveSnapshot(snapshotFile, server.getConnectionCollection(), cachedStorageBackend);
+			} else {
+				//Moving groups to other relays a few at a time
+				server.drain();
+				try {
+					server.stop();
+				} catch(InterruptedException exception) {
+					Main.getLogger().log(Level.WARNING, exception.getMessage(), exception);
+				}
+			}
+			
+			//Finishing the traffic capture once no more traffic can arrive
+			if(trafficCapture != null) {
+				try {
+					trafficCapture.close();
+				} catch(IOException exception) {
+					Main.getLogger().log(Level.WARNING, "Failed to close traffic capture: " + exception.getMessage(), exception);
+				}
 			}
-		})); */
+		}));
+		
+		return server;
+	}
+	
+	/**
+	 * Loads a snapshot saved at the last shutdown, and starts reconciling it with storage in the background
+	 */
+	private static void restoreSnapshot(File snapshotFile, ConnectionCollection connectionCollection, CachedStorageBackend cachedStorageBackend) {
+		long startTime = System.currentTimeMillis();
+		
+		StateSnapshot snapshot;
+		try {
+			snapshot = StateSnapshot.read(snapshotFile);
+		} catch(IOException exception) {
+			Main.getLogger().log(Level.WARNING, "Failed to read snapshot " + snapshotFile.getPath() + ": " + exception.getMessage(), exception);
+			return;
+		} finally {
+			//Making sure the same snapshot is never restored twice
+			snapshotFile.delete();
+		}
+		
+		connectionCollection.restoreGroups(snapshot.getGroups());
+		if(cachedStorageBackend != null) cachedStorageBackend.restoreDocuments(snapshot.getDocuments());
+		Main.getLogger().log(Level.INFO, "Restored " + snapshot.getGroups().size() + " groups and " + snapshot.getDocuments().size() + " documents from snapshot taken " + (startTime - snapshot.getTimestamp()) / 1000 + " s ago in " + (System.currentTimeMillis() - startTime) + " ms");
+		
+		new SnapshotReconciler(connectionCollection, snapshot, cachedStorageBackend).start();
+	}
+	
+	/**
+	 * Saves the state of the relay to a snapshot, or writes out
+	 * modified token lists directly if the snapshot can't be saved
+	 */
+	private static void saveSnapshot(File snapshotFile, ConnectionCollection connectionCollection, CachedStorageBackend cachedStorageBackend) {
+		long startTime = System.currentTimeMillis();
+		
+		List<StateSnapshot.Group> groups = connectionCollection.getGroupStates();
+		Map<String, DocumentUser> documents = cachedStorageBackend != null ? cachedStorageBackend.getCachedDocuments() : Collections.emptyMap();
+		StateSnapshot snapshot = new StateSnapshot(startTime, groups, documents);
+		
+		try {
+			snapshot.write(snapshotFile);
+			Main.getLogger().log(Level.INFO, "Saved " + groups.size() + " groups and " + documents.size() + " documents to snapshot in " + (System.currentTimeMillis() - startTime) + " ms");
+		} catch(IOException exception) {
+			Main.getLogger().log(Level.SEVERE, "Failed to save snapshot " + snapshotFile.getPath() + ": " + exception.getMessage(), exception);
+			
+			//Falling back to saving token lists to storage
+			if(!StorageUtils.isAvailable()) return;
+			for(StateSnapshot.Group group : groups) {
+				if(!group.isModified()) continue;
+				try {
+					StorageUtils.instance().updateFCMTokens(group.getGroupID(), group.getFCMTokenList());
+				} catch(ExecutionException | InterruptedException storageException) {
+					Main.getLogger().log(Level.SEVERE, storageException.getMessage(), storageException);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Parses a range of numbers in the form of "min-max", or a single number for both
+	 * @param value The string to parse
+	 * @return An array of the minimum and maximum values
+	 * @throws NumberFormatException If the string is not a valid range
+	 */
+	private static long[] parseRange(String value) {
+		String[] range = value.split("-", 2);
+		long min = Long.parseLong(range[0].trim());
+		long max = range.length > 1 ? Long.parseLong(range[1].trim()) : min;
+		return new long[]{min, max};
+	}
+	
+	/**
+	 * Reads a numeric value from an environment variable
+	 * @param name The name of the environment variable
+	 * @param defaultValue The value to use if the variable isn't set or isn't valid
+	 * @return The value of the variable
+	 */
+	private static long getEnvironmentLong(String name, long defaultValue) {
+		String value = System.getenv(name);
+		if(value == null) return defaultValue;
+		
+		try {
+			return Long.parseLong(value.trim());
+		} catch(NumberFormatException exception) {
+			Main.getLogger().log(Level.WARNING, "Invalid value for " + name + ": " + value + " - using default " + defaultValue);
+			return defaultValue;
+		}
 	}
 	
 	public static Logger getLogger() {
@@ -135,7 +529,7 @@ public class Main {
 	}
 	
 	public static String getRelayID() {
-		return "relay-zero";
+		return relayID;
 	}
 	
 	private static Formatter getLoggerFormatter() {
@@ -166,7 +560,10 @@ public class Main {
 		if(remoteSocketAddress == null) return "unknown";
 		InetAddress address = remoteSocketAddress.getAddress();
 		if(address == null) return "unknown";
-		return address.getHostAddress() + " (" + address.getHostName() + ")";
+		
+		//Leaving out the hostname until it's been looked up
+		String hostName = HostnameResolver.getHostName(address);
+		return hostName != null ? address.getHostAddress() + " (" + hostName + ")" : address.getHostAddress();
 	}
 	
 	public static boolean isUnlinked() {
@@ -0,0 +1,53 @@
+package me.tagavari.airmessageconnect;
+
+import me.tagavari.airmessageconnect.push.PushCoalescer;
+import me.tagavari.airmessageconnect.push.PushDispatcher;
+import me.tagavari.airmessageconnect.structure.ConnectionGroup;
+
+import java.util.Map;
+
+/**
+ * Holds the pipeline that push notifications are sent through
+ */
+public class PushUtils {
+	//The entry point of the push pipeline
+	private static PushCoalescer pushCoalescer = null;
+	
+	//The dispatcher that sends out notifications
+	private static PushDispatcher pushDispatcher = null;
+	
+	/**
+	 * Sets the pipeline to send push notifications through
+	 * @param pushCoalescer The coalescer that accepts new notifications
+	 * @param pushDispatcher The dispatcher that sends out notifications
+	 */
+	public static void initialize(PushCoalescer pushCoalescer, PushDispatcher pushDispatcher) {
+		PushUtils.pushCoalescer = pushCoalescer;
+		PushUtils.pushDispatcher = pushDispatcher;
+	}
+	
+	/**
+	 * Checks if push notifications can be sent
+	 * @return TRUE if push notifications are available
+	 */
+	public static boolean isAvailable() {
+		return pushCoalescer != null;
+	}
+	
+	/**
+	 * Gets the dispatcher that sends out notifications
+	 * @return The push dispatcher, or NULL if push notifications are unavailable
+	 */
+	public static PushDispatcher getDispatcher() {
+		return pushDispatcher;
+	}
+	
+	/**
+	 * Sends a push notification to the offline devices of a group
+	 * @param group The group to notify
+	 * @param data The notification's data
+	 */
+	public static void notify(ConnectionGroup group, Map<String, String> data) {
+		pushCoalescer.submit(group, data);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,145 @@
+package me.tagavari.airmessageconnect;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+/**
+ * Issues and checks resume tokens, which let clients reconnect without verifying their ID token again
+ *
+ * A token is [byte version][long expiry time][long group epoch][int connection ID][group ID],
+ * followed by an HMAC-SHA256 signature of those fields, each encoded as URL-safe base64 and joined with a period.
+ * The group epoch is random for every instance of a group, so that a token can only claim a connection ID
+ * from the group instance that issued it, and not one given to another device after the group was recreated.
+ */
+public class ResumeTokenUtils {
+	private static final String algorithm = "HmacSHA256";
+	
+	//The version of the token format, which never starts with the first byte of an older token's expiry time
+	private static final byte tokenVersion = 1;
+	private static final int tokenHeaderLength = 1 + Long.BYTES * 2 + Integer.BYTES;
+	
+	private static SecretKeySpec secretKey = null;
+	private static long tokenLifetime;
+	private static long connectionWindow;
+	
+	/**
+	 * Enables resume tokens
+	 * @param secret The key to sign tokens with, which must be shared by all relays that should accept each other's tokens
+	 * @param tokenLifetime How long tokens are valid for after they are issued, in milliseconds
+	 * @param connectionWindow How long a disconnected client's connection ID is held for it, in milliseconds
+	 */
+	public static void initialize(byte[] secret, long tokenLifetime, long connectionWindow) {
+		ResumeTokenUtils.secretKey = new SecretKeySpec(secret, algorithm);
+		ResumeTokenUtils.tokenLifetime = tokenLifetime;
+		ResumeTokenUtils.connectionWindow = connectionWindow;
+	}
+	
+	/**
+	 * Checks if resume tokens are enabled
+	 * @return TRUE if resume tokens are enabled
+	 */
+	public static boolean isAvailable() {
+		return secretKey != null;
+	}
+	
+	/**
+	 * Gets how long a disconnected client's connection ID is held for it
+	 * @return The connection window in milliseconds
+	 */
+	public static long getConnectionWindow() {
+		return connectionWindow;
+	}
+	
+	/**
+	 * Issues a new resume token for a client
+	 * @param groupID The group ID of the client
+	 * @param groupEpoch The epoch of the group instance the client is connected to
+	 * @param connectionID The connection ID of the client
+	 * @return The resume token
+	 */
+	public static String issue(String groupID, long groupEpoch, int connectionID) {
+		byte[] groupIDBytes = groupID.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer payload = ByteBuffer.allocate(tokenHeaderLength + groupIDBytes.length);
+		payload.put(tokenVersion);
+		payload.putLong(System.currentTimeMillis() + tokenLifetime);
+		payload.putLong(groupEpoch);
+		payload.putInt(connectionID);
+		payload.put(groupIDBytes);
+		
+		Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+		return encoder.encodeToString(payload.array()) + "." + encoder.encodeToString(sign(payload.array()));
+	}
+	
+	/**
+	 * Checks a resume token
+	 * @param token The token provided by the client
+	 * @return The details of the token, or NULL if the token is invalid or expired
+	 */
+	public static ResumeToken verify(String token) {
+		int separatorIndex = token.indexOf('.');
+		if(separatorIndex == -1) return null;
+		
+		byte[] payload, signature;
+		try {
+			Base64.Decoder decoder = Base64.getUrlDecoder();
+			payload = decoder.decode(token.substring(0, separatorIndex));
+			signature = decoder.decode(token.substring(separatorIndex + 1));
+		} catch(IllegalArgumentException exception) {
+			return null;
+		}
+		
+		if(payload.length <= tokenHeaderLength || payload[0] != tokenVersion) return null;
+		if(!MessageDigest.isEqual(sign(payload), signature)) return null;
+		
+		ByteBuffer buffer = ByteBuffer.wrap(payload, 1, payload.length - 1);
+		long expiry = buffer.getLong();
+		if(System.currentTimeMillis() > expiry) return null;
+		long groupEpoch = buffer.getLong();
+		int connectionID = buffer.getInt();
+		String groupID = new String(payload, buffer.position(), buffer.remaining(), StandardCharsets.UTF_8);
+		
+		return new ResumeToken(groupID, groupEpoch, connectionID);
+	}
+	
+	private static byte[] sign(byte[] payload) {
+		try {
+			Mac mac = Mac.getInstance(algorithm);
+			mac.init(secretKey);
+			return mac.doFinal(payload);
+		} catch(GeneralSecurityException exception) {
+			throw new IllegalStateException(exception);
+		}
+	}
+	
+	/**
+	 * The details of a valid resume token
+	 */
+	public static class ResumeToken {
+		private final String groupID;
+		private final long groupEpoch;
+		private final int connectionID;
+		
+		public ResumeToken(String groupID, long groupEpoch, int connectionID) {
+			this.groupID = groupID;
+			this.groupEpoch = groupEpoch;
+			this.connectionID = connectionID;
+		}
+		
+		public String getGroupID() {
+			return groupID;
+		}
+		
+		public long getGroupEpoch() {
+			return groupEpoch;
+		}
+		
+		public int getConnectionID() {
+			return connectionID;
+		}
+	}
+}
\ No newline at end of file
@@ -1,11 +1,19 @@
 package me.tagavari.airmessageconnect;
 
+import me.tagavari.airmessageconnect.capture.TrafficCapture;
+import me.tagavari.airmessageconnect.cluster.ClusterNode;
+import me.tagavari.airmessageconnect.cluster.HashRing;
+import me.tagavari.airmessageconnect.cluster.RemoteClientConnection;
 import me.tagavari.airmessageconnect.communicate.Communications;
 import me.tagavari.airmessageconnect.communicate.HttpDraft;
 import me.tagavari.airmessageconnect.communicate.Protocol;
+import me.tagavari.airmessageconnect.events.HandshakeEvent;
+import me.tagavari.airmessageconnect.metrics.MessageTracer;
+import me.tagavari.airmessageconnect.metrics.RelayMetrics;
 import me.tagavari.airmessageconnect.structure.ConnectionCollection;
 import me.tagavari.airmessageconnect.structure.ConnectionGroup;
 import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
 import org.java_websocket.drafts.Draft;
 import org.java_websocket.drafts.Draft_6455;
 import org.java_websocket.exceptions.InvalidDataException;
@@ -19,72 +27,184 @@ import java.net.URLDecoder;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class Server extends WebSocketServer {
+	//The largest WebSocket message accepted from a client or server, which fits the attachment chunks that clients and servers send
+	public static final int messageSizeLimit = 4 * 1024 * 1024;
+	
 	//Creating the state values
 	private final ConnectionCollection connectionCollection = new ConnectionCollection();
 	
+	//Set when the server is shutting down and its groups are to be saved in a snapshot
+	private volatile boolean isPreservingGroups = false;
+	
+	//The link to the other relays of the cluster, or NULL if this relay is running alone
+	private ClusterNode clusterNode = null;
+	
+	//The ring that decides which relay each group lives on, or NULL if groups can live on any relay
+	private HashRing hashRing = null;
+	
+	//Set when the server no longer accepts connections, and is closing its groups
+	private volatile boolean isDraining = false;
+	private final AtomicBoolean isDrainStarted = new AtomicBoolean(false);
+	private final Object drainLock = new Object();
+	private long drainRate = 100;
+	private long drainDeadline = 20 * 1000;
+	
+	//Called once a drain started with /drain finishes, or NULL to keep running
+	private volatile Runnable drainFinishedListener = null;
+	
+	//How long to keep a group and its clients after its server disconnects, or 0 to close it right away
+	private long serverGracePeriod = 0;
+	private int serverGraceByteLimit = 1024 * 1024;
+	
+	//The amount of handshakes being verified right now
+	private final AtomicInteger handshakeCount = new AtomicInteger();
+	
+	//The load at which /health reports this relay as degraded or overloaded
+	private HealthLimits healthLimits = HealthLimits.unlimited();
+	
+	//The last count of bytes waiting to be written, which is reused for a short while so that health checks and scrapes don't each walk every connection
+	private static final long bufferedByteCountLifetime = 1000L * 1000 * 1000;
+	private final Object bufferedByteCountLock = new Object();
+	private long bufferedByteCount = 0;
+	private long bufferedByteCountTime = 0;
+	private boolean isBufferedByteCountSet = false;
+	
+	//Records traffic to be replayed later, or NULL if traffic isn't captured
+	private volatile TrafficCapture trafficCapture = null;
+	
+	//Released once the server is listening for connections
+	private final CountDownLatch startLatch = new CountDownLatch(1);
+	
+	//Runs the timers of server grace periods and held client connection IDs
+	private final ScheduledExecutorService timerExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "ServerTimer");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
 	public Server(InetSocketAddress address) {
-		super(address, Arrays.asList(new HttpDraft(), new Draft_6455()));
+		super(address, Arrays.asList(new HttpDraft(), new Draft_6455(Collections.emptyList(), messageSizeLimit)));
 		
 		setConnectionLostTimeout(10 * 60); //Every 10 mins
+		
+		RelayMetrics.registry.gauge("relay_connections", "Open WebSocket connections", () -> getConnections().size());
+		RelayMetrics.registry.gauge("relay_groups", "Active groups", connectionCollection::getGroupCount);
+		RelayMetrics.registry.gauge("relay_handshakes_in_flight", "Handshakes being verified", handshakeCount::get);
+		RelayMetrics.registry.gauge("relay_buffered_bytes", "Bytes waiting to be written to connections", this::getBufferedByteCount);
 	}
 	
 	@Override
 	public void onStart() {
 		Main.getLogger().log(Level.INFO, "WebSocket server started");
+		startLatch.countDown();
+	}
+	
+	/**
+	 * Waits for the server to start listening for connections
+	 * @param timeout The maximum time to wait
+	 * @param unit The unit of the timeout
+	 * @return TRUE if the server started, or FALSE if it didn't start in time
+	 */
+	public boolean awaitStart(long timeout, TimeUnit unit) throws InterruptedException {
+		return startLatch.await(timeout, unit);
 	}
 	
 	@Override
 	public ServerHandshakeBuilder onWebsocketHandshakeReceivedAsServer(WebSocket conn, Draft draft, ClientHandshake request) throws InvalidDataException {
 		if(HttpDraft.isHTTP(request)) {
-			return super.onWebsocketHandshakeReceivedAsServer(conn, draft, request);
+			RelayMetrics.httpRequests.increment();
+			ServerHandshakeBuilder builder = super.onWebsocketHandshakeReceivedAsServer(conn, draft, request);
+			handleHTTPRequest(conn, request, builder);
+			return builder;
 		}
 		
+		long startTime = System.nanoTime();
+		HandshakeEvent event = new HandshakeEvent();
+		event.begin();
+		handshakeCount.incrementAndGet();
+		try {
+			ServerHandshakeBuilder builder = verifyHandshake(conn, draft, request);
+			
+			//Recording the result
+			ClientData clientData = conn.getAttachment();
+			if(clientData == null || !clientData.isRejected()) {
+				RelayMetrics.handshakesAccepted.increment();
+				ClientData.Type type = clientData != null ? clientData.getType() : null;
+				event.finish("accepted", 0, clientData != null && clientData.isServer(), type != null ? type.getGroupID() : null);
+			} else if(clientData.getCloseCode() == SharedData.closeCodeRedirect) {
+				RelayMetrics.handshakesRedirected.increment();
+				event.finish("redirected", clientData.getCloseCode(), false, null);
+			} else {
+				RelayMetrics.handshakesRejected.increment();
+				event.finish("rejected", clientData.getCloseCode(), false, null);
+			}
+			
+			return builder;
+		} catch(InvalidDataException exception) {
+			RelayMetrics.handshakesRejected.increment();
+			event.finish("rejected", exception.getCloseCode(), false, null);
+			throw exception;
+		} finally {
+			handshakeCount.decrementAndGet();
+			RelayMetrics.handshakeDuration.observeSince(startTime);
+		}
+	}
+	
+	/**
+	 * Checks a WebSocket handshake, and attaches the client's data to its connection
+	 * Rejected clients that should be told why are given client data with a close code, instead of failing the handshake
+	 */
+	private ServerHandshakeBuilder verifyHandshake(WebSocket conn, Draft draft, ClientHandshake request) throws InvalidDataException {
 		//Calling the super method
 		ServerHandshakeBuilder builder = super.onWebsocketHandshakeReceivedAsServer(conn, draft, request);
 		
+		//Turning away new connections while draining
+		if(isDraining) {
+			Main.getLogger().log(Level.FINE, () -> "Rejecting handshake (draining) from client " + Main.connectionToString(conn));
+			conn.setAttachment(new ClientData(SharedData.closeCodeDraining));
+			return builder;
+		}
+		
 		//Logging the event
-		Main.getLogger().log(Level.FINE, "Responding to handshake from client " + Main.connectionToString(conn));
+		Main.getLogger().log(Level.FINE, () -> "Responding to handshake from client " + Main.connectionToString(conn));
 		
 		Map<String, String> queryParams;
 		{
 			//Checking for a resource descriptor
 			String resourceDescriptor = request.getResourceDescriptor();
 			if(resourceDescriptor.isEmpty()) {
-				Main.getLogger().log(Level.FINE, "Rejecting handshake (no resource descriptor) from client " + Main.connectionToString(conn));
+				Main.getLogger().log(Level.FINE, () -> "Rejecting handshake (no resource descriptor) from client " + Main.connectionToString(conn));
 				throw new InvalidDataException(CloseFrame.PROTOCOL_ERROR);
 			}
 			
 			//Extracting the query from the string
 			int queryIndex = resourceDescriptor.lastIndexOf("?");
 			if(queryIndex == -1) {
-				Main.getLogger().log(Level.FINE, "Rejecting handshake (no query params - " + resourceDescriptor + ") from client " + Main.connectionToString(conn));
+				Main.getLogger().log(Level.FINE, () -> "Rejecting handshake (no query params - " + resourceDescriptor + ") from client " + Main.connectionToString(conn));
 				throw new InvalidDataException(CloseFrame.PROTOCOL_ERROR);
 			}
 			String queryString = resourceDescriptor.substring(queryIndex + 1);
 			
 			//Getting the query parameters
 			try {
-				queryParams = Stream.of(queryString.split("&"))
-						.map(str -> {
-							//Split the string into key-value pair
-							String[] keyValue = str.split("=");
-							if(keyValue.length != 2) throw new IllegalStateException("Invalid query key-value: " + str);
-							
-							//Decode the value side
-							keyValue[1] = URLDecoder.decode(keyValue[1], StandardCharsets.UTF_8);
-							
-							return keyValue;
-						})
-						.collect(Collectors.toMap(str -> str[0], str -> str[1]));
+				queryParams = parseQueryParams(queryString);
 			} catch(IllegalStateException exception) {
-				Main.getLogger().log(Level.FINE, "Rejecting handshake (bad query formatting - " + exception.getMessage() + ") from client " + Main.connectionToString(conn));
+				Main.getLogger().log(Level.FINE, () -> "Rejecting handshake (bad query formatting - " + exception.getMessage() + ") from client " + Main.connectionToString(conn));
 				throw new InvalidDataException(CloseFrame.PROTOCOL_ERROR);
 			}
 		}
@@ -101,7 +221,7 @@ public class Server extends WebSocketServer {
 		//Finding an appropriate protocol version
 		Protocol protocol = Communications.getProtocol(commVer);
 		if(protocol == null) {
-			Main.getLogger().log(Level.FINE, "Rejecting handshake (bad communications version - " + commVer + ") from client " + Main.connectionToString(conn));
+			Main.getLogger().log(Level.FINE, () -> "Rejecting handshake (bad communications version - " + commVer + ") from client " + Main.connectionToString(conn));
 			
 			//Disconnect the client with our custom close code
 			conn.setAttachment(new ClientData(SharedData.closeCodeIncompatibleProtocol));
@@ -109,8 +229,8 @@ public class Server extends WebSocketServer {
 		}
 		
 		try {
-			//Running handshake validation through the protocol
-			ClientData clientData = protocol.handleHandshake(conn, draft, request, queryParams);
+			//Running handshake validation through the protocol, which also redirects clients whose group lives on another relay
+			ClientData clientData = protocol.handleHandshake(conn, draft, request, queryParams, hashRing);
 			conn.setAttachment(clientData);
 			
 			//Accepting the request
@@ -127,6 +247,121 @@ public class Server extends WebSocketServer {
 		}
 	}
 	
+	/**
+	 * Parses the query string of a handshake request
+	 * @param queryString The part of the resource descriptor after the question mark
+	 * @return A map of parameter keys to their decoded values
+	 * @throws IllegalStateException If a parameter is malformed or repeated
+	 */
+	static Map<String, String> parseQueryParams(String queryString) {
+		return Stream.of(queryString.split("&"))
+				.map(str -> {
+					//Split the string into key-value pair
+					String[] keyValue = str.split("=");
+					if(keyValue.length != 2) throw new IllegalStateException("Invalid query key-value: " + str);
+					
+					//Decode the value side
+					keyValue[1] = URLDecoder.decode(keyValue[1], StandardCharsets.UTF_8);
+					
+					return keyValue;
+				})
+				.collect(Collectors.toMap(str -> str[0], str -> str[1]));
+	}
+	
+	/**
+	 * Responds to a plain HTTP request
+	 * @param conn The connection of the request
+	 * @param request The request
+	 * @param response The response to fill in
+	 */
+	private void handleHTTPRequest(WebSocket conn, ClientHandshake request, ServerHandshakeBuilder response) {
+		switch(HttpDraft.getPath(request)) {
+			case HttpDraft.pathHealth:
+				handleHealthRequest(response);
+				break;
+			case HttpDraft.pathDrain: {
+				//Only accepting drain requests from this machine
+				InetSocketAddress address = conn.getRemoteSocketAddress();
+				if(address == null || address.getAddress() == null || !address.getAddress().isLoopbackAddress()) {
+					Main.getLogger().log(Level.WARNING, "Rejecting drain request from " + Main.connectionToString(conn));
+					HttpDraft.setResponse(response, 403, "Forbidden", "forbidden");
+					break;
+				}
+				
+				Main.getLogger().log(Level.INFO, "Drain requested from " + Main.connectionToString(conn));
+				startDrain();
+				HttpDraft.setResponse(response, 202, "Accepted", "draining");
+				break;
+			}
+			case HttpDraft.pathMetrics:
+				HttpDraft.setResponse(response, 200, "OK", RelayMetrics.registry.export());
+				break;
+			default:
+				HttpDraft.setResponse(response, 404, "Not Found", "not found");
+				break;
+		}
+	}
+	
+	/**
+	 * Reports this relay's load, responding with 503 if it's draining or any health limit is exceeded
+	 * @param response The response to fill in
+	 */
+	private void handleHealthRequest(ServerHandshakeBuilder response) {
+		long connections = getConnections().size();
+		long groups = connectionCollection.getGroupCount();
+		long handshakes = handshakeCount.get();
+		long bufferedBytes = getBufferedByteCount();
+		Runtime runtime = Runtime.getRuntime();
+		long heapHeadroom = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+		
+		String status;
+		if(isDraining) {
+			status = "draining";
+		} else {
+			status = healthLimits.check(connections, groups, handshakes, bufferedBytes, heapHeadroom).toString().toLowerCase();
+		}
+		
+		String content = "status=" + status + "\n" +
+				"connections=" + connections + "\n" +
+				"groups=" + groups + "\n" +
+				"handshakes=" + handshakes + "\n" +
+				"buffered_bytes=" + bufferedBytes + "\n" +
+				"heap_headroom_bytes=" + heapHeadroom + "\n" +
+				"draining=" + isDraining + "\n";
+		
+		if(isDraining || status.equals("overloaded")) HttpDraft.setResponse(response, 503, "Service Unavailable", content);
+		else HttpDraft.setResponse(response, 200, "OK", content);
+	}
+	
+	/**
+	 * Gets the amount of data waiting to be written to all connections, counted at most once a second
+	 * @return The amount of buffered bytes
+	 */
+	private long getBufferedByteCount() {
+		synchronized(bufferedByteCountLock) {
+			long time = System.nanoTime();
+			if(!isBufferedByteCountSet || time - bufferedByteCountTime >= bufferedByteCountLifetime) {
+				bufferedByteCount = countBufferedBytes();
+				bufferedByteCountTime = time;
+				isBufferedByteCountSet = true;
+			}
+			return bufferedByteCount;
+		}
+	}
+	
+	/**
+	 * Adds up the data waiting to be written to all connections
+	 * @return The amount of buffered bytes
+	 */
+	private long countBufferedBytes() {
+		long count = 0;
+		for(WebSocket connection : getConnections()) {
+			if(!(connection instanceof WebSocketImpl)) continue;
+			for(ByteBuffer buffer : ((WebSocketImpl) connection).outQueue) count += buffer.remaining();
+		}
+		return count;
+	}
+	
 	@Override
 	public void onOpen(WebSocket conn, ClientHandshake handshake) {
 		if(HttpDraft.isHTTP(handshake)) {
@@ -134,13 +369,31 @@ public class Server extends WebSocketServer {
 			return;
 		}
 		
+		openConnection(conn);
+		
+		//Capturing connections that joined a group on this relay
+		TrafficCapture trafficCapture = this.trafficCapture;
+		if(trafficCapture != null) {
+			ClientData clientData = conn.getAttachment();
+			if(!clientData.isRejected() && clientData.getForwardedClient() == null && clientData.getConnectionGroup() != null && conn.isOpen()) {
+				trafficCapture.recordOpen(clientData);
+			}
+		}
+	}
+	
+	/**
+	 * Adds a connection that has completed its handshake to its group
+	 * @param conn The connection to add
+	 */
+	public void openConnection(WebSocket conn) {
 		//Getting the connection data
 		ClientData clientData = conn.getAttachment();
 		
 		//Checking if the client is to be disconnected
 		if(clientData.isRejected()) {
-			Main.getLogger().log(Level.FINE, "Disconnecting rejected connection from " + Main.connectionToString(conn) + " (" + clientData.getCloseCode() + ")");
-			conn.close(clientData.getCloseCode());
+			Main.getLogger().log(Level.FINE, () -> "Disconnecting rejected connection from " + Main.connectionToString(conn) + " (" + clientData.getCloseCode() + ")");
+			if(clientData.getCloseReason() != null) conn.close(clientData.getCloseCode(), clientData.getCloseReason());
+			else conn.close(clientData.getCloseCode());
 			return;
 		}
 		
@@ -149,29 +402,43 @@ public class Server extends WebSocketServer {
 		clientData.clearType();
 		
 		if(clientData.isServer()) {
-			//Adding a new collection for the server
-			connectionCollection.addServer(conn, type.getGroupID());
+			//Adding a new collection for the server, or letting a reconnecting server take over its old one
+			connectionCollection.addServer(conn, type.getGroupID(), type.getInstallationID(), serverGracePeriod > 0);
 		} else {
+			//Forwarding the client to another relay if its group isn't hosted here
+			if(clusterNode != null && !(conn instanceof RemoteClientConnection) && !connectionCollection.hasGroup(type.getGroupID())) {
+				if(clusterNode.forwardClient(conn, clientData, type)) return;
+			}
+			
 			//Adding the client to a group
-			boolean result = connectionCollection.addClient(conn, type.getGroupID(), type.getFCMToken());
+			boolean result = connectionCollection.addClient(conn, type.getGroupID(), type.getFCMToken(), type.getResumeGroupEpoch(), type.getResumeConnectionID());
 			
-			//Notifying the server of the addition
+			//Notifying the server of the addition, unless the client picked up its previous connection
 			if(result) {
-				WebSocket serverSocket = clientData.getConnectionGroup().getConnectionServer();
-				serverSocket.send(serverSocket.<ClientData>getAttachment().getProtocol().sendServerConnection(clientData.getConnectionID()));
+				if(!clientData.isResumed()) clientData.getConnectionGroup().notifyServerConnection(clientData.getConnectionID());
 			} else {
 				return;
 			}
 		}
 		
 		//Sending the connection OK message
-		conn.send(clientData.getProtocol().sendSharedConnectionOK());
+		if(clientData.isResumable()) {
+			clientData.getProtocol().send(conn, clientData.getProtocol().sendSharedConnectionOK(ResumeTokenUtils.issue(clientData.getConnectionGroup().getGroupID(), clientData.getConnectionGroup().getEpoch(), clientData.getConnectionID())));
+		} else {
+			clientData.getProtocol().send(conn, clientData.getProtocol().sendSharedConnectionOK());
+		}
+		
+		//Catching up a server that took over its group on the clients that stayed connected
+		if(clientData.isServer()) clientData.getConnectionGroup().resumeServer();
+		
+		if(clientData.isServer()) RelayMetrics.serversOpened.increment();
+		else RelayMetrics.clientsOpened.increment();
 		
 		//Logging the event
 		if(clientData.isServer()) {
-			Main.getLogger().log(Level.FINE, "Server of group " + clientData.getConnectionGroup().getGroupID() + " connected from " + Main.connectionToString(conn));
+			Main.getLogger().log(Level.FINE, () -> "Server of group " + clientData.getConnectionGroup().getGroupID() + " connected from " + Main.connectionToString(conn));
 		} else {
-			Main.getLogger().log(Level.FINE, "Client " + clientData.getConnectionID() + " of " + clientData.getConnectionGroup().getGroupID() + " connected from " + Main.connectionToString(conn));
+			Main.getLogger().log(Level.FINE, () -> "Client " + clientData.getConnectionID() + " of " + clientData.getConnectionGroup().getGroupID() + (clientData.isResumed() ? " resumed" : " connected") + " from " + Main.connectionToString(conn));
 		}
 	}
 	
@@ -185,61 +452,85 @@ public class Server extends WebSocketServer {
 		
 		//Logging disconnections of rejected clients
 		if(clientData.isRejected()) {
-			Main.getLogger().log(Level.FINE, "Rejected client disconnected from " + Main.connectionToString(conn) + " " + logSuffix);
+			Main.getLogger().log(Level.FINE, () -> "Rejected client disconnected from " + Main.connectionToString(conn) + " " + logSuffix);
+			return;
+		}
+		
+		//Notifying the relay hosting the group of forwarded clients
+		if(clientData.getForwardedClient() != null) {
+			clusterNode.onForwardedClientClosed(clientData.getForwardedClient(), code);
+			Main.getLogger().log(Level.FINE, () -> "Forwarded client disconnected from " + Main.connectionToString(conn) + " " + logSuffix);
 			return;
 		}
 		
+		if(clientData.getCaptureID() != 0) {
+			TrafficCapture trafficCapture = this.trafficCapture;
+			if(trafficCapture != null) trafficCapture.recordClose(clientData, code);
+		}
+		
 		ConnectionGroup group = clientData.getConnectionGroup();
 		
 		if(group == null) {
 			//No group, nothing to do
 			//Just log the event
 			if(clientData.isServer()) {
-				Main.getLogger().log(Level.FINE, "Server disconnected from " + Main.connectionToString(conn) + " " + logSuffix);
+				Main.getLogger().log(Level.FINE, () -> "Server disconnected from " + Main.connectionToString(conn) + " " + logSuffix);
 			} else {
-				Main.getLogger().log(Level.FINE, "Client disconnected from " + Main.connectionToString(conn) + " " + logSuffix);
+				Main.getLogger().log(Level.FINE, () -> "Client disconnected from " + Main.connectionToString(conn) + " " + logSuffix);
 			}
 		} else {
+			if(clientData.isServer()) RelayMetrics.serversClosed.increment();
+			else RelayMetrics.clientsClosed.increment();
+			
 			//Log the event and clean up
 			if(clientData.isServer()) {
-				if(!clientData.getDisableCleanup()) {
-					//Unregistering the group and disconnecting all clients
-					group.closeAll(SharedData.closeCodeNoGroup);
-					connectionCollection.removeGroup(group.getGroupID());
-					
-					//Writing the group's client FCM tokens to the database (if modifications were made)
-					if(group.isClientFCMTokenListModified()) {
-						if(!Main.isUnlinked()) {
-							try {
-								StorageUtils.instance().updateFCMTokens(group.getGroupID(), group.getClientFCMTokenList());
-							} catch(ExecutionException | InterruptedException exception) {
-								Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
-							}
-						}
+				if(!clientData.getDisableCleanup() && !isPreservingGroups) {
+					if(serverGracePeriod > 0 && !isDraining && group.getCount() > 0) {
+						//Keeping the clients around in case the server comes back
+						group.startServerGrace(timerExecutor, serverGracePeriod, serverGraceByteLimit, () -> {
+							Main.getLogger().log(Level.FINE, () -> "Server of group " + group.getGroupID() + " didn't reconnect in time");
+							closeGroup(group, SharedData.closeCodeNoGroup);
+						});
+					} else {
+						closeGroup(group, SharedData.closeCodeNoGroup);
 					}
 				}
 				
 				//Logging the event
-				Main.getLogger().log(Level.FINE, "Server of group " + group.getGroupID() + " disconnected from " + Main.connectionToString(conn) + " " + logSuffix);
+				Main.getLogger().log(Level.FINE, () -> "Server of group " + group.getGroupID() + " disconnected from " + Main.connectionToString(conn) + " " + logSuffix);
 			} else {
 				//Getting the disconnected client's connection ID
 				int connectionID = clientData.getConnectionID();
 				
-				if(!clientData.getDisableCleanup()) {
+				if(!clientData.getDisableCleanup() && !isPreservingGroups) {
 					//Unregistering the connection if the connection is a client
 					group.removeClient(connectionID);
 					
-					//Notifying the server of the disconnection
-					WebSocket serverSocket = clientData.getConnectionGroup().getConnectionServer();
-					serverSocket.send(serverSocket.<ClientData>getAttachment().getProtocol().sendServerDisconnection(connectionID));
+					//Notifying the server of the disconnection, or holding the connection ID in case the client comes back
+					if(clientData.isResumable() && ResumeTokenUtils.getConnectionWindow() > 0) {
+						group.holdClient(connectionID, timerExecutor, ResumeTokenUtils.getConnectionWindow());
+					} else {
+						group.notifyServerDisconnection(connectionID);
+					}
 				}
 				
 				//Logging the event
-				Main.getLogger().log(Level.FINE, "Client " + clientData.getConnectionID() + " of " + group.getGroupID() + " disconnected from " + Main.connectionToString(conn) + " " + logSuffix);
+				Main.getLogger().log(Level.FINE, () -> "Client " + clientData.getConnectionID() + " of " + group.getGroupID() + " disconnected from " + Main.connectionToString(conn) + " " + logSuffix);
 			}
 		}
 	}
 	
+	@Override
+	protected void queue(WebSocketImpl ws) throws InterruptedException {
+		//Noting when data was queued, to measure how long it waits to be decoded
+		if(MessageTracer.isEnabled()) {
+			ClientData clientData = ws.getAttachment();
+			if(clientData != null) clientData.markQueued(System.nanoTime());
+		}
+		
+		super.queue(ws);
+	}
+	
 	@Override
 	public void onMessage(WebSocket conn, ByteBuffer message) {
 		//Getting the client's data
@@ -249,6 +540,19 @@ public class Server extends WebSocketServer {
 		//Ignoring if this client is rejected
 		if(clientData.isRejected()) return;
 		
+		RelayMetrics.bytesReceived.add(message.remaining());
+		
+		//Passing messages from forwarded clients to the relay hosting their group
+		if(clientData.getForwardedClient() != null) {
+			clusterNode.forwardMessage(clientData.getForwardedClient(), message);
+			return;
+		}
+		
+		if(clientData.getCaptureID() != 0) {
+			TrafficCapture trafficCapture = this.trafficCapture;
+			if(trafficCapture != null) trafficCapture.recordMessage(clientData, message);
+		}
+		
 		//Forwarding the message for the protocol to handle
 		conn.<ClientData>getAttachment().getProtocol().receive(conn, clientData, message);
 	}
@@ -262,4 +566,160 @@ public class Server extends WebSocketServer {
 	public void onError(WebSocket conn, Exception exception) {
 		Main.getLogger().log(Level.WARNING, exception.getMessage(), exception);
 	}
+	
+	/**
+	 * Unregisters a group, disconnects all of its clients, and saves its FCM tokens
+	 * @param group The group to close
+	 * @param code The code to close connections with
+	 */
+	private void closeGroup(ConnectionGroup group, int code) {
+		//Unregistering the group and disconnecting all clients
+		group.closeAll(code);
+		connectionCollection.removeGroup(group);
+		RelayMetrics.groupsClosed.increment();
+		
+		//Writing the group's client FCM tokens to the database (if modifications were made)
+		if(group.isClientFCMTokenListModified()) {
+			if(StorageUtils.isAvailable()) {
+				try {
+					StorageUtils.instance().updateFCMTokens(group.getGroupID(), group.getClientFCMTokenList());
+				} catch(ExecutionException | InterruptedException exception) {
+					Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Starts draining the server in the background, notifying the drain finished listener once all groups are closed
+	 */
+	public void startDrain() {
+		if(!isDrainStarted.compareAndSet(false, true)) return;
+		
+		Thread thread = new Thread(() -> {
+			drain();
+			
+			Runnable listener = drainFinishedListener;
+			if(listener != null) listener.run();
+		}, "Drain");
+		thread.start();
+	}
+	
+	/**
+	 * Stops accepting connections, and closes all groups at the drain rate,
+	 * so that their servers reconnect to other relays a few at a time
+	 *
+	 * If closing the groups at the drain rate would take longer than the drain deadline,
+	 * they are spread out evenly over the deadline instead, and any groups still open at the deadline are closed right away.
+	 */
+	public void drain() {
+		synchronized(drainLock) {
+			isDraining = true;
+			
+			List<ConnectionGroup> groups = connectionCollection.getGroups();
+			if(groups.isEmpty()) return;
+			
+			long startTime = System.currentTimeMillis();
+			long startNanoTime = System.nanoTime();
+			long deadlineTime = startNanoTime + TimeUnit.MILLISECONDS.toNanos(drainDeadline);
+			long interval = Math.min(TimeUnit.SECONDS.toNanos(1) / drainRate, TimeUnit.MILLISECONDS.toNanos(drainDeadline) / groups.size());
+			Main.getLogger().log(Level.INFO, "Draining " + groups.size() + " groups at " + TimeUnit.SECONDS.toNanos(1) / Math.max(interval, 1) + " groups per second, within " + drainDeadline + " ms");
+			
+			long nextTime = startNanoTime;
+			boolean isInterrupted = false;
+			int lateCount = 0;
+			for(ConnectionGroup group : groups) {
+				if(System.nanoTime() - deadlineTime > 0) lateCount++;
+				closeGroup(group, SharedData.closeCodeDraining);
+				
+				//Waiting for the next slot, or closing the rest right away if we're interrupted or out of time
+				nextTime += interval;
+				long delay = Math.min(nextTime, deadlineTime) - System.nanoTime();
+				if(delay > 0 && !isInterrupted) {
+					try {
+						TimeUnit.NANOSECONDS.sleep(delay);
+					} catch(InterruptedException exception) {
+						isInterrupted = true;
+					}
+				}
+			}
+			
+			if(lateCount > 0) Main.getLogger().log(Level.WARNING, "Closed " + lateCount + " groups at once after the drain deadline passed");
+			Main.getLogger().log(Level.INFO, "Drained " + groups.size() + " groups in " + (System.currentTimeMillis() - startTime) + " ms");
+		}
+	}
+	
+	/**
+	 * Sets the amount of groups to close per second while draining, when the drain deadline allows it
+	 */
+	public void setDrainRate(long drainRate) {
+		if(drainRate < 1) throw new IllegalArgumentException("Invalid drain rate " + drainRate);
+		this.drainRate = drainRate;
+	}
+	
+	/**
+	 * Sets how long a drain may take, after which all remaining groups are closed at once
+	 * @param drainDeadline The deadline in milliseconds
+	 */
+	public void setDrainDeadline(long drainDeadline) {
+		if(drainDeadline < 0) throw new IllegalArgumentException("Invalid drain deadline " + drainDeadline);
+		this.drainDeadline = drainDeadline;
+	}
+	
+	/**
+	 * Sets what to do once a drain started with /drain finishes
+	 * @param drainFinishedListener The function to call once all groups are closed, or NULL to keep running
+	 */
+	public void setDrainFinishedListener(Runnable drainFinishedListener) {
+		this.drainFinishedListener = drainFinishedListener;
+	}
+	
+	/**
+	 * Sets how long to keep a group and its clients after its server disconnects
+	 * @param serverGracePeriod The grace period in milliseconds, or 0 to close groups right away
+	 * @param serverGraceByteLimit The maximum amount of client data to hold for a disconnected server
+	 */
+	public void setServerGracePeriod(long serverGracePeriod, int serverGraceByteLimit) {
+		if(serverGracePeriod < 0) throw new IllegalArgumentException("Invalid server grace period " + serverGracePeriod);
+		if(serverGraceByteLimit < 0) throw new IllegalArgumentException("Invalid server grace buffer " + serverGraceByteLimit);
+		this.serverGracePeriod = serverGracePeriod;
+		this.serverGraceByteLimit = serverGraceByteLimit;
+	}
+	
+	public void setHealthLimits(HealthLimits healthLimits) {
+		this.healthLimits = healthLimits;
+	}
+	
+	public boolean isDraining() {
+		return isDraining;
+	}
+	
+	/**
+	 * Stops the server without tearing down its groups,
+	 * so that they can be saved in a snapshot
+	 */
+	public void stopPreservingGroups() throws InterruptedException {
+		isPreservingGroups = true;
+		stop();
+	}
+	
+	public void setClusterNode(ClusterNode clusterNode) {
+		this.clusterNode = clusterNode;
+	}
+	
+	public void setHashRing(HashRing hashRing) {
+		this.hashRing = hashRing;
+	}
+	
+	/**
+	 * Sets the capture to record connections and their messages to
+	 * @param trafficCapture The capture, or NULL to stop capturing
+	 */
+	public void setTrafficCapture(TrafficCapture trafficCapture) {
+		this.trafficCapture = trafficCapture;
+	}
+	
+	public ConnectionCollection getConnectionCollection() {
+		return connectionCollection;
+	}
 }
\ No newline at end of file
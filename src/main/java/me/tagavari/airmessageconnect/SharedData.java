@@ -8,4 +8,6 @@ public class SharedData {
 	public static final int closeCodeServerTokenRefresh = 4004; //The server's provided installation ID is out of date; log in again to re-link this device
 	public static final int closeCodeNoSubscription = 4005; //This user does not have an active subscription
 	public static final int closeCodeOtherLocation = 4006; //Logged in from another location
+	public static final int closeCodeRedirect = 4007; //This group lives on another relay; reconnect to the relay named in the close reason
+	public static final int closeCodeDraining = 4008; //This relay is shutting down; reconnect elsewhere
 }
\ No newline at end of file
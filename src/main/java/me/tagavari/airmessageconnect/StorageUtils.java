@@ -1,120 +1,36 @@
 package me.tagavari.airmessageconnect;
 
-import com.google.cloud.firestore.*;
-import me.tagavari.airmessageconnect.document.DocumentUser;
-
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ExecutionException;
-import java.util.logging.Level;
+import me.tagavari.airmessageconnect.storage.MeasuredStorageBackend;
+import me.tagavari.airmessageconnect.storage.StorageBackend;
 
+/**
+ * Holds the storage backend that this relay persists user data to
+ */
 public class StorageUtils {
-	//Singleton instance
-	private static final StorageUtils storageUtils = new StorageUtils();
-	
-	//Database structure
-	private static final String fieldUsersRelayID = "relayID";
-	private static final String fieldUsersServerInstallationID = "serverID";
-	
-	private static final String collectionUsersData = "data";
-	private static final String documentDataFCM = "fcm";
-	private static final String fieldFCMList = "fcmTokenList";
-	
-	//Database references
-	private Firestore db;
-	private CollectionReference collectionUsers;
-	
-	/**
-	 * Gets this singleton instance
-	 * @return The instance of StorageUtils
-	 */
-	public static StorageUtils instance() {
-		return storageUtils;
-	}
+	//The active storage backend
+	private static StorageBackend storageBackend = null;
 	
 	/**
-	 * Initializes this instance and hooks it up to Firebase
+	 * Gets the active storage backend
+	 * @return The active storage backend, or NULL if storage is disabled
 	 */
-	public void initialize() {
-		//Initializing the database
-		 db = FirestoreOptions.getDefaultInstance().getService();
-		 collectionUsers = db.collection("users");
-	}
-	
-	/**
-	 * Get user information for a particular user
-	 * @param userUID The UID of the user to check
-	 * @return The document containing user information, or NULL if none was found
-	 */
-	public DocumentUser getDocumentUser(String userUID) throws ExecutionException, InterruptedException {
-		//Retrieving the user's document
-		DocumentReference document = collectionUsers.document(userUID);
-		DocumentSnapshot documentSnapshot = document.get().get();
-		
-		//Returning if there is no document
-		if(!documentSnapshot.exists()) return null;
-		
-		try {
-			return new DocumentUser(documentSnapshot.getString(fieldUsersRelayID), documentSnapshot.getString(fieldUsersServerInstallationID));
-		} catch(RuntimeException exception) {
-			Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
-			return null;
-		}
-	}
-	
-	public List<String> getFCMTokens(String userUID) throws ExecutionException, InterruptedException {
-		//Retrieving the user's document
-		DocumentSnapshot documentSnapshot = collectionUsers.document(userUID + '/' + collectionUsersData + '/' + documentDataFCM).get().get();
-		
-		//Returning if there is no document
-		if(!documentSnapshot.exists()) return null;
-		
-		//Returning the token list
-		try {
-			return (List<String>) documentSnapshot.get(fieldFCMList);
-		} catch(RuntimeException exception) {
-			Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
-			return null;
-		}
-	}
-	
-	public void updateFCMTokens(String userUID, List<String> list) throws ExecutionException, InterruptedException {
-		//Creating the update data
-		Map<String, Object> update = new HashMap<>();
-		update.put(fieldFCMList, list);
-		
-		//Updating the user data
-		collectionUsers.document(userUID + '/' + collectionUsersData + '/' + documentDataFCM).set(update, SetOptions.merge()).get();
+	public static StorageBackend instance() {
+		return storageBackend;
 	}
 	
 	/**
-	 * Update the specified user's relay point ID and active server installation ID
-	 * @param userUID The UID of the user to update
-	 * @param relayID The relay ID to apply
-	 * @param installationID The installation ID to apply
+	 * Sets the storage backend to use for all storage operations, recording their duration in the relay's metrics
+	 * @param storageBackend The storage backend to use
 	 */
-	public void updateRegisteredServerRelayInstallationID(String userUID, String relayID, String installationID) throws ExecutionException, InterruptedException {
-		//Creating the update data
-		Map<String, Object> update = new HashMap<>();
-		update.put(fieldUsersRelayID, relayID);
-		update.put(fieldUsersServerInstallationID, installationID);
-		
-		//Updating the user data
-		collectionUsers.document(userUID).set(update, SetOptions.merge()).get();
+	public static void initialize(StorageBackend storageBackend) {
+		StorageUtils.storageBackend = storageBackend != null ? new MeasuredStorageBackend(storageBackend) : null;
 	}
 	
 	/**
-	 * Update the specified user's relay point ID
-	 * @param userUID The UID of the user to update
-	 * @param relayID The relay ID to apply
+	 * Checks if a storage backend is available
+	 * @return TRUE if storage operations should be performed
 	 */
-	public void updateRegisteredServerRelayID(String userUID, String relayID) throws ExecutionException, InterruptedException {
-		//Creating the update data
-		Map<String, Object> update = new HashMap<>();
-		update.put(fieldUsersRelayID, relayID);
-		
-		//Updating the user data
-		collectionUsers.document(userUID).set(update, SetOptions.merge()).get();
+	public static boolean isAvailable() {
+		return storageBackend != null;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,187 @@
+package me.tagavari.airmessageconnect.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads back the records of a traffic capture in the order they were written
+ */
+public class CaptureReader {
+	private final ByteBuffer buffer;
+	private final long startTime;
+	private final boolean isRedacted;
+	
+	/**
+	 * Opens a capture file
+	 * @param file The file to read
+	 * @throws IOException If the file couldn't be read, or isn't a traffic capture
+	 */
+	public CaptureReader(File file) throws IOException {
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if(channel.size() < TrafficCapture.headerLength || channel.size() > Integer.MAX_VALUE) throw new IOException("Invalid capture file size " + channel.size());
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		
+		if(buffer.getInt() != TrafficCapture.magic) throw new IOException(file.getPath() + " isn't a traffic capture");
+		int version = buffer.getInt();
+		if(version != TrafficCapture.version) throw new IOException("Unsupported capture version " + version);
+		startTime = buffer.getLong();
+		isRedacted = (buffer.get() & TrafficCapture.flagRedacted) != 0;
+	}
+	
+	/**
+	 * Gets the time the capture was started
+	 * @return The start time in milliseconds since the epoch
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+	
+	/**
+	 * Gets whether messages were recorded as only their header and length
+	 */
+	public boolean isRedacted() {
+		return isRedacted;
+	}
+	
+	/**
+	 * Reads the next record
+	 * @return The record, or NULL if there are no more records
+	 */
+	public Record next() {
+		if(buffer.remaining() < TrafficCapture.recordHeaderLength) return null;
+		
+		int start = buffer.position();
+		byte kind = buffer.get();
+		long time = buffer.getLong();
+		int captureID = buffer.getInt();
+		
+		switch(kind) {
+			case TrafficCapture.kindOpen: {
+				if(buffer.remaining() < Byte.BYTES + Integer.BYTES * 2) return end(start);
+				boolean isServer = buffer.get() != 0;
+				int group = buffer.getInt();
+				int connectionID = buffer.getInt();
+				return new Record(kind, time, captureID, isServer, group, connectionID, 0, 0, null);
+			}
+			case TrafficCapture.kindClose: {
+				if(buffer.remaining() < Integer.BYTES) return end(start);
+				return new Record(kind, time, captureID, false, 0, 0, buffer.getInt(), 0, null);
+			}
+			case TrafficCapture.kindMessage: {
+				if(buffer.remaining() < Integer.BYTES * 2) return end(start);
+				int length = buffer.getInt();
+				int recordedLength = buffer.getInt();
+				if(recordedLength < 0 || recordedLength > length || buffer.remaining() < recordedLength) return end(start);
+				byte[] data = new byte[recordedLength];
+				buffer.get(data);
+				return new Record(kind, time, captureID, false, 0, 0, 0, length, data);
+			}
+			default:
+				//Reached the end of the capture, or a record that was never finished
+				return end(start);
+		}
+	}
+	
+	private Record end(int position) {
+		buffer.position(position);
+		return null;
+	}
+	
+	/**
+	 * A connection opening or closing, or a message, read from a capture
+	 */
+	public static class Record {
+		public static final byte kindOpen = TrafficCapture.kindOpen;
+		public static final byte kindClose = TrafficCapture.kindClose;
+		public static final byte kindMessage = TrafficCapture.kindMessage;
+		
+		private final byte kind;
+		private final long time;
+		private final int captureID;
+		private final boolean isServer;
+		private final int group;
+		private final int connectionID;
+		private final int closeCode;
+		private final int length;
+		private final byte[] data;
+		
+		Record(byte kind, long time, int captureID, boolean isServer, int group, int connectionID, int closeCode, int length, byte[] data) {
+			this.kind = kind;
+			this.time = time;
+			this.captureID = captureID;
+			this.isServer = isServer;
+			this.group = group;
+			this.connectionID = connectionID;
+			this.closeCode = closeCode;
+			this.length = length;
+			this.data = data;
+		}
+		
+		public byte getKind() {
+			return kind;
+		}
+		
+		/**
+		 * Gets the time of this record
+		 * @return The time in nanoseconds since the capture was started
+		 */
+		public long getTime() {
+			return time;
+		}
+		
+		/**
+		 * Gets the connection this record is about
+		 * @return The connection's ID within the capture
+		 */
+		public int getCaptureID() {
+			return captureID;
+		}
+		
+		/**
+		 * Gets whether an opened connection is a server
+		 */
+		public boolean isServer() {
+			return isServer;
+		}
+		
+		/**
+		 * Gets the group of an opened connection
+		 * @return The group's number within the capture
+		 */
+		public int getGroup() {
+			return group;
+		}
+		
+		/**
+		 * Gets the connection ID the relay gave an opened client
+		 * @return The connection ID, or -1 for servers
+		 */
+		public int getConnectionID() {
+			return connectionID;
+		}
+		
+		public int getCloseCode() {
+			return closeCode;
+		}
+		
+		/**
+		 * Gets the full length of a message
+		 * @return The length in bytes, which is longer than the recorded data if the message was redacted
+		 */
+		public int getLength() {
+			return length;
+		}
+		
+		/**
+		 * Gets the recorded data of a message
+		 * @return The message, or its header if the message was redacted
+		 */
+		public byte[] getData() {
+			return data;
+		}
+	}
+}
\ No newline at end of file
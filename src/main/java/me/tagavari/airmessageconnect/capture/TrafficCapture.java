@@ -0,0 +1,190 @@
+package me.tagavari.airmessageconnect.capture;
+
+import me.tagavari.airmessageconnect.ClientData;
+import me.tagavari.airmessageconnect.metrics.Counter;
+import me.tagavari.airmessageconnect.metrics.RelayMetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records connections and the messages they send to an append-only file, so that the traffic can be replayed against a local relay
+ *
+ * The file is mapped into memory up front, and every record claims its space with a single atomic addition,
+ * so recording a message costs a copy and never waits on the disk or on other connections.
+ * Once the file is full, further records are dropped.
+ *
+ * Groups are numbered in the order they're first seen, so that captures don't contain user IDs.
+ * When payloads are redacted, messages are recorded as their header and their length.
+ *
+ * The file starts with [int magic][int version][long start time][byte flags], followed by records of
+ * [byte kind][long nanoseconds since start][int capture ID] and the fields of their kind.
+ * A record's kind is written last, so a kind of 0 marks the end of the capture.
+ */
+public class TrafficCapture {
+	static final int magic = 0x414D4350; //AMCP
+	static final int version = 1;
+	static final int headerLength = Integer.BYTES * 2 + Long.BYTES + Byte.BYTES;
+	static final byte flagRedacted = 1;
+	
+	static final byte kindOpen = 1; //[byte is server][int group number][int connection ID]
+	static final byte kindClose = 2; //[int close code]
+	static final byte kindMessage = 3; //[int message length][int recorded length][recorded bytes]
+	static final int recordHeaderLength = Byte.BYTES + Long.BYTES + Integer.BYTES;
+	
+	private static final Counter recordsWritten = RelayMetrics.registry.counter("relay_capture_records_total", "Records written to the traffic capture");
+	private static final Counter recordsDropped = RelayMetrics.registry.counter("relay_capture_records_dropped_total", "Records dropped because the traffic capture was full");
+	
+	private final File file;
+	private final RandomAccessFile randomAccessFile;
+	private final MappedByteBuffer buffer;
+	private final boolean isRedacted;
+	private final long startTime = System.nanoTime();
+	
+	//The offset of the next record
+	private final AtomicInteger position = new AtomicInteger(headerLength);
+	
+	private final AtomicInteger nextCaptureID = new AtomicInteger(1);
+	private final AtomicInteger nextGroupNumber = new AtomicInteger(1);
+	private final Map<String, Integer> groupNumberMap = new ConcurrentHashMap<>();
+	private volatile boolean isFull = false;
+	
+	/**
+	 * Creates a new capture, replacing the file if it already exists
+	 * @param file The file to write to
+	 * @param sizeLimit The maximum size of the file in bytes
+	 * @param isRedacted TRUE to only record the header and length of messages
+	 * @throws IOException If the file couldn't be created
+	 */
+	public TrafficCapture(File file, int sizeLimit, boolean isRedacted) throws IOException {
+		if(sizeLimit <= headerLength) throw new IllegalArgumentException("Invalid capture size limit " + sizeLimit);
+		
+		this.file = file;
+		this.isRedacted = isRedacted;
+		
+		randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			randomAccessFile.setLength(0);
+			buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, sizeLimit);
+		} catch(IOException exception) {
+			randomAccessFile.close();
+			throw exception;
+		}
+		
+		buffer.putInt(magic);
+		buffer.putInt(version);
+		buffer.putLong(System.currentTimeMillis());
+		buffer.put(isRedacted ? flagRedacted : 0);
+		
+		RelayMetrics.registry.gauge("relay_capture_bytes", "Bytes written to the traffic capture", position::get);
+	}
+	
+	public File getFile() {
+		return file;
+	}
+	
+	/**
+	 * Records a connection that has joined its group, and gives it a capture ID
+	 * @param clientData The data of the connection
+	 */
+	public void recordOpen(ClientData clientData) {
+		int group = groupNumberMap.computeIfAbsent(clientData.getConnectionGroup().getGroupID(), key -> nextGroupNumber.getAndIncrement());
+		int captureID = nextCaptureID.getAndIncrement();
+		clientData.setCaptureID(captureID);
+		
+		ByteBuffer record = startRecord(captureID, Byte.BYTES + Integer.BYTES * 2);
+		if(record == null) return;
+		record.put(clientData.isServer() ? (byte) 1 : 0);
+		record.putInt(group);
+		record.putInt(clientData.isServer() ? -1 : clientData.getConnectionID());
+		finishRecord(record, kindOpen);
+	}
+	
+	/**
+	 * Records a captured connection closing
+	 * @param clientData The data of the connection
+	 * @param code The code the connection closed with
+	 */
+	public void recordClose(ClientData clientData, int code) {
+		ByteBuffer record = startRecord(clientData.getCaptureID(), Integer.BYTES);
+		if(record == null) return;
+		record.putInt(code);
+		finishRecord(record, kindClose);
+	}
+	
+	/**
+	 * Records a message from a captured connection
+	 * @param clientData The data of the connection
+	 * @param message The message, which is left unchanged
+	 */
+	public void recordMessage(ClientData clientData, ByteBuffer message) {
+		int length = message.remaining();
+		int recordedLength = isRedacted ? clientData.getProtocol().getHeaderLength(message) : length;
+		
+		ByteBuffer record = startRecord(clientData.getCaptureID(), Integer.BYTES * 2 + recordedLength);
+		if(record == null) return;
+		record.putInt(length);
+		record.putInt(recordedLength);
+		record.put(message.duplicate().limit(message.position() + recordedLength));
+		finishRecord(record, kindMessage);
+	}
+	
+	/**
+	 * Claims space for a record, and writes its time and capture ID
+	 * @return A buffer over the record, positioned after the capture ID, or NULL if the capture is full
+	 */
+	private ByteBuffer startRecord(int captureID, int bodyLength) {
+		if(isFull) {
+			recordsDropped.increment();
+			return null;
+		}
+		
+		long time = System.nanoTime() - startTime;
+		int length = recordHeaderLength + bodyLength;
+		int offset = position.getAndAdd(length);
+		if(offset < 0 || offset > buffer.capacity() - length) {
+			//Keeping the position at the end, so it doesn't wrap around
+			isFull = true;
+			position.set(buffer.capacity());
+			recordsDropped.increment();
+			return null;
+		}
+		
+		ByteBuffer record = buffer.duplicate().position(offset).limit(offset + length).slice();
+		record.position(Byte.BYTES);
+		record.putLong(time);
+		record.putInt(captureID);
+		return record;
+	}
+	
+	/**
+	 * Marks a record as complete by writing its kind
+	 */
+	private void finishRecord(ByteBuffer record, byte kind) {
+		record.put(0, kind);
+		recordsWritten.increment();
+	}
+	
+	/**
+	 * Flushes the capture to disk, and trims the file to the recorded length
+	 */
+	public void close() throws IOException {
+		isFull = true;
+		buffer.force();
+		
+		int length = Math.min(position.get(), buffer.capacity());
+		try {
+			randomAccessFile.setLength(length);
+		} catch(IOException exception) {
+			//Some platforms can't trim a mapped file - readers stop at the first empty record instead
+		}
+		randomAccessFile.close();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,417 @@
+package me.tagavari.airmessageconnect.cluster;
+
+import me.tagavari.airmessageconnect.ClientData;
+import me.tagavari.airmessageconnect.Main;
+import me.tagavari.airmessageconnect.ResumeTokenUtils;
+import me.tagavari.airmessageconnect.Server;
+import me.tagavari.airmessageconnect.SharedData;
+import me.tagavari.airmessageconnect.communicate.Communications;
+import me.tagavari.airmessageconnect.communicate.Protocol;
+import org.java_websocket.WebSocket;
+import org.java_websocket.framing.CloseFrame;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Connects this relay to the other relays of a cluster
+ *
+ * A client whose group isn't hosted on this relay is offered to all connected relays.
+ * The relay that hosts the group accepts the client, and from then on
+ * all messages between the client and its server are passed along the link between the two relays.
+ *
+ * Only relays listed as peers can link up with this relay, and only once they have proven that they know the cluster secret,
+ * since a relay link can add clients to any group without their ID token being checked.
+ */
+public class ClusterNode implements RelayLink.Listener {
+	//How often to try connecting to relays that aren't connected, in milliseconds
+	private static final long reconnectInterval = 5 * 1000;
+	
+	//How long to wait for a connection to another relay, in milliseconds
+	private static final int connectTimeout = 2 * 1000;
+	
+	//How long to wait for a relay to accept a forwarded client, in milliseconds
+	private static final long openTimeout = 10 * 1000;
+	
+	private final String relayID;
+	private final Map<String, InetSocketAddress> peerMap;
+	private final SecretKeySpec secretKey;
+	private final Server server;
+	private final ServerSocket serverSocket;
+	
+	//Links that this relay forwards its clients over, mapped by relay ID
+	private final Map<String, RelayLink> outboundLinkMap = new ConcurrentHashMap<>();
+	
+	//Links that other relays forward their clients over
+	private final Set<RelayLink> inboundLinkSet = ConcurrentHashMap.newKeySet();
+	
+	//Clients connected to this relay that are forwarded to other relays, mapped by link connection ID
+	private final Map<Integer, ForwardedClient> forwardedClientMap = new ConcurrentHashMap<>();
+	private final AtomicInteger linkConnectionIDCounter = new AtomicInteger();
+	
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "ClusterNode");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	/**
+	 * Creates a new cluster node
+	 * @param relayID The relay ID of this relay
+	 * @param bindAddress The address to accept links from other relays on
+	 * @param peerMap A map of the relay IDs of the other relays to their addresses
+	 * @param secret The secret shared by all relays of the cluster
+	 * @param server The server that hosts this relay's groups
+	 * @throws IOException If the port couldn't be opened
+	 */
+	public ClusterNode(String relayID, InetSocketAddress bindAddress, Map<String, InetSocketAddress> peerMap, byte[] secret, Server server) throws IOException {
+		if(secret.length < 16) throw new IllegalArgumentException("The cluster secret must be at least 16 bytes long");
+		
+		this.relayID = relayID;
+		this.peerMap = peerMap;
+		this.secretKey = new SecretKeySpec(secret, "HmacSHA256");
+		this.server = server;
+		
+		serverSocket = new ServerSocket();
+		serverSocket.setReuseAddress(true);
+		serverSocket.bind(bindAddress);
+	}
+	
+	/**
+	 * Starts accepting links from other relays, and connecting to other relays
+	 */
+	public void start() {
+		Thread thread = new Thread(this::runAccept, "ClusterNode-Accept");
+		thread.setDaemon(true);
+		thread.start();
+		
+		executor.scheduleWithFixedDelay(this::connectPeers, 0, reconnectInterval, TimeUnit.MILLISECONDS);
+		
+		Main.getLogger().log(Level.INFO, "Relay " + relayID + " accepting relay links on " + serverSocket.getLocalSocketAddress() + " with " + peerMap.size() + " peers");
+	}
+	
+	private void runAccept() {
+		while(true) {
+			try {
+				Socket socket = serverSocket.accept();
+				RelayLink link = new RelayLink(socket, null, relayID, secretKey, this);
+				inboundLinkSet.add(link);
+				link.start();
+			} catch(IOException exception) {
+				Main.getLogger().log(Level.WARNING, "Failed to accept relay link: " + exception.getMessage(), exception);
+				if(serverSocket.isClosed()) return;
+			}
+		}
+	}
+	
+	/**
+	 * Connects to all other relays that aren't connected yet
+	 */
+	private void connectPeers() {
+		for(Map.Entry<String, InetSocketAddress> entry : peerMap.entrySet()) {
+			RelayLink existingLink = outboundLinkMap.get(entry.getKey());
+			if(existingLink != null && !existingLink.isClosed()) continue;
+			
+			Socket socket = new Socket();
+			try {
+				socket.connect(entry.getValue(), connectTimeout);
+				RelayLink link = new RelayLink(socket, entry.getKey(), relayID, secretKey, this);
+				outboundLinkMap.put(entry.getKey(), link);
+				link.start();
+				Main.getLogger().log(Level.INFO, "Connected to relay " + entry.getKey() + " at " + entry.getValue());
+			} catch(IOException exception) {
+				Main.getLogger().log(Level.FINE, () -> "Failed to connect to relay " + entry.getKey() + " at " + entry.getValue() + ": " + exception.getMessage());
+				try {
+					socket.close();
+				} catch(IOException closeException) {
+					Main.getLogger().log(Level.WARNING, closeException.getMessage(), closeException);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Offers a client to the other relays, to be accepted by the relay that hosts its group
+	 * @param connection The client's connection
+	 * @param clientData The client's data
+	 * @param type The client's connection classification data
+	 * @return TRUE if the client was offered, or FALSE if no other relays are connected
+	 */
+	public boolean forwardClient(WebSocket connection, ClientData clientData, ClientData.Type type) {
+		List<RelayLink> linkList = new ArrayList<>(outboundLinkMap.values());
+		linkList.removeIf(link -> link.isClosed() || !link.isAuthenticated());
+		if(linkList.isEmpty()) return false;
+		
+		int linkConnectionID = linkConnectionIDCounter.incrementAndGet();
+		ForwardedClient forwardedClient = new ForwardedClient(connection, linkConnectionID, linkList.size());
+		forwardedClientMap.put(linkConnectionID, forwardedClient);
+		clientData.setForwardedClient(forwardedClient);
+		
+		Main.getLogger().log(Level.FINE, () -> "Forwarding client of " + type.getGroupID() + " from " + Main.connectionToString(connection) + " to " + linkList.size() + " relays");
+		for(RelayLink link : linkList) {
+			link.sendClientOpen(linkConnectionID, clientData.getProtocol().getVersion(), type.getGroupID(), type.getFCMToken(), clientData.isResumable(), type.getResumeGroupEpoch(), type.getResumeConnectionID(), connection.getRemoteSocketAddress());
+		}
+		
+		//Giving up if no relay responds in time
+		executor.schedule(() -> {
+			if(forwardedClient.link == null && forwardedClientMap.remove(linkConnectionID, forwardedClient)) {
+				Main.getLogger().log(Level.FINE, () -> "Rejecting connection (no relay response - " + type.getGroupID() + ") from client " + Main.connectionToString(connection));
+				connection.close(SharedData.closeCodeNoGroup);
+			}
+		}, openTimeout, TimeUnit.MILLISECONDS);
+		
+		return true;
+	}
+	
+	/**
+	 * Passes a message from a forwarded client to the relay hosting its group
+	 * @param forwardedClient The client that sent the message
+	 * @param message The message data
+	 */
+	public void forwardMessage(ForwardedClient forwardedClient, ByteBuffer message) {
+		RelayLink link = forwardedClient.link;
+		if(link == null) {
+			Main.getLogger().log(Level.FINE, () -> "Dropping message from client " + Main.connectionToString(forwardedClient.connection) + " - not accepted by a relay yet");
+			return;
+		}
+		
+		link.sendClientData(forwardedClient.linkConnectionID, message);
+	}
+	
+	/**
+	 * Notifies the relay hosting a forwarded client's group that the client disconnected
+	 * @param forwardedClient The client that disconnected
+	 * @param code The close code of the disconnection
+	 */
+	public void onForwardedClientClosed(ForwardedClient forwardedClient, int code) {
+		if(!forwardedClientMap.remove(forwardedClient.linkConnectionID, forwardedClient)) return;
+		
+		RelayLink link = forwardedClient.link;
+		if(link != null) link.sendClientClose(forwardedClient.linkConnectionID, code);
+	}
+	
+	/**
+	 * Cleans up after a client hosted on this relay was closed
+	 */
+	void onRemoteClientClosed(RemoteClientConnection connection, int code, String reason, boolean remote) {
+		server.onClose(connection, code, reason, remote);
+	}
+	
+	@Override
+	public boolean isPeerAllowed(RelayLink link, String peerID) {
+		InetSocketAddress peerAddress = peerMap.get(peerID);
+		if(peerAddress == null) {
+			Main.getLogger().log(Level.WARNING, "Rejecting relay link from unknown relay " + peerID + " (" + link.getRemoteSocketAddress() + ")");
+			return false;
+		}
+		
+		//Looking up the peer's host again, in case its address has changed since the list was read
+		InetAddress remoteAddress = link.getRemoteSocketAddress().getAddress();
+		try {
+			for(InetAddress address : InetAddress.getAllByName(peerAddress.getHostString())) {
+				if(address.equals(remoteAddress)) return true;
+			}
+		} catch(UnknownHostException exception) {
+			Main.getLogger().log(Level.WARNING, "Failed to resolve relay " + peerID + " at " + peerAddress.getHostString() + ": " + exception.getMessage());
+			return false;
+		}
+		
+		Main.getLogger().log(Level.WARNING, "Rejecting relay link from " + peerID + " - connected from " + remoteAddress + ", which isn't the address of " + peerAddress.getHostString());
+		return false;
+	}
+	
+	@Override
+	public void onFrame(RelayLink link, byte type, ByteBuffer payload) {
+		if(inboundLinkSet.contains(link)) {
+			onInboundFrame(link, type, payload);
+		} else {
+			onOutboundFrame(link, type, payload);
+		}
+	}
+	
+	/**
+	 * Handles a frame from a relay forwarding its clients to this relay
+	 */
+	private void onInboundFrame(RelayLink link, byte type, ByteBuffer payload) {
+		int linkConnectionID = payload.getInt();
+		
+		switch(type) {
+			case RelayLink.frameClientOpen: {
+				int protocolVersion = payload.getInt();
+				String groupID = RelayLink.readString(payload);
+				String fcmToken = payload.get() != 0 ? RelayLink.readString(payload) : null;
+				boolean isResumable = payload.get() != 0;
+				long resumeGroupEpoch = payload.getLong();
+				int resumeConnectionID = payload.getInt();
+				byte[] addressBytes = new byte[payload.get()];
+				payload.get(addressBytes);
+				int port = payload.getInt();
+				
+				Protocol protocol = Communications.getProtocol(protocolVersion);
+				if(protocol == null) {
+					link.sendOpenResult(linkConnectionID, SharedData.closeCodeIncompatibleProtocol);
+					break;
+				}
+				
+				//Letting the relay know if we don't host this group
+				if(!server.getConnectionCollection().hasGroup(groupID)) {
+					link.sendOpenResult(linkConnectionID, SharedData.closeCodeNoGroup);
+					break;
+				}
+				
+				InetSocketAddress address;
+				try {
+					address = addressBytes.length > 0 ? new InetSocketAddress(InetAddress.getByAddress(addressBytes), port) : null;
+				} catch(UnknownHostException exception) {
+					address = null;
+				}
+				
+				//Adding the client to its group
+				RemoteClientConnection connection = new RemoteClientConnection(this, link, linkConnectionID, address);
+				ClientData clientData = new ClientData(false, new ClientData.Type(groupID, fcmToken, null, resumeGroupEpoch, resumeConnectionID), protocol);
+				clientData.setResumable(isResumable && ResumeTokenUtils.isAvailable());
+				connection.setAttachment(clientData);
+				link.remoteClientMap.put(linkConnectionID, connection);
+				link.sendOpenResult(linkConnectionID, 0);
+				server.openConnection(connection);
+				
+				break;
+			}
+			case RelayLink.frameClientData: {
+				RemoteClientConnection connection = link.remoteClientMap.get(linkConnectionID);
+				if(connection != null) server.onMessage(connection, payload.slice());
+				
+				break;
+			}
+			case RelayLink.frameClientClose: {
+				int code = payload.getInt();
+				RemoteClientConnection connection = link.remoteClientMap.remove(linkConnectionID);
+				if(connection != null && connection.setClosed()) {
+					server.onClose(connection, code, "Disconnected from relay " + link.getPeerID(), true);
+				}
+				
+				break;
+			}
+			default:
+				Main.getLogger().log(Level.WARNING, "Ignoring unknown frame type " + type + " from relay " + link.getPeerID());
+				break;
+		}
+	}
+	
+	/**
+	 * Handles a frame from a relay hosting clients of this relay
+	 */
+	private void onOutboundFrame(RelayLink link, byte type, ByteBuffer payload) {
+		int linkConnectionID = payload.getInt();
+		ForwardedClient forwardedClient = forwardedClientMap.get(linkConnectionID);
+		
+		switch(type) {
+			case RelayLink.frameOpenResult: {
+				int code = payload.getInt();
+				
+				//Closing the client on the other relay if it's no longer needed
+				if(forwardedClient == null) {
+					if(code == 0) link.sendClientClose(linkConnectionID, CloseFrame.NORMAL);
+					break;
+				}
+				
+				synchronized(forwardedClient) {
+					forwardedClient.pendingCount--;
+					
+					if(code == 0) {
+						if(forwardedClient.link == null) {
+							forwardedClient.link = link;
+							Main.getLogger().log(Level.FINE, () -> "Client " + Main.connectionToString(forwardedClient.connection) + " forwarded to relay " + link.getPeerID());
+							break;
+						} else {
+							//Another relay already accepted this client
+							link.sendClientClose(linkConnectionID, CloseFrame.NORMAL);
+						}
+					}
+					
+					if(forwardedClient.pendingCount > 0 || forwardedClient.link != null) break;
+				}
+				
+				//No relay hosts this client's group
+				if(forwardedClientMap.remove(linkConnectionID, forwardedClient)) {
+					Main.getLogger().log(Level.FINE, () -> "Rejecting connection (no group on any relay) from client " + Main.connectionToString(forwardedClient.connection));
+					forwardedClient.connection.close(code);
+				}
+				
+				break;
+			}
+			case RelayLink.frameClientData: {
+				if(forwardedClient != null && forwardedClient.link == link) forwardedClient.connection.send(payload.slice());
+				
+				break;
+			}
+			case RelayLink.frameClientClose: {
+				int code = payload.getInt();
+				if(forwardedClient != null && forwardedClient.link == link && forwardedClientMap.remove(linkConnectionID, forwardedClient)) {
+					forwardedClient.connection.close(code);
+				}
+				
+				break;
+			}
+			default:
+				Main.getLogger().log(Level.WARNING, "Ignoring unknown frame type " + type + " from relay " + link.getPeerID());
+				break;
+		}
+	}
+	
+	@Override
+	public void onClose(RelayLink link) {
+		if(inboundLinkSet.remove(link)) {
+			//Disconnecting all clients that were forwarded to this relay
+			for(RemoteClientConnection connection : link.remoteClientMap.values()) {
+				if(connection.setClosed()) server.onClose(connection, CloseFrame.GOING_AWAY, "Lost link to relay " + link.getPeerID(), true);
+			}
+			link.remoteClientMap.clear();
+		} else {
+			outboundLinkMap.remove(link.getPeerID(), link);
+			
+			//Disconnecting all clients that were forwarded to the relay
+			for(ForwardedClient forwardedClient : forwardedClientMap.values()) {
+				if(forwardedClient.link == link && forwardedClientMap.remove(forwardedClient.linkConnectionID, forwardedClient)) {
+					forwardedClient.connection.close(CloseFrame.GOING_AWAY);
+				}
+			}
+		}
+		
+		if(link.isAuthenticated()) Main.getLogger().log(Level.INFO, "Relay link with " + link.getPeerID() + " closed");
+	}
+	
+	public String getRelayID() {
+		return relayID;
+	}
+	
+	/**
+	 * Parses a list of relays in the form of "id=host:port,id=host:port"
+	 * @param value The string to parse
+	 * @param relayID The ID of this relay, to leave out of the list, or NULL to keep every relay
+	 * @return A map of relay IDs to addresses
+	 * @throws IllegalArgumentException If the string is not a valid list of relays
+	 */
+	public static Map<String, InetSocketAddress> parsePeers(String value, String relayID) {
+		Map<String, InetSocketAddress> peerMap = new LinkedHashMap<>();
+		for(String entry : value.split(",")) {
+			entry = entry.trim();
+			if(entry.isEmpty()) continue;
+			
+			int separatorIndex = entry.indexOf('=');
+			int portIndex = entry.lastIndexOf(':');
+			if(separatorIndex <= 0 || portIndex < separatorIndex) throw new IllegalArgumentException("Invalid relay " + entry);
+			
+			String peerID = entry.substring(0, separatorIndex);
+			if(peerID.equals(relayID)) continue;
+			peerMap.put(peerID, new InetSocketAddress(entry.substring(separatorIndex + 1, portIndex), Integer.parseInt(entry.substring(portIndex + 1))));
+		}
+		return peerMap;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,32 @@
+package me.tagavari.airmessageconnect.cluster;
+
+import org.java_websocket.WebSocket;
+
+/**
+ * Represents a client connected to this relay, whose group is hosted on another relay
+ */
+public class ForwardedClient {
+	final WebSocket connection;
+	final int linkConnectionID;
+	
+	//The link to the relay that accepted this client, or NULL while waiting for a relay to accept it
+	volatile RelayLink link = null;
+	
+	//The amount of relays that haven't responded yet
+	int pendingCount;
+	
+	ForwardedClient(WebSocket connection, int linkConnectionID, int pendingCount) {
+		this.connection = connection;
+		this.linkConnectionID = linkConnectionID;
+		this.pendingCount = pendingCount;
+	}
+	
+	/**
+	 * Gets the relay ID of the relay hosting this client's group
+	 * @return The relay ID, or NULL if this client hasn't been accepted yet
+	 */
+	public String getPeerID() {
+		RelayLink link = this.link;
+		return link != null ? link.getPeerID() : null;
+	}
+}
\ No newline at end of file
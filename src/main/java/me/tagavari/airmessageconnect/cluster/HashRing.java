@@ -0,0 +1,142 @@
+package me.tagavari.airmessageconnect.cluster;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * A consistent-hash ring of relays, used to decide which relay a group lives on
+ *
+ * Every relay is placed on the ring many times, so that groups are spread evenly,
+ * and adding or removing a relay only moves the groups between it and its neighbours.
+ */
+public class HashRing {
+	//The amount of points to place on the ring for every relay
+	private static final int virtualNodeCount = 160;
+	
+	private final TreeMap<Long, Node> ringMap = new TreeMap<>();
+	private final List<Node> nodeList;
+	
+	/**
+	 * Creates a new hash ring
+	 * @param nodeList The relays to place on the ring
+	 */
+	public HashRing(List<Node> nodeList) {
+		if(nodeList.isEmpty()) throw new IllegalArgumentException("A hash ring needs at least one relay");
+		this.nodeList = Collections.unmodifiableList(new ArrayList<>(nodeList));
+		
+		for(Node node : nodeList) {
+			for(int i = 0; i < virtualNodeCount; i++) {
+				ringMap.put(hash(node.relayID + "#" + i), node);
+			}
+		}
+	}
+	
+	/**
+	 * Gets the relay that a group lives on
+	 * @param groupID The ID of the group
+	 * @return The relay responsible for the group
+	 */
+	public Node getNode(String groupID) {
+		Map.Entry<Long, Node> entry = ringMap.ceilingEntry(hash(groupID));
+		if(entry == null) entry = ringMap.firstEntry();
+		return entry.getValue();
+	}
+	
+	public List<Node> getNodeList() {
+		return nodeList;
+	}
+	
+	/**
+	 * Checks if a relay is part of this ring
+	 * @param relayID The ID of the relay
+	 * @return TRUE if the relay is on the ring
+	 */
+	public boolean containsNode(String relayID) {
+		for(Node node : nodeList) {
+			if(node.relayID.equals(relayID)) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Reads a ring from a file, with one relay per line in the form of "id [address]"
+	 * Empty lines and lines starting with # are ignored
+	 * @param file The file to read
+	 * @return The hash ring
+	 */
+	public static HashRing fromFile(File file) throws IOException {
+		List<Node> nodeList = new ArrayList<>();
+		for(String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+			line = line.trim();
+			if(line.isEmpty() || line.startsWith("#")) continue;
+			
+			String[] parts = line.split("\\s+", 2);
+			nodeList.add(new Node(parts[0], parts.length > 1 ? parts[1] : null));
+		}
+		
+		try {
+			return new HashRing(nodeList);
+		} catch(IllegalArgumentException exception) {
+			throw new IOException("No relays listed in " + file.getPath());
+		}
+	}
+	
+	/**
+	 * Hashes a key to a position on the ring
+	 */
+	private static long hash(String key) {
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+		} catch(NoSuchAlgorithmException exception) {
+			throw new IllegalStateException(exception);
+		}
+		
+		long value = 0;
+		for(int i = 0; i < Long.BYTES; i++) value = (value << 8) | (digest[i] & 0xFF);
+		return value;
+	}
+	
+	/**
+	 * A relay on the ring
+	 */
+	public static class Node {
+		private final String relayID;
+		private final String address;
+		
+		/**
+		 * @param relayID The ID of this relay
+		 * @param address The address clients should use to reach this relay, or NULL to only identify it by its ID
+		 */
+		public Node(String relayID, String address) {
+			this.relayID = relayID;
+			this.address = address;
+		}
+		
+		public String getRelayID() {
+			return relayID;
+		}
+		
+		public String getAddress() {
+			return address;
+		}
+		
+		/**
+		 * Gets the value to send to clients that should reconnect to this relay
+		 * @return The relay's address, or its ID if it doesn't have one
+		 */
+		public String getRedirectTarget() {
+			return address != null ? address : relayID;
+		}
+		
+		@Override
+		public String toString() {
+			return address != null ? relayID + " (" + address + ")" : relayID;
+		}
+	}
+}
\ No newline at end of file
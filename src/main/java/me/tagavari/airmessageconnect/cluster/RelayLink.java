@@ -0,0 +1,398 @@
+package me.tagavari.airmessageconnect.cluster;
+
+import me.tagavari.airmessageconnect.Main;
+import me.tagavari.airmessageconnect.Server;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * A TCP connection between two relays, used to forward clients to the relay that hosts their server
+ *
+ * Every frame is sent as [int length][byte type][payload], where the length covers the type and payload.
+ * Links are one-directional in purpose: the relay that dials a link forwards its clients over it,
+ * and the relay that accepts a link hosts those clients on its groups.
+ *
+ * Before any clients are forwarded, both relays prove that they know the cluster secret.
+ * The dialing relay sends a hello with its ID and a random nonce, and the accepting relay answers with its own hello
+ * and an HMAC of both nonces and both IDs. The dialing relay then sends its own HMAC, and any other frame
+ * received before the other relay's HMAC has been checked closes the link.
+ *
+ * Frames are written by a dedicated thread, so that a slow relay doesn't hold up the threads that forward messages to it.
+ * If too much data piles up for a relay, the link is closed.
+ */
+public class RelayLink {
+	//Frame types
+	static final byte frameHello = 0; //[UTF relay ID][nonce]
+	static final byte frameClientOpen = 1; //[int link connection ID][int protocol version][UTF group ID][nullable UTF FCM token][boolean resumable][long resume group epoch][int resume connection ID][byte address length][address][int port]
+	static final byte frameOpenResult = 2; //[int link connection ID][int close code, or 0 if successful]
+	static final byte frameClientData = 3; //[int link connection ID][payload]
+	static final byte frameClientClose = 4; //[int link connection ID][int close code]
+	static final byte frameAuth = 5; //[HMAC-SHA256 of the sender's role, both nonces and both relay IDs]
+	
+	//The maximum size of a frame, which fits the largest message a client or server can send, plus the frame's own fields
+	private static final int frameSizeLimit = Server.messageSizeLimit + 1024;
+	
+	//The maximum amount of data waiting to be written to a link before the link is closed
+	private static final long outboundByteLimit = 32 * 1024 * 1024;
+	
+	//How long the other relay has to authenticate, in milliseconds
+	private static final int authTimeout = 10 * 1000;
+	
+	private static final String authAlgorithm = "HmacSHA256";
+	private static final int nonceLength = 32;
+	
+	private final Socket socket;
+	private final DataInputStream inputStream;
+	private final OutputStream outputStream;
+	private final Listener listener;
+	private final AtomicBoolean isClosed = new AtomicBoolean(false);
+	private volatile String peerID;
+	
+	//Authentication state
+	private final boolean isDialer;
+	private final String relayID;
+	private final SecretKeySpec secretKey;
+	private final byte[] localNonce = new byte[nonceLength];
+	private byte[] peerNonce = null;
+	private volatile boolean isAuthenticated = false;
+	
+	//Frames waiting to be written
+	private final BlockingQueue<ByteBuffer> outboundQueue = new LinkedBlockingQueue<>();
+	private final AtomicLong outboundBytes = new AtomicLong();
+	private final Thread writeThread;
+	
+	//Clients hosted on this relay for the other end of this link, mapped by link connection ID
+	final Map<Integer, RemoteClientConnection> remoteClientMap = new ConcurrentHashMap<>();
+	
+	/**
+	 * Creates a new relay link
+	 * @param socket The connected socket
+	 * @param peerID The relay ID of the relay that was dialed, or NULL if this link was accepted
+	 * @param relayID The relay ID of this relay
+	 * @param secretKey The cluster secret to authenticate with
+	 * @param listener The listener to pass frames to once the link is authenticated
+	 */
+	RelayLink(Socket socket, String peerID, String relayID, SecretKeySpec secretKey, Listener listener) throws IOException {
+		this.socket = socket;
+		this.peerID = peerID;
+		this.isDialer = peerID != null;
+		this.relayID = relayID;
+		this.secretKey = secretKey;
+		this.listener = listener;
+		new SecureRandom().nextBytes(localNonce);
+		
+		socket.setTcpNoDelay(true);
+		socket.setSoTimeout(authTimeout);
+		inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		outputStream = new BufferedOutputStream(socket.getOutputStream());
+		
+		writeThread = new Thread(this::runWrite, "RelayLink-Write-" + socket.getRemoteSocketAddress());
+		writeThread.setDaemon(true);
+	}
+	
+	/**
+	 * Starts reading and writing frames on new threads, introducing this relay if it dialed the link
+	 */
+	void start() {
+		if(isDialer) sendHello();
+		
+		writeThread.start();
+		
+		Thread thread = new Thread(this::runRead, "RelayLink-" + socket.getRemoteSocketAddress());
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	private void runRead() {
+		try {
+			while(true) {
+				int length = inputStream.readInt();
+				if(length < 1 || length > frameSizeLimit) throw new IOException("Invalid frame length " + length);
+				
+				byte type = inputStream.readByte();
+				byte[] payload = new byte[length - 1];
+				inputStream.readFully(payload);
+				
+				if(isAuthenticated) {
+					if(type == frameHello || type == frameAuth) throw new IOException("Unexpected authentication frame");
+					listener.onFrame(this, type, ByteBuffer.wrap(payload));
+				} else if(type == frameHello) {
+					handleHello(ByteBuffer.wrap(payload));
+				} else if(type == frameAuth) {
+					handleAuth(payload);
+				} else {
+					throw new IOException("Received frame type " + type + " before authenticating");
+				}
+			}
+		} catch(IOException exception) {
+			if(!isClosed.get()) Main.getLogger().log(Level.WARNING, "Relay link with " + getDescription() + " failed: " + exception.getMessage());
+		} catch(RuntimeException exception) {
+			Main.getLogger().log(Level.WARNING, "Relay link with " + getDescription() + " failed: " + exception.getMessage(), exception);
+		}
+		
+		close();
+	}
+	
+	private void runWrite() {
+		try {
+			while(true) {
+				ByteBuffer frame = outboundQueue.take();
+				int length = frame.remaining();
+				outputStream.write(frame.array(), frame.arrayOffset() + frame.position(), length);
+				outboundBytes.addAndGet(-length);
+				
+				//Sending frames that were queued together in a single write
+				if(outboundQueue.isEmpty()) outputStream.flush();
+			}
+		} catch(InterruptedException exception) {
+			return;
+		} catch(IOException exception) {
+			if(!isClosed.get()) Main.getLogger().log(Level.WARNING, "Failed to write to relay link with " + getDescription() + ": " + exception.getMessage());
+		}
+		
+		close();
+	}
+	
+	/**
+	 * Handles the other relay introducing itself
+	 */
+	private void handleHello(ByteBuffer payload) throws IOException {
+		if(peerNonce != null) throw new IOException("Received a second hello");
+		
+		String helloPeerID = readString(payload);
+		if(payload.remaining() != nonceLength) throw new IOException("Invalid nonce length " + payload.remaining());
+		peerNonce = new byte[nonceLength];
+		payload.get(peerNonce);
+		
+		if(isDialer) {
+			//Making sure we reached the relay we dialed
+			if(!helloPeerID.equals(peerID)) throw new IOException("Expected relay " + peerID + ", but reached " + helloPeerID);
+		} else {
+			//Making sure the relay is part of the cluster, before telling it anything about this relay
+			if(!listener.isPeerAllowed(this, helloPeerID)) throw new IOException("Relay " + helloPeerID + " is not a known peer");
+			peerID = helloPeerID;
+			sendHello();
+		}
+		
+		byte[] proof = createProof(true);
+		queueFrame(allocateFrame(frameAuth, proof.length).put(proof).flip());
+	}
+	
+	/**
+	 * Handles the other relay proving that it knows the cluster secret
+	 */
+	private void handleAuth(byte[] payload) throws IOException {
+		if(peerNonce == null) throw new IOException("Received authentication before hello");
+		if(!MessageDigest.isEqual(createProof(false), payload)) throw new IOException("Relay " + peerID + " failed to authenticate");
+		
+		isAuthenticated = true;
+		socket.setSoTimeout(0);
+		Main.getLogger().log(Level.INFO, "Relay link established with " + peerID + " (" + socket.getRemoteSocketAddress() + ")");
+	}
+	
+	/**
+	 * Creates the proof of knowing the cluster secret that a relay on this link sends
+	 * The proof covers the role of the relay, so that a relay's proof can't be reflected back to it
+	 * @param isLocal TRUE to create this relay's proof, or FALSE to create the proof expected from the other relay
+	 */
+	private byte[] createProof(boolean isLocal) {
+		boolean isSenderDialer = isLocal == isDialer;
+		String senderID = isLocal ? relayID : peerID;
+		String receiverID = isLocal ? peerID : relayID;
+		byte[] dialerNonce = isDialer ? localNonce : peerNonce;
+		byte[] acceptorNonce = isDialer ? peerNonce : localNonce;
+		
+		try {
+			Mac mac = Mac.getInstance(authAlgorithm);
+			mac.init(secretKey);
+			mac.update((byte) (isSenderDialer ? 1 : 0));
+			mac.update(dialerNonce);
+			mac.update(acceptorNonce);
+			mac.update(encodeString(senderID));
+			mac.update(encodeString(receiverID));
+			return mac.doFinal();
+		} catch(GeneralSecurityException exception) {
+			throw new IllegalStateException(exception);
+		}
+	}
+	
+	/**
+	 * Creates a frame buffer with its length and type filled in, ready for its payload to be added
+	 */
+	private static ByteBuffer allocateFrame(byte type, int payloadLength) {
+		ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + 1 + payloadLength);
+		buffer.putInt(1 + payloadLength);
+		buffer.put(type);
+		return buffer;
+	}
+	
+	/**
+	 * Queues a frame to be written to this link, closing the link if too much data is waiting already
+	 */
+	private void queueFrame(ByteBuffer frame) {
+		if(isClosed.get()) return;
+		
+		if(outboundBytes.addAndGet(frame.remaining()) > outboundByteLimit) {
+			Main.getLogger().log(Level.WARNING, "Closing relay link with " + getDescription() + " - more than " + outboundByteLimit + " bytes waiting to be sent");
+			close();
+			return;
+		}
+		
+		outboundQueue.add(frame);
+	}
+	
+	private void sendHello() {
+		byte[] relayIDBytes = encodeString(relayID);
+		ByteBuffer buffer = allocateFrame(frameHello, Short.BYTES + relayIDBytes.length + nonceLength);
+		putString(buffer, relayIDBytes);
+		buffer.put(localNonce);
+		queueFrame(buffer.flip());
+	}
+	
+	void sendClientOpen(int linkConnectionID, int protocolVersion, String groupID, String fcmToken, boolean isResumable, long resumeGroupEpoch, int resumeConnectionID, InetSocketAddress address) {
+		byte[] groupIDBytes = encodeString(groupID);
+		byte[] fcmTokenBytes = fcmToken != null ? encodeString(fcmToken) : null;
+		byte[] addressBytes = address != null && address.getAddress() != null ? address.getAddress().getAddress() : new byte[0];
+		
+		ByteBuffer buffer = allocateFrame(frameClientOpen, Integer.BYTES * 2 + Short.BYTES + groupIDBytes.length + 1 + (fcmTokenBytes != null ? Short.BYTES + fcmTokenBytes.length : 0) + 1 + Long.BYTES + Integer.BYTES + 1 + addressBytes.length + Integer.BYTES);
+		buffer.putInt(linkConnectionID);
+		buffer.putInt(protocolVersion);
+		putString(buffer, groupIDBytes);
+		buffer.put((byte) (fcmTokenBytes != null ? 1 : 0));
+		if(fcmTokenBytes != null) putString(buffer, fcmTokenBytes);
+		buffer.put((byte) (isResumable ? 1 : 0));
+		buffer.putLong(resumeGroupEpoch);
+		buffer.putInt(resumeConnectionID);
+		buffer.put((byte) addressBytes.length);
+		buffer.put(addressBytes);
+		buffer.putInt(address != null ? address.getPort() : 0);
+		queueFrame(buffer.flip());
+	}
+	
+	void sendOpenResult(int linkConnectionID, int closeCode) {
+		ByteBuffer buffer = allocateFrame(frameOpenResult, Integer.BYTES * 2);
+		buffer.putInt(linkConnectionID);
+		buffer.putInt(closeCode);
+		queueFrame(buffer.flip());
+	}
+	
+	void sendClientData(int linkConnectionID, ByteBuffer data) {
+		ByteBuffer buffer = allocateFrame(frameClientData, Integer.BYTES + data.remaining());
+		buffer.putInt(linkConnectionID);
+		buffer.put(data.duplicate());
+		queueFrame(buffer.flip());
+	}
+	
+	void sendClientClose(int linkConnectionID, int closeCode) {
+		ByteBuffer buffer = allocateFrame(frameClientClose, Integer.BYTES * 2);
+		buffer.putInt(linkConnectionID);
+		buffer.putInt(closeCode);
+		queueFrame(buffer.flip());
+	}
+	
+	private static byte[] encodeString(String value) {
+		return value.getBytes(StandardCharsets.UTF_8);
+	}
+	
+	private static void putString(ByteBuffer buffer, byte[] bytes) {
+		buffer.putShort((short) bytes.length);
+		buffer.put(bytes);
+	}
+	
+	static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort())];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Closes this link, notifying the listener once
+	 */
+	void close() {
+		if(!isClosed.compareAndSet(false, true)) return;
+		
+		writeThread.interrupt();
+		outboundQueue.clear();
+		try {
+			socket.close();
+		} catch(IOException exception) {
+			Main.getLogger().log(Level.WARNING, exception.getMessage(), exception);
+		}
+		
+		listener.onClose(this);
+	}
+	
+	boolean isClosed() {
+		return isClosed.get();
+	}
+	
+	/**
+	 * Checks if both relays on this link have proven that they know the cluster secret
+	 */
+	boolean isAuthenticated() {
+		return isAuthenticated;
+	}
+	
+	/**
+	 * Gets the relay ID of the other end of this link
+	 * @return The peer's relay ID, or NULL if it hasn't introduced itself yet
+	 */
+	public String getPeerID() {
+		return peerID;
+	}
+	
+	/**
+	 * Describes the other end of this link for logging, by its relay ID if it has introduced itself
+	 */
+	private String getDescription() {
+		return peerID != null ? peerID : String.valueOf(socket.getRemoteSocketAddress());
+	}
+	
+	InetSocketAddress getRemoteSocketAddress() {
+		return (InetSocketAddress) socket.getRemoteSocketAddress();
+	}
+	
+	InetSocketAddress getLocalSocketAddress() {
+		return (InetSocketAddress) socket.getLocalSocketAddress();
+	}
+	
+	interface Listener {
+		/**
+		 * Checks if a relay that dialed this relay may link up with it
+		 * @param link The link the relay dialed in on
+		 * @param peerID The relay ID the relay introduced itself with
+		 * @return TRUE if the relay is a known peer
+		 */
+		boolean isPeerAllowed(RelayLink link, String peerID);
+		
+		/**
+		 * Handles a frame received from an authenticated link
+		 * @param link The link the frame was received from
+		 * @param type The type of the frame
+		 * @param payload The frame's payload
+		 */
+		void onFrame(RelayLink link, byte type, ByteBuffer payload);
+		
+		/**
+		 * Handles a link being closed
+		 * @param link The link that was closed
+		 */
+		void onClose(RelayLink link);
+	}
+}
\ No newline at end of file
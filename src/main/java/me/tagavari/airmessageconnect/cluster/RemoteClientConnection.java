@@ -0,0 +1,190 @@
+package me.tagavari.airmessageconnect.cluster;
+
+import me.tagavari.airmessageconnect.Main;
+import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.enums.Opcode;
+import org.java_websocket.enums.ReadyState;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.protocols.IProtocol;
+
+import javax.net.ssl.SSLSession;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+/**
+ * Represents a client connected to another relay, hosted on a group on this relay
+ *
+ * Data sent to this connection is forwarded over the relay link to the relay that the client is connected to.
+ */
+public class RemoteClientConnection implements WebSocket {
+	private final ClusterNode clusterNode;
+	private final RelayLink link;
+	private final int linkConnectionID;
+	private final InetSocketAddress remoteAddress;
+	private final AtomicBoolean isClosed = new AtomicBoolean(false);
+	private Object attachment;
+	
+	RemoteClientConnection(ClusterNode clusterNode, RelayLink link, int linkConnectionID, InetSocketAddress remoteAddress) {
+		this.clusterNode = clusterNode;
+		this.link = link;
+		this.linkConnectionID = linkConnectionID;
+		this.remoteAddress = remoteAddress;
+	}
+	
+	/**
+	 * Marks this connection as closed by the other end, without notifying the other relay
+	 * @return TRUE if this connection was open
+	 */
+	boolean setClosed() {
+		return isClosed.compareAndSet(false, true);
+	}
+	
+	@Override
+	public void close(int code, String message) {
+		if(!setClosed()) return;
+		
+		link.remoteClientMap.remove(linkConnectionID);
+		link.sendClientClose(linkConnectionID, code);
+		clusterNode.onRemoteClientClosed(this, code, message, false);
+	}
+	
+	@Override
+	public void close(int code) {
+		close(code, "");
+	}
+	
+	@Override
+	public void close() {
+		close(CloseFrame.NORMAL);
+	}
+	
+	@Override
+	public void closeConnection(int code, String message) {
+		close(code, message);
+	}
+	
+	@Override
+	public void send(String text) {
+		send(text.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	@Override
+	public void send(ByteBuffer bytes) {
+		if(isClosed.get()) return;
+		link.sendClientData(linkConnectionID, bytes);
+	}
+	
+	@Override
+	public void send(byte[] bytes) {
+		send(ByteBuffer.wrap(bytes));
+	}
+	
+	@Override
+	public void sendFrame(Framedata framedata) {
+		logUnsupportedFrame();
+	}
+	
+	@Override
+	public void sendFrame(Collection<Framedata> frames) {
+		logUnsupportedFrame();
+	}
+	
+	@Override
+	public void sendPing() {
+		//Pings are handled by the relay that the client is connected to
+	}
+	
+	@Override
+	public void sendFragmentedFrame(Opcode op, ByteBuffer buffer, boolean fin) {
+		logUnsupportedFrame();
+	}
+	
+	/**
+	 * Logs a raw frame that was dropped, since only message data can be forwarded over the relay link
+	 */
+	private void logUnsupportedFrame() {
+		Main.getLogger().log(Level.WARNING, "Dropping frame for remote client " + linkConnectionID + " (remote connections don't support frames)");
+	}
+	
+	@Override
+	public boolean hasBufferedData() {
+		return false;
+	}
+	
+	@Override
+	public InetSocketAddress getRemoteSocketAddress() {
+		return remoteAddress;
+	}
+	
+	@Override
+	public InetSocketAddress getLocalSocketAddress() {
+		return link.getLocalSocketAddress();
+	}
+	
+	@Override
+	public boolean isOpen() {
+		return !isClosed.get();
+	}
+	
+	@Override
+	public boolean isClosing() {
+		return false;
+	}
+	
+	@Override
+	public boolean isFlushAndClose() {
+		return false;
+	}
+	
+	@Override
+	public boolean isClosed() {
+		return isClosed.get();
+	}
+	
+	@Override
+	public Draft getDraft() {
+		return null;
+	}
+	
+	@Override
+	public ReadyState getReadyState() {
+		return isClosed.get() ? ReadyState.CLOSED : ReadyState.OPEN;
+	}
+	
+	@Override
+	public String getResourceDescriptor() {
+		return null;
+	}
+	
+	@Override
+	public <T> void setAttachment(T attachment) {
+		this.attachment = attachment;
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> T getAttachment() {
+		return (T) attachment;
+	}
+	
+	@Override
+	public boolean hasSSLSupport() {
+		return false;
+	}
+	
+	@Override
+	public SSLSession getSSLSession() throws IllegalArgumentException {
+		throw new IllegalArgumentException("Remote connections don't have an SSL session");
+	}
+	
+	@Override
+	public IProtocol getProtocol() {
+		return null;
+	}
+}
\ No newline at end of file
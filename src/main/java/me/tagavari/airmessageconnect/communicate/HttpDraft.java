@@ -11,31 +11,74 @@ import org.java_websocket.handshake.*;
 import org.java_websocket.util.Charsetfunctions;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.List;
 
 public class HttpDraft extends Draft {
+	//The paths that are served over plain HTTP
+	public static final String pathHealth = "/health";
+	public static final String pathDrain = "/drain";
+	public static final String pathMetrics = "/metrics";
+	private static final List<String> paths = List.of(pathHealth, pathDrain, pathMetrics);
+	
 	public static boolean isHTTP(ClientHandshake clientHandshake) {
 		String upgrade = clientHandshake.getFieldValue("Upgrade");
 		return upgrade == null || upgrade.isEmpty();
 	}
 	
+	/**
+	 * Gets the path of a request, without its query
+	 * @param clientHandshake The request
+	 * @return The request's path
+	 */
+	public static String getPath(ClientHandshake clientHandshake) {
+		String resourceDescriptor = clientHandshake.getResourceDescriptor();
+		int queryIndex = resourceDescriptor.indexOf('?');
+		return queryIndex == -1 ? resourceDescriptor : resourceDescriptor.substring(0, queryIndex);
+	}
+	
+	/**
+	 * Sets the response to send to an HTTP request
+	 * @param response The response to update
+	 * @param status The HTTP status code
+	 * @param statusMessage The HTTP status message
+	 * @param content The plain text body of the response
+	 */
+	public static void setResponse(ServerHandshakeBuilder response, int status, String statusMessage, String content) {
+		response.setHttpStatus((short) status);
+		response.setHttpStatusMessage(statusMessage);
+		response.setContent(content.getBytes(StandardCharsets.UTF_8));
+	}
+	
 	@Override
 	public List<ByteBuffer> createHandshake(Handshakedata handshakedata) {
-		return Collections.singletonList(ByteBuffer.wrap(Charsetfunctions.asciiBytes(
-			"HTTP/1.0 200 OK\r\n" +
-			"Connection: close\r\n" +
-			"\r\n"
-		)));
+		return createHandshake(handshakedata, true);
 	}
 	
 	@Override
 	public List<ByteBuffer> createHandshake(Handshakedata handshakedata, boolean withcontent) {
-		return Collections.singletonList(ByteBuffer.wrap(Charsetfunctions.asciiBytes(
-			"HTTP/1.0 200 OK\r\n" +
+		//Reading the response set by the server, defaulting to an empty OK
+		int status = 200;
+		String statusMessage = "OK";
+		if(handshakedata instanceof ServerHandshake && ((ServerHandshake) handshakedata).getHttpStatus() != 0) {
+			status = ((ServerHandshake) handshakedata).getHttpStatus();
+			statusMessage = ((ServerHandshake) handshakedata).getHttpStatusMessage();
+		}
+		byte[] content = withcontent && handshakedata.getContent() != null ? handshakedata.getContent() : new byte[0];
+		
+		byte[] header = Charsetfunctions.asciiBytes(
+			"HTTP/1.0 " + status + " " + statusMessage + "\r\n" +
 			"Connection: close\r\n" +
+			"Content-Type: text/plain; charset=utf-8\r\n" +
+			"Content-Length: " + content.length + "\r\n" +
 			"\r\n"
-		)));
+		);
+		ByteBuffer buffer = ByteBuffer.allocate(header.length + content.length);
+		buffer.put(header);
+		buffer.put(content);
+		buffer.flip();
+		return Collections.singletonList(buffer);
 	}
 	
 	@Override
@@ -45,7 +88,7 @@ public class HttpDraft extends Draft {
 	
 	@Override
 	public HandshakeState acceptHandshakeAsServer(ClientHandshake handshakedata) throws InvalidHandshakeException {
-		if(isHTTP(handshakedata) && (handshakedata.getResourceDescriptor().startsWith("/health"))) {
+		if(isHTTP(handshakedata) && paths.contains(getPath(handshakedata))) {
 			return HandshakeState.MATCHED;
 		} else {
 			return HandshakeState.NOT_MATCHED;
@@ -1,6 +1,7 @@
 package me.tagavari.airmessageconnect.communicate;
 
 import me.tagavari.airmessageconnect.ClientData;
+import me.tagavari.airmessageconnect.cluster.HashRing;
 import org.java_websocket.WebSocket;
 import org.java_websocket.drafts.Draft;
 import org.java_websocket.exceptions.InvalidDataException;
@@ -24,16 +25,31 @@ public interface Protocol {
 	 */
 	void receive(WebSocket conn, ClientData clientData, ByteBuffer data);
 	
+	/**
+	 * Get the length of the header of incoming data, which identifies the message and its recipient without any of its payload
+	 * @param data The data that was received, which is left unchanged
+	 * @return The length of the header in bytes
+	 */
+	int getHeaderLength(ByteBuffer data);
+	
 	/**
 	 * Handle a handshake as the server
 	 * @param conn The client connection that initiated this handshake
 	 * @param draft The draft of the current connection
 	 * @param request Client request data
 	 * @param paramMap A map of parameter keys to data (helper)
-	 * @return The client data to attach to this connection
+	 * @param hashRing The ring that decides which relay each group lives on, or NULL if groups can live on any relay
+	 * @return The client data to attach to this connection, which redirects the client if its group lives on another relay
 	 * @throws InvalidDataException If this request is to be rejected
 	 */
-	ClientData handleHandshake(WebSocket conn, Draft draft, ClientHandshake request, Map<String, String> paramMap) throws InvalidDataException;
+	ClientData handleHandshake(WebSocket conn, Draft draft, ClientHandshake request, Map<String, String> paramMap, HashRing hashRing) throws InvalidDataException;
+	
+	/**
+	 * Sends a message created by this protocol over a connection
+	 * @param conn The connection to send the message over
+	 * @param message The message data
+	 */
+	void send(WebSocket conn, byte[] message);
 	
 	/**
 	 * Sends a message signaling the client that the connection is OK to use
@@ -41,6 +57,13 @@ public interface Protocol {
 	 */
 	byte[] sendSharedConnectionOK();
 	
+	/**
+	 * Sends a message signaling the client that the connection is OK to use, along with a token it can reconnect with
+	 * @param resumeToken The client's resume token
+	 * @return The data to send
+	 */
+	byte[] sendSharedConnectionOK(String resumeToken);
+	
 	/**
 	 * Forwards a message from a server to a client
 	 * @param payload The data to send
@@ -3,20 +3,24 @@ package me.tagavari.airmessageconnect.communicate.protocol1;
 import com.google.api.client.auth.openidconnect.IdToken;
 import com.google.api.client.googleapis.util.Utils;
 import com.google.api.client.json.gson.GsonFactory;
-import com.google.api.core.ApiFuture;
-import com.google.api.core.ApiFutureCallback;
-import com.google.api.core.ApiFutures;
-import com.google.common.util.concurrent.MoreExecutors;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseAuthException;
 import com.google.firebase.auth.FirebaseToken;
-import com.google.firebase.messaging.*;
 import me.tagavari.airmessageconnect.ClientData;
 import me.tagavari.airmessageconnect.Main;
+import me.tagavari.airmessageconnect.PushUtils;
+import me.tagavari.airmessageconnect.ResumeTokenUtils;
 import me.tagavari.airmessageconnect.SharedData;
 import me.tagavari.airmessageconnect.StorageUtils;
+import me.tagavari.airmessageconnect.cluster.HashRing;
 import me.tagavari.airmessageconnect.communicate.Protocol;
 import me.tagavari.airmessageconnect.document.DocumentUser;
+import me.tagavari.airmessageconnect.events.HandshakePhaseEvent;
+import me.tagavari.airmessageconnect.events.ProxyEvent;
+import me.tagavari.airmessageconnect.metrics.Counter;
+import me.tagavari.airmessageconnect.metrics.MessageTrace;
+import me.tagavari.airmessageconnect.metrics.MessageTracer;
+import me.tagavari.airmessageconnect.metrics.RelayMetrics;
 import me.tagavari.airmessageconnect.structure.ConnectionGroup;
 import org.java_websocket.WebSocket;
 import org.java_websocket.drafts.Draft;
@@ -38,6 +42,18 @@ import java.util.stream.Collectors;
 public class Protocol1 implements Protocol {
 	public static final int VERSION = 1;
 	
+	//Message counters, indexed by NHT
+	private static final Counter[] receivedCounters = createCounters("relay_messages_received_total", "Messages received, by type",
+			NHT.nhtClientProxy, NHT.nhtClientAddFCMToken, NHT.nhtClientRemoveFCMToken, NHT.nhtServerClose, NHT.nhtServerProxy, NHT.nhtServerProxyBroadcast, NHT.nhtServerNotifyPush);
+	private static final Counter[] sentCounters = createCounters("relay_messages_sent_total", "Messages sent, by type",
+			NHT.nhtConnectionOK, NHT.nhtClientProxy, NHT.nhtServerOpen, NHT.nhtServerClose, NHT.nhtServerProxy);
+	
+	//The types of messages that are traced through the relay
+	private static final MessageTracer.TraceType traceClientProxy = new MessageTracer.TraceType(NHT.nhtClientProxy);
+	private static final MessageTracer.TraceType traceServerProxy = new MessageTracer.TraceType(NHT.nhtServerProxy);
+	private static final MessageTracer.TraceType traceServerProxyBroadcast = new MessageTracer.TraceType(NHT.nhtServerProxyBroadcast);
+	private static final Counter receivedUnknownCounter = RelayMetrics.registry.counter("relay_messages_received_total", "Messages received, by type", "type", "unknown");
+	
 	@Override
 	public int getVersion() {
 		return VERSION;
@@ -48,6 +64,9 @@ public class Protocol1 implements Protocol {
 		try {
 			//Unpacking the message
 			int type = bytes.getInt();
+			Counter receivedCounter = type >= 0 && type < receivedCounters.length ? receivedCounters[type] : null;
+			(receivedCounter != null ? receivedCounter : receivedUnknownCounter).increment();
+			long queueTime = clientData.takeQueueTime();
 			
 			switch(type) {
 				case NHT.nhtClientProxy: {
@@ -57,15 +76,18 @@ public class Protocol1 implements Protocol {
 						break;
 					}
 					
+					ProxyEvent event = new ProxyEvent();
+					event.begin();
+					
 					//Reading the data
 					byte[] data = new byte[bytes.remaining()];
 					bytes.get(data);
 					
-					//Getting the server's connection
-					WebSocket socket = clientData.getConnectionGroup().getConnectionServer();
-					
 					//Sending the data to the server
-					socket.send(socket.<ClientData>getAttachment().getProtocol().sendServerProxy(clientData.getConnectionID(), data));
+					ConnectionGroup connectionGroup = clientData.getConnectionGroup();
+					connectionGroup.sendServerProxy(clientData.getConnectionID(), data, MessageTracer.start(traceClientProxy, queueTime));
+					
+					event.finish(type, connectionGroup.getGroupID(), data.length, 1);
 					
 					break;
 				}
@@ -76,13 +98,19 @@ public class Protocol1 implements Protocol {
 						break;
 					}
 					
+					//Ignoring tokens that are too long to be real
+					if(bytes.remaining() > ConnectionGroup.fcmTokenLengthLimit) {
+						Main.getLogger().log(Level.INFO, "Ignoring token addition request - token is " + bytes.remaining() + " bytes long");
+						break;
+					}
+					
 					//Reading the token
 					byte[] data = new byte[bytes.remaining()];
 					bytes.get(data);
 					String token = new String(data, StandardCharsets.UTF_8);
 					
-					//Adding the token
-					clientData.getConnectionGroup().addClientFCMToken(token);
+					//Adding the token, and using it as this client's token
+					clientData.getConnectionGroup().addClientFCMToken(clientData.getConnectionID(), token);
 					
 					break;
 				}
@@ -99,7 +127,7 @@ public class Protocol1 implements Protocol {
 					String token = new String(data, StandardCharsets.UTF_8);
 					
 					//Removing the token
-					clientData.getConnectionGroup().removeClientFCMToken(token);
+					clientData.getConnectionGroup().removeClientFCMToken(clientData.getConnectionID(), token);
 					
 					break;
 				}
@@ -125,6 +153,9 @@ public class Protocol1 implements Protocol {
 						break;
 					}
 					
+					ProxyEvent event = new ProxyEvent();
+					event.begin();
+					
 					//Reading the data
 					int connectionID = bytes.getInt();
 					byte[] data = new byte[bytes.remaining()];
@@ -133,15 +164,24 @@ public class Protocol1 implements Protocol {
 					//Getting the specified client's connection
 					WebSocket socket = clientData.getConnectionGroup().getConnectionClient(connectionID);
 					
-					//Checking if the connection wasn't found
-					if(socket == null) {
-						//Notifying the server that this connection is disconnected
-						sendServerDisconnection(connectionID);
-					} else {
+					//Dropping the message if the connection wasn't found, since the server is told about the disconnection once the client's slot is released
+					if(socket != null) {
 						//Sending the data to the client
-						socket.send(socket.<ClientData>getAttachment().getProtocol().sendClientProxy(data));
+						MessageTrace trace = MessageTracer.start(traceServerProxy, queueTime);
+						if(trace != null) trace.startEncode();
+						Protocol protocol = socket.<ClientData>getAttachment().getProtocol();
+						byte[] message = protocol.sendClientProxy(data);
+						if(trace != null) trace.endEncode();
+						
+						protocol.send(socket, message);
+						if(trace != null) {
+							trace.trackWrite(socket);
+							trace.finishSending();
+						}
 					}
 					
+					event.finish(type, clientData.getConnectionGroup().getGroupID(), data.length, socket == null ? 0 : 1);
+					
 					break;
 				}
 				case NHT.nhtServerProxyBroadcast: {
@@ -151,6 +191,9 @@ public class Protocol1 implements Protocol {
 						break;
 					}
 					
+					ProxyEvent event = new ProxyEvent();
+					event.begin();
+					
 					//Reading the data
 					byte[] data = new byte[bytes.remaining()];
 					bytes.get(data);
@@ -159,9 +202,21 @@ public class Protocol1 implements Protocol {
 					ConnectionGroup connectionGroup = clientData.getConnectionGroup();
 					
 					//Sending the data to all clients
+					MessageTrace trace = MessageTracer.start(traceServerProxyBroadcast, queueTime);
+					int recipientCount = 0;
 					for(WebSocket socket : connectionGroup.getAllConnectionsClient()) {
-						socket.send(socket.<ClientData>getAttachment().getProtocol().sendClientProxy(data));
+						if(trace != null) trace.startEncode();
+						Protocol protocol = socket.<ClientData>getAttachment().getProtocol();
+						byte[] message = protocol.sendClientProxy(data);
+						if(trace != null) trace.endEncode();
+						
+						protocol.send(socket, message);
+						if(trace != null) trace.trackWrite(socket);
+						recipientCount++;
 					}
+					if(trace != null) trace.finishSending();
+					
+					event.finish(type, connectionGroup.getGroupID(), data.length, recipientCount);
 					
 					break;
 				}
@@ -172,7 +227,7 @@ public class Protocol1 implements Protocol {
 						break;
 					}
 					
-					if(Main.isUnlinked()) {
+					if(!PushUtils.isAvailable()) {
 						Main.getLogger().log(Level.INFO, "Ignoring FCM push request - Connect is running unlinked");
 						break;
 					}
@@ -205,49 +260,8 @@ public class Protocol1 implements Protocol {
 						messageData = Collections.emptyMap();
 					}
 					
-					//Getting the server' connection group
-					ConnectionGroup connectionGroup = clientData.getConnectionGroup();
-					
-					//Sending a firebase message
-					List<String> tokens = new ArrayList<>(connectionGroup.getClientFCMTokenList());
-					if(tokens.isEmpty()) break;
-					MulticastMessage message = MulticastMessage.builder()
-							.addAllTokens(tokens)
-							.setAndroidConfig(AndroidConfig.builder()
-								.setPriority(AndroidConfig.Priority.HIGH)
-								.putAllData(messageData)
-								.build())
-							.build();
-					ApiFuture<BatchResponse> responseFuture = FirebaseMessaging.getInstance().sendMulticastAsync(message);
-					ApiFutures.addCallback(responseFuture, new ApiFutureCallback<>() {
-						@Override
-						public void onFailure(Throwable throwable) {
-							throwable.printStackTrace();
-						}
-						
-						@Override
-						public void onSuccess(BatchResponse batchResponse) {
-							if(batchResponse.getFailureCount() > 0) {
-								//Finding failed responses
-								List<SendResponse> responseList = batchResponse.getResponses();
-								for(ListIterator<SendResponse> iterator = responseList.listIterator(); iterator.hasNext();) {
-									//Getting the response information
-									int i = iterator.nextIndex();
-									SendResponse response = iterator.next();
-									
-									//Checking if the response failed due to an unregistered token
-									if(!response.isSuccessful() &&
-									   response.getException().getMessagingErrorCode() == MessagingErrorCode.UNREGISTERED) {
-										//The order of responses corresponds to the order of the registration tokens
-										String failedToken = tokens.get(i);
-										
-										//Removing failed tokens
-										connectionGroup.removeClientFCMToken(failedToken);
-									}
-								}
-							}
-						}
-					}, MoreExecutors.directExecutor());
+					//Sending the notification
+					PushUtils.notify(clientData.getConnectionGroup(), messageData);
 					
 					break;
 				}
@@ -258,21 +272,42 @@ public class Protocol1 implements Protocol {
 	}
 	
 	@Override
-	public ClientData handleHandshake(WebSocket conn, Draft draft, ClientHandshake request, Map<String, String> paramMap) throws InvalidDataException {
+	public int getHeaderLength(ByteBuffer data) {
+		if(data.remaining() < Integer.BYTES) return data.remaining();
+		
+		//Messages from servers to a single client are followed by the client's connection ID
+		int type = data.getInt(data.position());
+		int length = type == NHT.nhtServerProxy || type == NHT.nhtServerClose ? Integer.BYTES * 2 : Integer.BYTES;
+		return Math.min(length, data.remaining());
+	}
+	
+	@Override
+	public ClientData handleHandshake(WebSocket conn, Draft draft, ClientHandshake request, Map<String, String> paramMap, HashRing hashRing) throws InvalidDataException {
 		//Reading parameter data
 		boolean isServer;
-		String installationID, idToken, userID, fcmToken;
+		String installationID, idToken, userID, fcmToken, resumeToken;
+		boolean isResumable;
+		long resumeGroupEpoch = 0;
+		int resumeConnectionID = -1;
 		try {
 			isServer = Boolean.parseBoolean(paramMap.get("is_server"));
 			installationID = paramMap.get("installation_id");
 			idToken = paramMap.get("id_token");
 			userID = paramMap.get("user_id");
 			fcmToken = paramMap.get("fcm_token");
+			resumeToken = paramMap.get("resume_token");
+			isResumable = !isServer && ResumeTokenUtils.isAvailable() && (resumeToken != null || Boolean.parseBoolean(paramMap.get("resume")));
 		} catch(NumberFormatException exception) {
 			Main.getLogger().log(Level.WARNING, "Rejecting handshake (bad request format) from client " + Main.connectionToString(conn) + ": " + exception.getMessage(), exception);
 			throw new InvalidDataException(CloseFrame.PROTOCOL_ERROR);
 		}
 		
+		//Checking the FCM token, which can't be longer than a real token
+		if(fcmToken != null && fcmToken.getBytes(StandardCharsets.UTF_8).length > ConnectionGroup.fcmTokenLengthLimit) {
+			Main.getLogger().log(Level.WARNING, "Rejecting handshake (FCM token too long) from client " + Main.connectionToString(conn));
+			throw new InvalidDataException(CloseFrame.PROTOCOL_ERROR);
+		}
+		
 		try {
 			//Checking if this is a server request
 			if(isServer) {
@@ -292,9 +327,19 @@ public class Protocol1 implements Protocol {
 					//Validating the user's ID token
 					userID = validateIdToken(conn, idToken);
 					
+					//Redirecting the server before recording this relay for the user
+					ClientData redirectData = getRedirect(conn, hashRing, userID);
+					if(redirectData != null) return redirectData;
+					
 					//Updating the installation ID and relay ID for this user
-					if(!Main.isUnlinked()) {
-						StorageUtils.instance().updateRegisteredServerRelayInstallationID(userID, Main.getRelayID(), installationID);
+					if(StorageUtils.isAvailable()) {
+						HandshakePhaseEvent phaseEvent = new HandshakePhaseEvent();
+						phaseEvent.begin();
+						try {
+							StorageUtils.instance().updateRegisteredServerRelayInstallationID(userID, Main.getRelayID(), installationID);
+						} finally {
+							phaseEvent.finish(HandshakePhaseEvent.phaseRegisterInstallation);
+						}
 					}
 				} else {
 					//Failing if there is no user ID, or the user ID is invalid ("/" prevents injection attacks)
@@ -303,26 +348,36 @@ public class Protocol1 implements Protocol {
 						throw new InvalidDataException(CloseFrame.PROTOCOL_ERROR);
 					}
 					
-					if(!Main.isUnlinked()) {
-						//Rejecting if this user doesn't have a subscription
-						/* if(!StorageUtils.instance().checkSubscription(userID)) {
-							Main.getLogger().log(Level.WARNING, "Rejecting handshake (no subscription) from client " + Main.connectionToString(conn));
-							throw new InvalidDataException(SharedData.closeCodeNoSubscription);
-						} */
-						
-						//Fetching user details
-						DocumentUser documentUser = StorageUtils.instance().getDocumentUser(userID);
-						if(documentUser == null) documentUser = new DocumentUser(null, null);
-						
-						//Rejecting if this is installation ID out-of-date
-						if(!installationID.equals(documentUser.installationID)) {
-							Main.getLogger().log(Level.WARNING, "Rejecting handshake (token refresh) from client " + Main.connectionToString(conn));
-							throw new InvalidDataException(SharedData.closeCodeServerTokenRefresh);
+					//Redirecting the server before recording this relay for the user
+					ClientData redirectData = getRedirect(conn, hashRing, userID);
+					if(redirectData != null) return redirectData;
+					
+					if(StorageUtils.isAvailable()) {
+						HandshakePhaseEvent phaseEvent = new HandshakePhaseEvent();
+						phaseEvent.begin();
+						try {
+							//Rejecting if this user doesn't have a subscription
+							/* if(!StorageUtils.instance().checkSubscription(userID)) {
+								Main.getLogger().log(Level.WARNING, "Rejecting handshake (no subscription) from client " + Main.connectionToString(conn));
+								throw new InvalidDataException(SharedData.closeCodeNoSubscription);
+							} */
+							
+							//Fetching user details
+							DocumentUser documentUser = StorageUtils.instance().getDocumentUser(userID);
+							if(documentUser == null) documentUser = new DocumentUser(null, null);
+							
+							//Rejecting if this is installation ID out-of-date
+							if(!installationID.equals(documentUser.installationID)) {
+								Main.getLogger().log(Level.WARNING, "Rejecting handshake (token refresh) from client " + Main.connectionToString(conn));
+								throw new InvalidDataException(SharedData.closeCodeServerTokenRefresh);
+							}
+							
+							//Updating the relay ID for this user (if necessary)
+							String thisRelayID = Main.getRelayID();
+							if(!thisRelayID.equals(documentUser.relayID)) StorageUtils.instance().updateRegisteredServerRelayID(userID, thisRelayID);
+						} finally {
+							phaseEvent.finish(HandshakePhaseEvent.phaseCheckInstallation);
 						}
-						
-						//Updating the relay ID for this user (if necessary)
-						String thisRelayID = Main.getRelayID();
-						if(!thisRelayID.equals(documentUser.relayID)) StorageUtils.instance().updateRegisteredServerRelayID(userID, thisRelayID);
 					} //Otherwise, let the user through without installation ID verification
 				}
 			} else {
@@ -332,8 +387,31 @@ public class Protocol1 implements Protocol {
 					throw new InvalidDataException(CloseFrame.PROTOCOL_ERROR);
 				}
 				
-				//Validating the user's ID token
-				userID = validateIdToken(conn, idToken);
+				//Skipping ID token verification for clients with a valid resume token
+				ResumeTokenUtils.ResumeToken validResumeToken = null;
+				if(resumeToken != null && ResumeTokenUtils.isAvailable()) {
+					HandshakePhaseEvent phaseEvent = new HandshakePhaseEvent();
+					phaseEvent.begin();
+					validResumeToken = ResumeTokenUtils.verify(resumeToken);
+					phaseEvent.finish(HandshakePhaseEvent.phaseVerifyResumeToken);
+				}
+				if(validResumeToken != null) {
+					userID = validResumeToken.getGroupID();
+					resumeGroupEpoch = validResumeToken.getGroupEpoch();
+					resumeConnectionID = validResumeToken.getConnectionID();
+				} else {
+					//Failing if the resume token was the only credential
+					if(resumeToken != null && idToken == null) {
+						Main.getLogger().log(Level.FINE, () -> "Rejecting handshake (invalid resume token) from client " + Main.connectionToString(conn));
+						throw new InvalidDataException(SharedData.closeCodeAccountValidation);
+					}
+					
+					//Validating the user's ID token
+					userID = validateIdToken(conn, idToken);
+				}
+				
+				ClientData redirectData = getRedirect(conn, hashRing, userID);
+				if(redirectData != null) return redirectData;
 			}
 		} catch(ExecutionException | InterruptedException exception) {
 			Main.getLogger().log(Level.WARNING, "Rejecting handshake (internal exception) from client " + Main.connectionToString(conn) + ": " + exception.getMessage(), exception);
@@ -343,7 +421,26 @@ public class Protocol1 implements Protocol {
 		}
 		
 		//Tagging the client with its type information and communication version
-		return new ClientData(isServer, new ClientData.Type(userID, fcmToken), this);
+		ClientData clientData = new ClientData(isServer, new ClientData.Type(userID, fcmToken, isServer ? installationID : null, resumeGroupEpoch, resumeConnectionID), this);
+		clientData.setResumable(isResumable);
+		return clientData;
+	}
+	
+	/**
+	 * Checks if a group lives on another relay
+	 * @param conn The WebSocket connection
+	 * @param hashRing The ring that decides which relay each group lives on, or NULL if groups can live on any relay
+	 * @param groupID The ID of the connection's group
+	 * @return The client data that redirects the connection to the group's relay, or NULL if the group lives on this relay
+	 */
+	private static ClientData getRedirect(WebSocket conn, HashRing hashRing, String groupID) {
+		if(hashRing == null) return null;
+		
+		HashRing.Node node = hashRing.getNode(groupID);
+		if(node.getRelayID().equals(Main.getRelayID())) return null;
+		
+		Main.getLogger().log(Level.FINE, () -> "Redirecting handshake (group " + groupID + " lives on " + node + ") from client " + Main.connectionToString(conn));
+		return new ClientData(SharedData.closeCodeRedirect, node.getRedirectTarget());
 	}
 	
 	/**
@@ -364,6 +461,8 @@ public class Protocol1 implements Protocol {
 		
 		if(!Main.isUnlinked()) {
 			String userID;
+			HandshakePhaseEvent phaseEvent = new HandshakePhaseEvent();
+			phaseEvent.begin();
 			try {
 				FirebaseToken decodedToken = FirebaseAuth.getInstance().verifyIdToken(idToken);
 				userID = decodedToken.getUid();
@@ -373,6 +472,8 @@ public class Protocol1 implements Protocol {
 			} catch(FirebaseAuthException exception) {
 				Main.getLogger().log(Level.WARNING, "Rejecting handshake (token validation error) from client " + Main.connectionToString(conn) + ": " + exception.getMessage(), exception);
 				throw new InvalidDataException(SharedData.closeCodeAccountValidation);
+			} finally {
+				phaseEvent.finish(HandshakePhaseEvent.phaseVerifyIDToken);
 			}
 			
 			//Returning the user's ID
@@ -392,6 +493,26 @@ public class Protocol1 implements Protocol {
 		}
 	}
 	
+	/**
+	 * Creates a counter for each message type
+	 * @param name The name of the metric
+	 * @param help A description of the metric
+	 * @param types The message types to count
+	 * @return An array of counters, indexed by message type
+	 */
+	private static Counter[] createCounters(String name, String help, int... types) {
+		Counter[] counters = new Counter[256];
+		for(int type : types) counters[type] = RelayMetrics.registry.counter(name, help, "type", Integer.toString(type));
+		return counters;
+	}
+	
+	@Override
+	public void send(WebSocket conn, byte[] message) {
+		conn.send(message);
+		sentCounters[ByteBuffer.wrap(message).getInt()].increment();
+		RelayMetrics.bytesSent.add(message.length);
+	}
+	
 	@Override
 	public byte[] sendSharedConnectionOK() {
 		ByteBuffer byteBuffer = ByteBuffer.allocate(Integer.BYTES);
@@ -400,6 +521,16 @@ public class Protocol1 implements Protocol {
 		return byteBuffer.array();
 	}
 	
+	@Override
+	public byte[] sendSharedConnectionOK(String resumeToken) {
+		byte[] resumeTokenBytes = resumeToken.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer byteBuffer = ByteBuffer.allocate(Integer.BYTES + resumeTokenBytes.length);
+		byteBuffer.putInt(NHT.nhtConnectionOK);
+		byteBuffer.put(resumeTokenBytes);
+		
+		return byteBuffer.array();
+	}
+	
 	@Override
 	public byte[] sendClientProxy(byte[] payload) {
 		ByteBuffer byteBuffer = ByteBuffer.allocate(Integer.BYTES + payload.length);
@@ -0,0 +1,44 @@
+package me.tagavari.airmessageconnect.events;
+
+import jdk.jfr.*;
+
+/**
+ * Records a change to a group, such as a server opening a new group or a group being closed
+ *
+ * For new groups, the duration includes reading the group's FCM tokens from storage.
+ */
+@Name("airmessage.Group")
+@Label("Group Change")
+@Category("AirMessage")
+@Enabled(false)
+@StackTrace(false)
+public class GroupEvent extends Event {
+	public static final String actionCreated = "created";
+	public static final String actionReplaced = "replaced";
+	public static final String actionTakenOver = "taken_over";
+	public static final String actionFailed = "failed";
+	public static final String actionClosed = "closed";
+	
+	@Label("Action")
+	String action;
+	
+	@Label("Group ID")
+	String groupID;
+	
+	@Label("Client Count")
+	@Description("The amount of clients connected to the group when the change was made")
+	int clientCount;
+	
+	/**
+	 * Ends this event, and records it if it's enabled
+	 */
+	public void finish(String action, String groupID, int clientCount) {
+		end();
+		if(!shouldCommit()) return;
+		
+		this.action = action;
+		this.groupID = groupID;
+		this.clientCount = clientCount;
+		commit();
+	}
+}
\ No newline at end of file
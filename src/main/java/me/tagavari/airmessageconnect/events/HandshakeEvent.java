@@ -0,0 +1,41 @@
+package me.tagavari.airmessageconnect.events;
+
+import jdk.jfr.*;
+
+/**
+ * Records the verification of a WebSocket handshake, from the request arriving to the client being accepted or turned away
+ */
+@Name("airmessage.Handshake")
+@Label("Handshake")
+@Category("AirMessage")
+@Enabled(false)
+@StackTrace(false)
+public class HandshakeEvent extends Event {
+	@Label("Result")
+	@Description("accepted, redirected or rejected")
+	String result;
+	
+	@Label("Close Code")
+	@Description("The code the client was turned away with, or 0 if it was accepted")
+	int closeCode;
+	
+	@Label("Is Server")
+	boolean isServer;
+	
+	@Label("Group ID")
+	String groupID;
+	
+	/**
+	 * Ends this event, and records it if it's enabled
+	 */
+	public void finish(String result, int closeCode, boolean isServer, String groupID) {
+		end();
+		if(!shouldCommit()) return;
+		
+		this.result = result;
+		this.closeCode = closeCode;
+		this.isServer = isServer;
+		this.groupID = groupID;
+		commit();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,32 @@
+package me.tagavari.airmessageconnect.events;
+
+import jdk.jfr.*;
+
+/**
+ * Records a single step of verifying a handshake, such as checking an ID token
+ */
+@Name("airmessage.HandshakePhase")
+@Label("Handshake Phase")
+@Category("AirMessage")
+@Enabled(false)
+@StackTrace(false)
+public class HandshakePhaseEvent extends Event {
+	public static final String phaseVerifyIDToken = "verify_id_token";
+	public static final String phaseVerifyResumeToken = "verify_resume_token";
+	public static final String phaseRegisterInstallation = "register_installation";
+	public static final String phaseCheckInstallation = "check_installation";
+	
+	@Label("Phase")
+	String phase;
+	
+	/**
+	 * Ends this event, and records it if it's enabled
+	 */
+	public void finish(String phase) {
+		end();
+		if(!shouldCommit()) return;
+		
+		this.phase = phase;
+		commit();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,41 @@
+package me.tagavari.airmessageconnect.events;
+
+import jdk.jfr.*;
+
+/**
+ * Records a proxied message being forwarded between a server and its clients, from decoding to being queued for writing
+ */
+@Name("airmessage.Proxy")
+@Label("Proxied Message")
+@Category("AirMessage")
+@Enabled(false)
+@StackTrace(false)
+public class ProxyEvent extends Event {
+	@Label("Type")
+	@Description("The NHT of the received message")
+	int type;
+	
+	@Label("Group ID")
+	String groupID;
+	
+	@Label("Payload Size")
+	@DataAmount
+	int payloadSize;
+	
+	@Label("Recipient Count")
+	int recipientCount;
+	
+	/**
+	 * Ends this event, and records it if it's enabled
+	 */
+	public void finish(int type, String groupID, int payloadSize, int recipientCount) {
+		end();
+		if(!shouldCommit()) return;
+		
+		this.type = type;
+		this.groupID = groupID;
+		this.payloadSize = payloadSize;
+		this.recipientCount = recipientCount;
+		commit();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,45 @@
+package me.tagavari.airmessageconnect.events;
+
+import jdk.jfr.*;
+
+/**
+ * Records a batch of push notifications sent to FCM, from the request being made to its results arriving
+ */
+@Name("airmessage.PushBatch")
+@Label("Push Batch")
+@Category("AirMessage")
+@Enabled(false)
+@StackTrace(false)
+public class PushBatchEvent extends Event {
+	@Label("Message Count")
+	int messageCount;
+	
+	@Label("Success Count")
+	int successCount;
+	
+	@Label("Unregistered Count")
+	@Description("Messages sent to tokens that are no longer registered")
+	int unregisteredCount;
+	
+	@Label("Failure Count")
+	int failureCount;
+	
+	@Label("Error")
+	@Description("The reason the whole batch failed, if it did")
+	String error;
+	
+	/**
+	 * Ends this event, and records it if it's enabled
+	 */
+	public void finish(int messageCount, int successCount, int unregisteredCount, int failureCount, String error) {
+		end();
+		if(!shouldCommit()) return;
+		
+		this.messageCount = messageCount;
+		this.successCount = successCount;
+		this.unregisteredCount = unregisteredCount;
+		this.failureCount = failureCount;
+		this.error = error;
+		commit();
+	}
+}
\ No newline at end of file
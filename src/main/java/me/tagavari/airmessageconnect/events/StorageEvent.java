@@ -0,0 +1,41 @@
+package me.tagavari.airmessageconnect.events;
+
+import jdk.jfr.*;
+
+/**
+ * Records a call to the relay's storage backend, such as reading a user's document from Firestore
+ */
+@Name("airmessage.Storage")
+@Label("Storage Operation")
+@Category("AirMessage")
+@Enabled(false)
+@StackTrace(false)
+public class StorageEvent extends Event {
+	@Label("Operation")
+	String operation;
+	
+	@Label("User ID")
+	String userID;
+	
+	@Label("Failed")
+	boolean failed;
+	
+	/**
+	 * Marks the operation as failed
+	 */
+	public void fail() {
+		failed = true;
+	}
+	
+	/**
+	 * Ends this event, and records it if it's enabled
+	 */
+	public void finish(String operation, String userID) {
+		end();
+		if(!shouldCommit()) return;
+		
+		this.operation = operation;
+		this.userID = userID;
+		commit();
+	}
+}
\ No newline at end of file
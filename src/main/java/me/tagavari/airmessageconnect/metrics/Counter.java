@@ -0,0 +1,22 @@
+package me.tagavari.airmessageconnect.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A value that only goes up, striped so that many threads can update it without contending
+ */
+public class Counter {
+	private final LongAdder adder = new LongAdder();
+	
+	public void increment() {
+		adder.increment();
+	}
+	
+	public void add(long amount) {
+		adder.add(amount);
+	}
+	
+	public long get() {
+		return adder.sum();
+	}
+}
\ No newline at end of file
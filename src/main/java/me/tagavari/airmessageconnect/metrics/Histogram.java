@@ -0,0 +1,93 @@
+package me.tagavari.airmessageconnect.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts durations into a fixed set of buckets, without allocating on every observation
+ */
+public class Histogram {
+	//The default bucket bounds, from half a millisecond to 10 seconds
+	static final long[] defaultBucketBounds = {
+			TimeUnit.MICROSECONDS.toNanos(500),
+			TimeUnit.MILLISECONDS.toNanos(1),
+			TimeUnit.MICROSECONDS.toNanos(2500),
+			TimeUnit.MILLISECONDS.toNanos(5),
+			TimeUnit.MILLISECONDS.toNanos(10),
+			TimeUnit.MILLISECONDS.toNanos(25),
+			TimeUnit.MILLISECONDS.toNanos(50),
+			TimeUnit.MILLISECONDS.toNanos(100),
+			TimeUnit.MILLISECONDS.toNanos(250),
+			TimeUnit.MILLISECONDS.toNanos(500),
+			TimeUnit.SECONDS.toNanos(1),
+			TimeUnit.MILLISECONDS.toNanos(2500),
+			TimeUnit.SECONDS.toNanos(5),
+			TimeUnit.SECONDS.toNanos(10)
+	};
+	
+	//Finer bucket bounds for work that happens within the relay, from a microsecond to 100 milliseconds
+	static final long[] fineBucketBounds = {
+			TimeUnit.MICROSECONDS.toNanos(1),
+			TimeUnit.MICROSECONDS.toNanos(5),
+			TimeUnit.MICROSECONDS.toNanos(10),
+			TimeUnit.MICROSECONDS.toNanos(25),
+			TimeUnit.MICROSECONDS.toNanos(50),
+			TimeUnit.MICROSECONDS.toNanos(100),
+			TimeUnit.MICROSECONDS.toNanos(250),
+			TimeUnit.MICROSECONDS.toNanos(500),
+			TimeUnit.MILLISECONDS.toNanos(1),
+			TimeUnit.MICROSECONDS.toNanos(2500),
+			TimeUnit.MILLISECONDS.toNanos(5),
+			TimeUnit.MILLISECONDS.toNanos(10),
+			TimeUnit.MILLISECONDS.toNanos(25),
+			TimeUnit.MILLISECONDS.toNanos(50),
+			TimeUnit.MILLISECONDS.toNanos(100)
+	};
+	
+	private final long[] bucketBounds;
+	
+	//The amount of observations that fell into each bucket, with the last bucket holding everything above the highest bound
+	private final LongAdder[] bucketCounts;
+	private final LongAdder sum = new LongAdder();
+	
+	/**
+	 * Creates a new histogram
+	 * @param bucketBounds The upper bounds of the buckets in nanoseconds, in ascending order
+	 */
+	Histogram(long[] bucketBounds) {
+		this.bucketBounds = bucketBounds;
+		bucketCounts = new LongAdder[bucketBounds.length + 1];
+		for(int i = 0; i < bucketCounts.length; i++) bucketCounts[i] = new LongAdder();
+	}
+	
+	/**
+	 * Records a duration
+	 * @param duration The duration in nanoseconds
+	 */
+	public void observe(long duration) {
+		int index = 0;
+		while(index < bucketBounds.length && duration > bucketBounds[index]) index++;
+		bucketCounts[index].increment();
+		sum.add(duration);
+	}
+	
+	/**
+	 * Records the time passed since a point in time
+	 * @param startTime The start time, from {@link System#nanoTime()}
+	 */
+	public void observeSince(long startTime) {
+		observe(System.nanoTime() - startTime);
+	}
+	
+	long[] getBucketBounds() {
+		return bucketBounds;
+	}
+	
+	long getBucketCount(int index) {
+		return bucketCounts[index].sum();
+	}
+	
+	long getSum() {
+		return sum.sum();
+	}
+}
\ No newline at end of file
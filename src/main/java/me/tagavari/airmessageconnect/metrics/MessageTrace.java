@@ -0,0 +1,90 @@
+package me.tagavari.airmessageconnect.metrics;
+
+import org.java_websocket.WebSocket;
+
+/**
+ * Follows a sampled message through the relay, from being read off the socket to being written to its destination
+ *
+ * A message sent to several recipients is recorded once, by its slowest recipient.
+ */
+public class MessageTrace {
+	private final MessageTracer.TraceType type;
+	private final long startTime;
+	private long encodeStartTime;
+	private long encodeTime = 0;
+	
+	//The writes that haven't finished yet, plus one until the message has been sent to all its recipients
+	private int pendingWriteCount = 1;
+	private int writeCount = 0;
+	private boolean isAbandoned = false;
+	private long writeTime = 0;
+	private long completeTime = 0;
+	
+	MessageTrace(MessageTracer.TraceType type, long startTime) {
+		this.type = type;
+		this.startTime = startTime;
+	}
+	
+	/**
+	 * Marks the start of encoding the message for its destination
+	 */
+	public void startEncode() {
+		encodeStartTime = System.nanoTime();
+	}
+	
+	/**
+	 * Marks the end of encoding the message for its destination
+	 */
+	public void endEncode() {
+		encodeTime = Math.max(encodeTime, System.nanoTime() - encodeStartTime);
+	}
+	
+	/**
+	 * Waits in the background for the message that was just sent to a connection to be written out
+	 * @param connection The connection the message was sent to
+	 */
+	public void trackWrite(WebSocket connection) {
+		synchronized(this) {
+			pendingWriteCount++;
+			writeCount++;
+		}
+		MessageTracer.trackWrite(this, connection);
+	}
+	
+	/**
+	 * Marks that the message has been sent to all its recipients, so that it can be recorded once they're all written
+	 */
+	public void finishSending() {
+		finishWrite();
+	}
+	
+	/**
+	 * Records that a write to one of the message's recipients finished
+	 * @param sendTime The time the message was handed to its recipient
+	 * @param completeTime The time the message finished writing
+	 */
+	synchronized void complete(long sendTime, long completeTime) {
+		writeTime = Math.max(writeTime, completeTime - sendTime);
+		this.completeTime = Math.max(this.completeTime, completeTime);
+		finishWrite();
+	}
+	
+	/**
+	 * Gives up on a write to one of the message's recipients, leaving the message unrecorded
+	 */
+	synchronized void abandon() {
+		isAbandoned = true;
+		finishWrite();
+	}
+	
+	/**
+	 * Records the message once nothing more is waiting on it
+	 */
+	private synchronized void finishWrite() {
+		if(--pendingWriteCount > 0 || writeCount == 0 || isAbandoned) return;
+		
+		type.encode.observe(encodeTime);
+		type.write.observe(writeTime);
+		type.total.observe(completeTime - startTime);
+	}
+}
\ No newline at end of file
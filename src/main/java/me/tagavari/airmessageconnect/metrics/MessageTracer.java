@@ -0,0 +1,160 @@
+package me.tagavari.airmessageconnect.metrics;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Samples proxied messages, and records how long they spend waiting to be decoded, being encoded, and being written
+ *
+ * Writes are followed by checking the destination's outgoing buffer every millisecond while any are pending, so write times are only accurate to a millisecond.
+ */
+public class MessageTracer {
+	//The maximum amount of writes to follow at once, and how long to follow them for
+	private static final int pendingWriteLimit = 1000;
+	private static final long pendingWriteTimeout = TimeUnit.SECONDS.toNanos(60);
+	
+	//Trace one in this many messages, or none if 0
+	private static volatile int sampleInterval = 0;
+	
+	private static final Counter writesAbandoned = RelayMetrics.registry.counter("relay_trace_writes_abandoned_total", "Traced writes that weren't followed to completion");
+	
+	private static final Queue<PendingWrite> pendingWriteQueue = new ConcurrentLinkedQueue<>();
+	private static final AtomicInteger pendingWriteCount = new AtomicInteger();
+	private static final AtomicBoolean isCheckScheduled = new AtomicBoolean(false);
+	private static volatile ScheduledExecutorService executor = null;
+	
+	/**
+	 * Sets how often messages are traced
+	 * @param sampleInterval Trace one in this many messages, or 0 to turn tracing off
+	 */
+	public static synchronized void setSampleInterval(int sampleInterval) {
+		if(sampleInterval < 0) throw new IllegalArgumentException("Invalid trace sample interval " + sampleInterval);
+		
+		if(sampleInterval > 0 && executor == null) {
+			executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "MessageTracer");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		MessageTracer.sampleInterval = sampleInterval;
+	}
+	
+	/**
+	 * Checks if any messages are traced
+	 * @return TRUE if tracing is turned on
+	 */
+	public static boolean isEnabled() {
+		return sampleInterval != 0;
+	}
+	
+	/**
+	 * Decides whether to trace a message
+	 * @param type The type of the message
+	 * @param queueTime The time the message's data was queued to be decoded, or 0 if unknown
+	 * @return A trace for the message, or NULL if this message isn't traced
+	 */
+	public static MessageTrace start(TraceType type, long queueTime) {
+		int sampleInterval = MessageTracer.sampleInterval;
+		if(sampleInterval == 0 || ThreadLocalRandom.current().nextInt(sampleInterval) != 0) return null;
+		
+		long time = System.nanoTime();
+		if(queueTime != 0) type.queueWait.observe(time - queueTime);
+		return new MessageTrace(type, queueTime != 0 ? queueTime : time);
+	}
+	
+	static void trackWrite(MessageTrace trace, WebSocket connection) {
+		long sendTime = System.nanoTime();
+		if(!(connection instanceof WebSocketImpl)) return;
+		
+		//Finding the last buffer queued for the connection, which should hold our message
+		ByteBuffer lastBuffer = null;
+		for(ByteBuffer buffer : ((WebSocketImpl) connection).outQueue) lastBuffer = buffer;
+		
+		//The message has already been written
+		if(lastBuffer == null || !lastBuffer.hasRemaining()) {
+			trace.complete(sendTime, System.nanoTime());
+			return;
+		}
+		
+		if(pendingWriteCount.incrementAndGet() > pendingWriteLimit) {
+			pendingWriteCount.decrementAndGet();
+			writesAbandoned.increment();
+			trace.abandon();
+			return;
+		}
+		pendingWriteQueue.add(new PendingWrite(trace, lastBuffer, sendTime));
+		
+		//Starting to check on pending writes, if they aren't being checked on already
+		if(isCheckScheduled.compareAndSet(false, true)) scheduleCheck();
+	}
+	
+	private static void scheduleCheck() {
+		executor.schedule(MessageTracer::checkPendingWrites, 1, TimeUnit.MILLISECONDS);
+	}
+	
+	private static void checkPendingWrites() {
+		long time = System.nanoTime();
+		for(Iterator<PendingWrite> iterator = pendingWriteQueue.iterator(); iterator.hasNext();) {
+			PendingWrite pendingWrite = iterator.next();
+			if(!pendingWrite.buffer.hasRemaining()) {
+				pendingWrite.trace.complete(pendingWrite.sendTime, time);
+			} else if(time - pendingWrite.sendTime > pendingWriteTimeout) {
+				writesAbandoned.increment();
+				pendingWrite.trace.abandon();
+			} else {
+				continue;
+			}
+			
+			iterator.remove();
+			pendingWriteCount.decrementAndGet();
+		}
+		
+		//Checking again shortly while writes are pending, and otherwise stopping until the next write is traced
+		if(pendingWriteCount.get() > 0) {
+			scheduleCheck();
+			return;
+		}
+		isCheckScheduled.set(false);
+		
+		//Picking up a write that was traced while this check was stopping
+		if(pendingWriteCount.get() > 0 && isCheckScheduled.compareAndSet(false, true)) scheduleCheck();
+	}
+	
+	private static class PendingWrite {
+		final MessageTrace trace;
+		final ByteBuffer buffer;
+		final long sendTime;
+		
+		PendingWrite(MessageTrace trace, ByteBuffer buffer, long sendTime) {
+			this.trace = trace;
+			this.buffer = buffer;
+			this.sendTime = sendTime;
+		}
+	}
+	
+	/**
+	 * The histograms of a type of traced message
+	 */
+	public static class TraceType {
+		final Histogram queueWait, encode, write, total;
+		
+		/**
+		 * @param type The NHT of the message type
+		 */
+		public TraceType(int type) {
+			String typeLabel = Integer.toString(type);
+			queueWait = RelayMetrics.registry.fineHistogram("relay_trace_queue_wait_seconds", "Time sampled messages waited to be decoded, by type", "type", typeLabel);
+			encode = RelayMetrics.registry.fineHistogram("relay_trace_encode_seconds", "Time taken to encode sampled messages for their destination, by type", "type", typeLabel);
+			write = RelayMetrics.registry.histogram("relay_trace_write_seconds", "Time taken to write sampled messages to their destination, by type", "type", typeLabel);
+			total = RelayMetrics.registry.histogram("relay_trace_total_seconds", "Time sampled messages spent in the relay, by type", "type", typeLabel);
+		}
+	}
+}
\ No newline at end of file
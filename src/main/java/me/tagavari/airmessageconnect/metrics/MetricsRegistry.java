@@ -0,0 +1,156 @@
+package me.tagavari.airmessageconnect.metrics;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Holds a set of metrics, and writes them out in the Prometheus text format
+ *
+ * Metrics are registered once, and their values are only read when they are exported.
+ */
+public class MetricsRegistry {
+	private final Map<String, Family> familyMap = new LinkedHashMap<>();
+	
+	/**
+	 * Registers a new counter
+	 * @param name The name of the metric
+	 * @param help A description of the metric
+	 * @param labels Pairs of label names and values that identify this counter within its metric
+	 * @return The counter
+	 */
+	public Counter counter(String name, String help, String... labels) {
+		Counter counter = new Counter();
+		register(name, help, "counter", labels, (LongSupplier) counter::get);
+		return counter;
+	}
+	
+	/**
+	 * Registers a counter whose value is kept elsewhere
+	 * @param name The name of the metric
+	 * @param help A description of the metric
+	 * @param supplier Reads the counter's value
+	 * @param labels Pairs of label names and values that identify this counter within its metric
+	 */
+	public void counter(String name, String help, LongSupplier supplier, String... labels) {
+		register(name, help, "counter", labels, supplier);
+	}
+	
+	/**
+	 * Registers a gauge, which reports a value that can go up and down
+	 * @param name The name of the metric
+	 * @param help A description of the metric
+	 * @param supplier Reads the gauge's value
+	 * @param labels Pairs of label names and values that identify this gauge within its metric
+	 */
+	public void gauge(String name, String help, LongSupplier supplier, String... labels) {
+		register(name, help, "gauge", labels, supplier);
+	}
+	
+	/**
+	 * Registers a new histogram of durations, with buckets from half a millisecond to 10 seconds
+	 * @param name The name of the metric, which should end in _seconds
+	 * @param help A description of the metric
+	 * @param labels Pairs of label names and values that identify this histogram within its metric
+	 * @return The histogram
+	 */
+	public Histogram histogram(String name, String help, String... labels) {
+		Histogram histogram = new Histogram(Histogram.defaultBucketBounds);
+		register(name, help, "histogram", labels, histogram);
+		return histogram;
+	}
+	
+	/**
+	 * Registers a new histogram of short durations, with buckets from a microsecond to 100 milliseconds
+	 * @param name The name of the metric, which should end in _seconds
+	 * @param help A description of the metric
+	 * @param labels Pairs of label names and values that identify this histogram within its metric
+	 * @return The histogram
+	 */
+	public Histogram fineHistogram(String name, String help, String... labels) {
+		Histogram histogram = new Histogram(Histogram.fineBucketBounds);
+		register(name, help, "histogram", labels, histogram);
+		return histogram;
+	}
+	
+	private synchronized void register(String name, String help, String type, String[] labels, Object metric) {
+		if(labels.length % 2 != 0) throw new IllegalArgumentException("Labels of " + name + " must be name-value pairs");
+		
+		Family family = familyMap.computeIfAbsent(name, key -> new Family(help, type));
+		if(!family.type.equals(type)) throw new IllegalArgumentException("Metric " + name + " is already registered as a " + family.type);
+		
+		StringBuilder labelString = new StringBuilder();
+		for(int i = 0; i < labels.length; i += 2) {
+			if(i > 0) labelString.append(',');
+			labelString.append(labels[i]).append("=\"").append(escapeLabel(labels[i + 1])).append('"');
+		}
+		family.seriesList.add(new Series(labelString.toString(), metric));
+	}
+	
+	/**
+	 * Writes out the current value of every metric
+	 * @return The metrics in the Prometheus text format
+	 */
+	public synchronized String export() {
+		StringBuilder builder = new StringBuilder();
+		for(Map.Entry<String, Family> entry : familyMap.entrySet()) {
+			String name = entry.getKey();
+			Family family = entry.getValue();
+			builder.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+			builder.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+			
+			for(Series series : family.seriesList) {
+				if(series.metric instanceof Histogram) {
+					Histogram histogram = (Histogram) series.metric;
+					String labelPrefix = series.labels.isEmpty() ? "" : series.labels + ",";
+					long[] bucketBounds = histogram.getBucketBounds();
+					long count = 0;
+					for(int i = 0; i <= bucketBounds.length; i++) {
+						count += histogram.getBucketCount(i);
+						String bound = i < bucketBounds.length ? BigDecimal.valueOf(bucketBounds[i], 9).stripTrailingZeros().toPlainString() : "+Inf";
+						builder.append(name).append("_bucket{").append(labelPrefix).append("le=\"").append(bound).append("\"} ").append(count).append('\n');
+					}
+					appendLine(builder, name + "_sum", series.labels, Double.toString(histogram.getSum() / 1e9));
+					appendLine(builder, name + "_count", series.labels, Long.toString(count));
+				} else {
+					appendLine(builder, name, series.labels, Long.toString(((LongSupplier) series.metric).getAsLong()));
+				}
+			}
+		}
+		return builder.toString();
+	}
+	
+	private static void appendLine(StringBuilder builder, String name, String labels, String value) {
+		builder.append(name);
+		if(!labels.isEmpty()) builder.append('{').append(labels).append('}');
+		builder.append(' ').append(value).append('\n');
+	}
+	
+	private static String escapeLabel(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+	
+	private static class Family {
+		final String help;
+		final String type;
+		final List<Series> seriesList = new ArrayList<>();
+		
+		Family(String help, String type) {
+			this.help = help;
+			this.type = type;
+		}
+	}
+	
+	private static class Series {
+		final String labels;
+		final Object metric;
+		
+		Series(String labels, Object metric) {
+			this.labels = labels;
+			this.metric = metric;
+		}
+	}
+}
\ No newline at end of file
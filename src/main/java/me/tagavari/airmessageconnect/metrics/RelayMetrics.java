@@ -0,0 +1,41 @@
+package me.tagavari.airmessageconnect.metrics;
+
+/**
+ * Holds the metrics of this relay, served on /metrics
+ */
+public class RelayMetrics {
+	public static final MetricsRegistry registry = new MetricsRegistry();
+	
+	//Handshakes
+	public static final Counter handshakesAccepted = registry.counter("relay_handshakes_total", "WebSocket handshakes, by result", "result", "accepted");
+	public static final Counter handshakesRejected = registry.counter("relay_handshakes_total", "WebSocket handshakes, by result", "result", "rejected");
+	public static final Counter handshakesRedirected = registry.counter("relay_handshakes_total", "WebSocket handshakes, by result", "result", "redirected");
+	public static final Histogram handshakeDuration = registry.histogram("relay_handshake_duration_seconds", "Time taken to verify a WebSocket handshake");
+	public static final Counter httpRequests = registry.counter("relay_http_requests_total", "Plain HTTP requests");
+	
+	//Connections
+	public static final Counter serversOpened = registry.counter("relay_connections_opened_total", "Connections added to a group, by role", "role", "server");
+	public static final Counter clientsOpened = registry.counter("relay_connections_opened_total", "Connections added to a group, by role", "role", "client");
+	public static final Counter serversClosed = registry.counter("relay_connections_closed_total", "Connections removed from a group, by role", "role", "server");
+	public static final Counter clientsClosed = registry.counter("relay_connections_closed_total", "Connections removed from a group, by role", "role", "client");
+	public static final Counter bytesReceived = registry.counter("relay_received_bytes_total", "Bytes of WebSocket messages received");
+	public static final Counter bytesSent = registry.counter("relay_sent_bytes_total", "Bytes of WebSocket messages sent");
+	
+	//Groups
+	public static final Counter groupsCreated = registry.counter("relay_groups_created_total", "Groups created for a connecting server");
+	public static final Counter groupsReplaced = registry.counter("relay_groups_replaced_total", "Groups closed because their server connected again");
+	public static final Counter groupsTakenOver = registry.counter("relay_groups_taken_over_total", "Groups picked up by their reconnecting server");
+	public static final Counter groupsClosed = registry.counter("relay_groups_closed_total", "Groups closed");
+	public static final Counter clientsRejectedNoGroup = registry.counter("relay_clients_rejected_total", "Clients that couldn't be added to a group, by reason", "reason", "no_group");
+	public static final Counter clientsRejectedNoCapacity = registry.counter("relay_clients_rejected_total", "Clients that couldn't be added to a group, by reason", "reason", "no_capacity");
+	public static final Counter clientsResumed = registry.counter("relay_clients_resumed_total", "Clients that got their previous connection ID back");
+	
+	//Push notifications
+	public static final Counter pushMessagesQueued = registry.counter("relay_push_messages_total", "Push messages, by outcome", "outcome", "queued");
+	public static final Counter pushMessagesSent = registry.counter("relay_push_messages_total", "Push messages, by outcome", "outcome", "sent");
+	public static final Counter pushMessagesFailed = registry.counter("relay_push_messages_total", "Push messages, by outcome", "outcome", "failed");
+	public static final Counter pushMessagesRetried = registry.counter("relay_push_messages_total", "Push messages, by outcome", "outcome", "retried");
+	public static final Counter pushMessagesDropped = registry.counter("relay_push_messages_total", "Push messages, by outcome", "outcome", "dropped");
+	public static final Counter pushMessagesShed = registry.counter("relay_push_messages_total", "Push messages, by outcome", "outcome", "shed");
+	public static final Histogram pushLatency = registry.histogram("relay_push_latency_seconds", "Time from a notification arriving, including time spent coalescing, to it being accepted");
+}
\ No newline at end of file
@@ -0,0 +1,156 @@
+package me.tagavari.airmessageconnect.push;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Stops sending push messages while FCM is failing, so that a degraded service doesn't fill the relay with retries
+ *
+ * The breaker opens when the ratio of transient failures within a window crosses the threshold,
+ * sheds all messages for the open duration, then lets a single trial batch through.
+ * The breaker closes again if the trial batch succeeds, or re-opens if it doesn't.
+ */
+public class CircuitBreaker {
+	public enum State {
+		CLOSED,
+		OPEN,
+		HALF_OPEN
+	}
+	
+	private final double failureThreshold;
+	private final int minimumRequests;
+	private final long window;
+	private final long openDuration;
+	private final LongSupplier clock;
+	
+	//The permit returned when a batch should be shed
+	public static final long permitDenied = -1;
+	
+	private State state = State.CLOSED;
+	private long windowStartTime;
+	private int windowSuccesses, windowFailures;
+	private long openTime;
+	private boolean isTrialRunning = false;
+	
+	//Incremented whenever the state changes, so that results of batches sent under a previous state can be told apart
+	private long generation = 0;
+	
+	/**
+	 * Creates a new circuit breaker
+	 * @param failureThreshold The ratio of failed messages at which the breaker opens, between 0 and 1
+	 * @param minimumRequests The minimum amount of messages within a window to consider opening the breaker
+	 * @param window The length of a measurement window, in milliseconds
+	 * @param openDuration How long to shed messages for after opening, in milliseconds
+	 */
+	public CircuitBreaker(double failureThreshold, int minimumRequests, long window, long openDuration) {
+		this(failureThreshold, minimumRequests, window, openDuration, System::currentTimeMillis);
+	}
+	
+	/**
+	 * Creates a new circuit breaker that measures time with a custom clock
+	 * @param failureThreshold The ratio of failed messages at which the breaker opens, between 0 and 1
+	 * @param minimumRequests The minimum amount of messages within a window to consider opening the breaker
+	 * @param window The length of a measurement window, in milliseconds
+	 * @param openDuration How long to shed messages for after opening, in milliseconds
+	 * @param clock The current time in milliseconds
+	 */
+	public CircuitBreaker(double failureThreshold, int minimumRequests, long window, long openDuration, LongSupplier clock) {
+		if(failureThreshold <= 0 || failureThreshold > 1) throw new IllegalArgumentException("Invalid failure threshold " + failureThreshold);
+		
+		this.failureThreshold = failureThreshold;
+		this.minimumRequests = minimumRequests;
+		this.window = window;
+		this.openDuration = openDuration;
+		this.clock = clock;
+		this.windowStartTime = clock.getAsLong();
+	}
+	
+	/**
+	 * Checks if a batch may be sent right now
+	 * If this returns a permit, the result of the batch must be passed to {@link #recordResult(long, int, int)} along with it
+	 * @return A permit to send the batch with, or {@link #permitDenied} if it should be shed
+	 */
+	public synchronized long allowRequest() {
+		switch(state) {
+			case CLOSED:
+				return generation;
+			case OPEN:
+				if(clock.getAsLong() - openTime < openDuration) return permitDenied;
+				setState(State.HALF_OPEN);
+				return startTrial();
+			case HALF_OPEN:
+				return startTrial();
+			default:
+				throw new IllegalStateException("Unknown state " + state);
+		}
+	}
+	
+	/**
+	 * Lets a single trial batch through while the breaker is half-open
+	 */
+	private long startTrial() {
+		if(isTrialRunning) return permitDenied;
+		isTrialRunning = true;
+		return generation;
+	}
+	
+	/**
+	 * Checks if the breaker is currently open, without starting a trial
+	 */
+	public synchronized boolean isOpen() {
+		return state == State.OPEN && clock.getAsLong() - openTime < openDuration;
+	}
+	
+	/**
+	 * Records the result of a batch that was allowed through
+	 * @param permit The permit that the batch was allowed through with
+	 * @param successes The amount of messages that were delivered, or failed permanently
+	 * @param failures The amount of messages that failed with a transient error
+	 */
+	public synchronized void recordResult(long permit, int successes, int failures) {
+		//Ignoring late results from batches sent before the state last changed, such as batches still in flight when the breaker opened
+		if(permit != generation) return;
+		
+		long time = clock.getAsLong();
+		
+		if(state == State.HALF_OPEN) {
+			if(failures == 0 || failures < (successes + failures) * failureThreshold) {
+				setState(State.CLOSED);
+				resetWindow(time);
+			} else {
+				open(time);
+			}
+			return;
+		}
+		
+		if(time - windowStartTime > window) resetWindow(time);
+		windowSuccesses += successes;
+		windowFailures += failures;
+		
+		int total = windowSuccesses + windowFailures;
+		if(total >= minimumRequests && windowFailures >= total * failureThreshold) {
+			open(time);
+		}
+	}
+	
+	private void open(long time) {
+		setState(State.OPEN);
+		openTime = time;
+		resetWindow(time);
+	}
+	
+	private void setState(State state) {
+		this.state = state;
+		generation++;
+		isTrialRunning = false;
+	}
+	
+	private void resetWindow(long time) {
+		windowStartTime = time;
+		windowSuccesses = 0;
+		windowFailures = 0;
+	}
+	
+	public synchronized State getState() {
+		return state;
+	}
+}
\ No newline at end of file
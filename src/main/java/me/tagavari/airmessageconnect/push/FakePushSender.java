@@ -0,0 +1,99 @@
+package me.tagavari.airmessageconnect.push;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Simulates FCM in-process, to test the push pipeline without Firebase credentials
+ *
+ * Each batch completes after a random delay within the latency range.
+ * A fixed share of tokens is treated as unregistered, chosen by the token's hash so that a token always gets the same answer,
+ * while transient and permanent failures are rolled for every message.
+ */
+public class FakePushSender implements PushSender {
+	private final long minLatency, maxLatency;
+	private final double unregisteredRate;
+	private final double retryableRate;
+	private final double failureRate;
+	
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "FakePushSender");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	//Statistics
+	private final LongAdder statBatches = new LongAdder();
+	private final LongAdder statMessages = new LongAdder();
+	
+	/**
+	 * Creates a new fake push sender
+	 * @param minLatency The minimum time to take per batch, in milliseconds
+	 * @param maxLatency The maximum time to take per batch, in milliseconds
+	 * @param unregisteredRate The share of tokens to report as unregistered, between 0 and 1
+	 * @param retryableRate The chance of a message failing with a transient error, between 0 and 1
+	 * @param failureRate The chance of a message failing permanently, between 0 and 1
+	 */
+	public FakePushSender(long minLatency, long maxLatency, double unregisteredRate, double retryableRate, double failureRate) {
+		if(minLatency < 0 || maxLatency < minLatency) throw new IllegalArgumentException("Invalid latency range " + minLatency + "-" + maxLatency);
+		if(!isRate(unregisteredRate) || !isRate(retryableRate) || !isRate(failureRate)) throw new IllegalArgumentException("Invalid failure rates " + unregisteredRate + " / " + retryableRate + " / " + failureRate);
+		
+		this.minLatency = minLatency;
+		this.maxLatency = maxLatency;
+		this.unregisteredRate = unregisteredRate;
+		this.retryableRate = retryableRate;
+		this.failureRate = failureRate;
+	}
+	
+	@Override
+	public CompletableFuture<List<PushResult>> send(List<PushMessage> messages) {
+		statBatches.increment();
+		statMessages.add(messages.size());
+		
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		List<PushResult> results = new ArrayList<>(messages.size());
+		for(PushMessage message : messages) {
+			if(isTokenUnregistered(message.getToken())) {
+				results.add(PushResult.unregistered());
+				continue;
+			}
+			
+			double roll = random.nextDouble();
+			if(roll < retryableRate) results.add(PushResult.retryable("Simulated transient failure", -1));
+			else if(roll < retryableRate + failureRate) results.add(PushResult.failed("Simulated failure"));
+			else results.add(PushResult.success());
+		}
+		
+		CompletableFuture<List<PushResult>> future = new CompletableFuture<>();
+		long latency = minLatency == maxLatency ? minLatency : random.nextLong(minLatency, maxLatency + 1);
+		executor.schedule(() -> future.complete(results), latency, TimeUnit.MILLISECONDS);
+		return future;
+	}
+	
+	/**
+	 * Checks if a token falls into the unregistered share of tokens
+	 */
+	private boolean isTokenUnregistered(String token) {
+		return (token.hashCode() & Integer.MAX_VALUE) % 10000 < unregisteredRate * 10000;
+	}
+	
+	private static boolean isRate(double rate) {
+		return rate >= 0 && rate <= 1;
+	}
+	
+	/**
+	 * Gets the amount of batches sent through this sender
+	 */
+	public long getBatchCount() {
+		return statBatches.sum();
+	}
+	
+	/**
+	 * Gets the amount of messages sent through this sender
+	 */
+	public long getMessageCount() {
+		return statMessages.sum();
+	}
+}
\ No newline at end of file
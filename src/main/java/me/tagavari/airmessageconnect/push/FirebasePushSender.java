@@ -0,0 +1,122 @@
+package me.tagavari.airmessageconnect.push;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.firebase.ErrorCode;
+import com.google.firebase.FirebaseException;
+import com.google.firebase.IncomingHttpResponse;
+import com.google.firebase.messaging.*;
+import me.tagavari.airmessageconnect.events.PushBatchEvent;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+/**
+ * Sends push messages with Firebase Cloud Messaging
+ */
+public class FirebasePushSender implements PushSender {
+	@Override
+	public CompletableFuture<List<PushResult>> send(List<PushMessage> messages) {
+		List<Message> firebaseMessages = messages.stream()
+				.map(message -> Message.builder()
+						.setToken(message.getToken())
+						.setAndroidConfig(AndroidConfig.builder()
+							.setPriority(AndroidConfig.Priority.HIGH)
+							.putAllData(message.getData())
+							.build())
+						.build())
+				.collect(Collectors.toList());
+		
+		CompletableFuture<List<PushResult>> future = new CompletableFuture<>();
+		PushBatchEvent event = new PushBatchEvent();
+		event.begin();
+		ApiFuture<BatchResponse> responseFuture = FirebaseMessaging.getInstance().sendAllAsync(firebaseMessages);
+		ApiFutures.addCallback(responseFuture, new ApiFutureCallback<>() {
+			@Override
+			public void onFailure(Throwable throwable) {
+				//Giving every message the same result
+				PushResult result;
+				if(throwable instanceof FirebaseException && isRetryable(((FirebaseException) throwable).getErrorCode())) {
+					result = PushResult.retryable(throwable.getMessage(), getRetryAfter((FirebaseException) throwable));
+				} else {
+					result = PushResult.failed(throwable.getMessage());
+				}
+				event.finish(messages.size(), 0, 0, messages.size(), throwable.getMessage());
+				future.complete(Collections.nCopies(messages.size(), result));
+			}
+			
+			@Override
+			public void onSuccess(BatchResponse batchResponse) {
+				//The order of responses corresponds to the order of the messages
+				List<PushResult> results = new ArrayList<>(messages.size());
+				int unregisteredCount = 0;
+				for(SendResponse response : batchResponse.getResponses()) {
+					if(response.isSuccessful()) {
+						results.add(PushResult.success());
+						continue;
+					}
+					
+					FirebaseMessagingException exception = response.getException();
+					MessagingErrorCode errorCode = exception.getMessagingErrorCode();
+					if(errorCode == MessagingErrorCode.UNREGISTERED) {
+						results.add(PushResult.unregistered());
+						unregisteredCount++;
+					} else if(errorCode == MessagingErrorCode.UNAVAILABLE || errorCode == MessagingErrorCode.INTERNAL || errorCode == MessagingErrorCode.QUOTA_EXCEEDED ||
+							  (errorCode == null && isRetryable(exception.getErrorCode()))) {
+						results.add(PushResult.retryable(exception.getMessage(), getRetryAfter(exception)));
+					} else {
+						results.add(PushResult.failed(exception.getMessage()));
+					}
+				}
+				event.finish(messages.size(), batchResponse.getSuccessCount(), unregisteredCount, batchResponse.getFailureCount() - unregisteredCount, null);
+				future.complete(results);
+			}
+		}, MoreExecutors.directExecutor()); //Results are handed off to the dispatcher's own executor
+		
+		return future;
+	}
+	
+	/**
+	 * Checks if a request that failed with the specified error code can be tried again
+	 */
+	private static boolean isRetryable(ErrorCode errorCode) {
+		return errorCode == ErrorCode.UNAVAILABLE || errorCode == ErrorCode.INTERNAL ||
+			   errorCode == ErrorCode.RESOURCE_EXHAUSTED || errorCode == ErrorCode.DEADLINE_EXCEEDED;
+	}
+	
+	/**
+	 * Reads the Retry-After header of a failed request
+	 * @return The time to wait before retrying in milliseconds, or -1 if unspecified
+	 */
+	private static long getRetryAfter(FirebaseException exception) {
+		IncomingHttpResponse response = exception.getHttpResponse();
+		if(response == null) return -1;
+		
+		Object header = response.getHeaders().get("retry-after");
+		if(header instanceof List) header = ((List<?>) header).isEmpty() ? null : ((List<?>) header).get(0);
+		if(header == null) return -1;
+		
+		String value = header.toString().trim();
+		try {
+			//Delay in seconds
+			return Long.parseLong(value) * 1000;
+		} catch(NumberFormatException exception1) {
+			//HTTP date
+			try {
+				return Math.max(Duration.between(Instant.now(), ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant()).toMillis(), 0);
+			} catch(DateTimeParseException exception2) {
+				return -1;
+			}
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,196 @@
+package me.tagavari.airmessageconnect.push;
+
+import me.tagavari.airmessageconnect.Main;
+import me.tagavari.airmessageconnect.structure.ConnectionGroup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.stream.Collectors;
+
+/**
+ * Merges bursts of push notifications for the same group into a single push
+ *
+ * A notification for a group waits for the coalescing window to pass without another notification arriving,
+ * but never longer than the maximum delay after the first notification of the burst.
+ */
+public class PushCoalescer {
+	//The data key of the payload of a notification
+	private static final String keyPayload = "payload";
+	
+	//The data key of the list of all payloads in a burst, when payloads are kept as a list
+	private static final String keyPayloadList = "payload_list";
+	
+	//The maximum size of the keys and values of a push message's data that FCM accepts
+	private static final int dataSizeLimit = 4096;
+	
+	private final long window;
+	private final long maxDelay;
+	private final int payloadLimit;
+	private final Target target;
+	
+	private final Map<ConnectionGroup, PendingPush> pendingMap = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService executor;
+	
+	/**
+	 * Creates a new push coalescer
+	 * @param window How long to wait for another notification before sending, in milliseconds, or 0 to send immediately
+	 * @param maxDelay The maximum amount of time to hold a notification, in milliseconds
+	 * @param payloadLimit The maximum amount of payloads to send per push, or 1 to only send the latest payload
+	 * @param target The function to send merged notifications to
+	 */
+	public PushCoalescer(long window, long maxDelay, int payloadLimit, Target target) {
+		if(window < 0 || maxDelay < window) throw new IllegalArgumentException("Invalid coalescing window " + window + " / " + maxDelay);
+		if(payloadLimit < 1) throw new IllegalArgumentException("Invalid payload limit " + payloadLimit);
+		
+		this.window = window;
+		this.maxDelay = maxDelay;
+		this.payloadLimit = payloadLimit;
+		this.target = target;
+		
+		if(window > 0) {
+			executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "PushCoalescer");
+				thread.setDaemon(true);
+				return thread;
+			});
+		} else {
+			executor = null;
+		}
+	}
+	
+	/**
+	 * Submits a notification to be sent to a group
+	 * @param group The group to notify
+	 * @param data The notification's data
+	 */
+	public void submit(ConnectionGroup group, Map<String, String> data) {
+		//Sending immediately if coalescing is disabled
+		if(window == 0) {
+			target.accept(group, data, System.nanoTime());
+			return;
+		}
+		
+		long time = System.currentTimeMillis();
+		long arrivalTime = System.nanoTime();
+		AtomicReference<PendingPush> fullPush = new AtomicReference<>();
+		pendingMap.compute(group, (key, pendingPush) -> {
+			if(pendingPush != null) {
+				pendingPush.future.cancel(false);
+				
+				//Sending the pending notification right away if merging this one into it would go over FCM's size limit
+				if(payloadLimit > 1 && getMergedSize(pendingPush, data) > dataSizeLimit) {
+					fullPush.set(pendingPush);
+					pendingPush = null;
+				}
+			}
+			if(pendingPush == null) pendingPush = new PendingPush(time, arrivalTime);
+			
+			//Adding the payload, discarding the oldest if we're at capacity
+			if(pendingPush.dataList.size() >= payloadLimit) pendingPush.payloadListSize -= getPayloadListSize(pendingPush.dataList.removeFirst());
+			pendingPush.dataList.addLast(data);
+			pendingPush.payloadListSize += getPayloadListSize(data);
+			
+			//Waiting for the window to pass, up to the maximum delay
+			long delay = Math.min(window, pendingPush.firstTime + maxDelay - time);
+			pendingPush.future = executor.schedule(() -> flush(group), Math.max(delay, 0), TimeUnit.MILLISECONDS);
+			
+			return pendingPush;
+		});
+		
+		if(fullPush.get() != null) send(group, fullPush.get());
+	}
+	
+	/**
+	 * Sends the pending notification for a group
+	 */
+	private void flush(ConnectionGroup group) {
+		PendingPush pendingPush = pendingMap.remove(group);
+		if(pendingPush == null) return;
+		
+		send(group, pendingPush);
+	}
+	
+	/**
+	 * Merges and sends a group's notifications
+	 */
+	private void send(ConnectionGroup group, PendingPush pendingPush) {
+		try {
+			target.accept(group, mergeData(pendingPush.dataList), pendingPush.firstArrivalTime);
+		} catch(RuntimeException exception) {
+			Main.getLogger().log(Level.WARNING, exception.getMessage(), exception);
+		}
+	}
+	
+	/**
+	 * Merges the data of multiple notifications into one
+	 * @param dataList The data of each notification, from oldest to newest
+	 * @return The data to send
+	 */
+	private static Map<String, String> mergeData(Deque<Map<String, String>> dataList) {
+		Map<String, String> latestData = dataList.getLast();
+		if(dataList.size() == 1) return latestData;
+		
+		Map<String, String> data = new HashMap<>(latestData);
+		data.put(keyPayloadList, dataList.stream()
+				.map(item -> item.get(keyPayload))
+				.filter(Objects::nonNull)
+				.collect(Collectors.joining(",")));
+		return data;
+	}
+	
+	/**
+	 * Calculates the size of the data of a notification once another notification is merged into it
+	 * @param pendingPush The notification to merge into
+	 * @param data The data of the newer notification
+	 * @return The size of the merged data's keys and values in bytes
+	 */
+	private static int getMergedSize(PendingPush pendingPush, Map<String, String> data) {
+		int size = keyPayloadList.length() + pendingPush.payloadListSize + getPayloadListSize(data);
+		for(Map.Entry<String, String> entry : data.entrySet()) {
+			size += getUTF8Length(entry.getKey()) + getUTF8Length(entry.getValue());
+		}
+		return size;
+	}
+	
+	/**
+	 * Gets the amount of space a notification's payload takes up in a payload list, including its separator
+	 */
+	private static int getPayloadListSize(Map<String, String> data) {
+		String payload = data.get(keyPayload);
+		return payload == null ? 0 : getUTF8Length(payload) + 1;
+	}
+	
+	private static int getUTF8Length(String value) {
+		return value == null ? 0 : value.getBytes(StandardCharsets.UTF_8).length;
+	}
+	
+	private static class PendingPush {
+		final long firstTime;
+		final long firstArrivalTime;
+		final Deque<Map<String, String>> dataList = new ArrayDeque<>();
+		int payloadListSize = 0;
+		ScheduledFuture<?> future;
+		
+		PendingPush(long firstTime, long firstArrivalTime) {
+			this.firstTime = firstTime;
+			this.firstArrivalTime = firstArrivalTime;
+		}
+	}
+	
+	/**
+	 * Receives merged notifications
+	 */
+	@FunctionalInterface
+	public interface Target {
+		/**
+		 * Sends a merged notification
+		 * @param group The group to notify
+		 * @param data The notification's data
+		 * @param arrivalTime The value of {@link System#nanoTime()} when the first notification merged into this one arrived
+		 */
+		void accept(ConnectionGroup group, Map<String, String> data, long arrivalTime);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,406 @@
+package me.tagavari.airmessageconnect.push;
+
+import me.tagavari.airmessageconnect.Main;
+import me.tagavari.airmessageconnect.StorageUtils;
+import me.tagavari.airmessageconnect.metrics.RelayMetrics;
+import me.tagavari.airmessageconnect.structure.ConnectionGroup;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+
+/**
+ * Queues push messages from all groups, and sends them in batches
+ *
+ * Messages are collected in a bounded queue, and a single dispatch thread drains them
+ * into batches of up to {@link #batchLimit} messages whenever a sending slot is free.
+ * Under load, batches fill up while all slots are busy; under light load, messages are sent right away.
+ *
+ * Messages that fail with a transient error are re-queued after a jittered exponential backoff,
+ * and a circuit breaker sheds messages entirely while FCM keeps failing.
+ * Retries are checked for every {@link #retryCheckInterval} milliseconds, and are due according to the dispatcher's clock.
+ */
+public class PushDispatcher {
+	//The maximum amount of messages per batch, as accepted by FCM
+	public static final int batchLimit = 500;
+	
+	//How often to log statistics, in milliseconds
+	private static final long reportInterval = 60 * 1000;
+	
+	//The backoff before the first retry, and the maximum backoff, in milliseconds
+	private static final long retryBackoffBase = 500;
+	private static final long retryBackoffMax = 60 * 1000;
+	
+	//How often to queue retries that are due, in milliseconds
+	private static final long retryCheckInterval = 50;
+	
+	private final PushSender sender;
+	private final int retryLimit;
+	private final CircuitBreaker circuitBreaker;
+	private final BlockingQueue<PushMessage> queue;
+	private final int queueCapacity;
+	private final LongSupplier clock;
+	private final PriorityQueue<PendingRetry> retryQueue = new PriorityQueue<>(Comparator.comparingLong(retry -> retry.dueTime));
+	private final Semaphore sendSemaphore;
+	private final ScheduledExecutorService executor;
+	private final Thread dispatchThread;
+	private volatile boolean isClosed = false;
+	
+	//Finds the active group with an ID, or NULL to always use the group a message was submitted for
+	private volatile Function<String, ConnectionGroup> groupLookup = null;
+	
+	//Statistics
+	private final LongAdder statMessagesQueued = new LongAdder();
+	private final LongAdder statMessagesDropped = new LongAdder();
+	private final LongAdder statMessagesSent = new LongAdder();
+	private final LongAdder statMessagesFailed = new LongAdder();
+	private final LongAdder statMessagesRetried = new LongAdder();
+	private final LongAdder statMessagesShed = new LongAdder();
+	private final LongAdder statBatches = new LongAdder();
+	private final LongAdder statBatchMessages = new LongAdder();
+	private final LongAccumulator statBatchSizeMax = new LongAccumulator(Math::max, 0);
+	private final LongAdder statLatencyTotal = new LongAdder();
+	private final LongAccumulator statLatencyMax = new LongAccumulator(Math::max, 0);
+	
+	/**
+	 * Creates and starts a new push dispatcher
+	 * @param sender The sender to deliver batches with
+	 * @param queueCapacity The maximum amount of messages to hold before dropping new ones
+	 * @param concurrency The maximum amount of batches to send at once
+	 * @param retryLimit The maximum amount of times to retry a message after a transient error
+	 * @param circuitBreaker The circuit breaker to check before sending each batch
+	 */
+	public PushDispatcher(PushSender sender, int queueCapacity, int concurrency, int retryLimit, CircuitBreaker circuitBreaker) {
+		this(sender, queueCapacity, concurrency, retryLimit, circuitBreaker, System::currentTimeMillis);
+	}
+	
+	/**
+	 * Creates and starts a new push dispatcher, timing retries with a custom clock
+	 * @param sender The sender to deliver batches with
+	 * @param queueCapacity The maximum amount of messages to hold before dropping new ones
+	 * @param concurrency The maximum amount of batches to send at once
+	 * @param retryLimit The maximum amount of times to retry a message after a transient error
+	 * @param circuitBreaker The circuit breaker to check before sending each batch
+	 * @param clock The current time in milliseconds
+	 */
+	public PushDispatcher(PushSender sender, int queueCapacity, int concurrency, int retryLimit, CircuitBreaker circuitBreaker, LongSupplier clock) {
+		if(queueCapacity < 1) throw new IllegalArgumentException("Invalid push queue capacity " + queueCapacity);
+		if(concurrency < 1) throw new IllegalArgumentException("Invalid push concurrency " + concurrency);
+		if(retryLimit < 0) throw new IllegalArgumentException("Invalid push retry limit " + retryLimit);
+		
+		this.sender = sender;
+		this.retryLimit = retryLimit;
+		this.circuitBreaker = circuitBreaker;
+		this.queue = new ArrayBlockingQueue<>(queueCapacity);
+		this.queueCapacity = queueCapacity;
+		this.sendSemaphore = new Semaphore(concurrency);
+		this.clock = clock;
+		
+		AtomicInteger threadCount = new AtomicInteger();
+		this.executor = Executors.newScheduledThreadPool(Math.min(concurrency, 4), runnable -> {
+			Thread thread = new Thread(runnable, "PushDispatcher-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		
+		dispatchThread = new Thread(this::runDispatch, "PushDispatcher");
+		dispatchThread.setDaemon(true);
+		dispatchThread.start();
+		
+		executor.scheduleAtFixedRate(this::report, reportInterval, reportInterval, TimeUnit.MILLISECONDS);
+		executor.scheduleWithFixedDelay(this::queueDueRetries, retryCheckInterval, retryCheckInterval, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Queues a push notification to all devices of a group that aren't currently connected
+	 * @param group The group to notify
+	 * @param data The notification's data
+	 * @param arrivalTime The value of {@link System#nanoTime()} when the notification arrived at the relay
+	 */
+	public void submit(ConnectionGroup group, Map<String, String> data, long arrivalTime) {
+		if(isClosed) return;
+		
+		List<String> tokenList = group.copyOfflineClientFCMTokenList();
+		if(tokenList.isEmpty()) return;
+		
+		//Shedding messages while FCM is unavailable
+		if(circuitBreaker.isOpen()) {
+			statMessagesShed.add(tokenList.size());
+			RelayMetrics.pushMessagesShed.add(tokenList.size());
+			return;
+		}
+		
+		for(String token : tokenList) {
+			if(queue.offer(new PushMessage(group, token, data, arrivalTime))) {
+				statMessagesQueued.increment();
+				RelayMetrics.pushMessagesQueued.increment();
+			} else {
+				statMessagesDropped.increment();
+				RelayMetrics.pushMessagesDropped.increment();
+				Main.getLogger().log(Level.FINE, () -> "Dropping push message for group " + group.getGroupID() + " - queue is full");
+			}
+		}
+	}
+	
+	/**
+	 * Takes messages off the queue and sends them in batches, for as long as the program runs
+	 */
+	private void runDispatch() {
+		List<PushMessage> batch = new ArrayList<>(batchLimit);
+		while(true) {
+			try {
+				//Waiting for a free slot, letting the queue fill up in the meantime
+				sendSemaphore.acquire();
+				
+				//Collecting as many messages as possible
+				batch.add(queue.take());
+				queue.drainTo(batch, batchLimit - 1);
+			} catch(InterruptedException exception) {
+				return;
+			}
+			
+			long permit = circuitBreaker.allowRequest();
+			if(permit != CircuitBreaker.permitDenied) {
+				dispatchBatch(new ArrayList<>(batch), permit);
+			} else {
+				//Shedding messages that were queued before the breaker opened
+				sendSemaphore.release();
+				statMessagesShed.add(batch.size());
+				RelayMetrics.pushMessagesShed.add(batch.size());
+			}
+			batch.clear();
+		}
+	}
+	
+	private void dispatchBatch(List<PushMessage> batch, long permit) {
+		statBatches.increment();
+		statBatchMessages.add(batch.size());
+		statBatchSizeMax.accumulate(batch.size());
+		
+		CompletableFuture<List<PushResult>> future;
+		try {
+			future = sender.send(batch);
+		} catch(RuntimeException exception) {
+			sendSemaphore.release();
+			statMessagesFailed.add(batch.size());
+			RelayMetrics.pushMessagesFailed.add(batch.size());
+			circuitBreaker.recordResult(permit, 0, batch.size());
+			Main.getLogger().log(Level.WARNING, "Failed to send push batch: " + exception.getMessage(), exception);
+			return;
+		}
+		
+		future.whenCompleteAsync((results, throwable) -> {
+			sendSemaphore.release();
+			
+			if(throwable != null) {
+				statMessagesFailed.add(batch.size());
+				RelayMetrics.pushMessagesFailed.add(batch.size());
+				circuitBreaker.recordResult(permit, 0, batch.size());
+				Main.getLogger().log(Level.WARNING, "Failed to send push batch of " + batch.size() + ": " + throwable.getMessage(), throwable);
+			} else {
+				handleResults(batch, results, permit);
+			}
+		}, executor);
+	}
+	
+	private void handleResults(List<PushMessage> batch, List<PushResult> results, long permit) {
+		//Counting the whole batch as failed if the results can't be matched up with its messages
+		if(results.size() != batch.size()) {
+			statMessagesFailed.add(batch.size());
+			RelayMetrics.pushMessagesFailed.add(batch.size());
+			circuitBreaker.recordResult(permit, 0, batch.size());
+			Main.getLogger().log(Level.WARNING, "Failed to send push batch of " + batch.size() + ": received " + results.size() + " results");
+			return;
+		}
+		
+		long time = System.nanoTime();
+		int transientFailureCount = 0;
+		for(int i = 0; i < batch.size(); i++) {
+			PushMessage message = batch.get(i);
+			PushResult result = results.get(i);
+			
+			switch(result.getStatus()) {
+				case SUCCESS: {
+					statMessagesSent.increment();
+					RelayMetrics.pushMessagesSent.increment();
+					long latency = time - message.getArrivalTime();
+					statLatencyTotal.add(latency);
+					statLatencyMax.accumulate(latency);
+					RelayMetrics.pushLatency.observe(latency);
+					break;
+				}
+				case UNREGISTERED:
+					//Removing tokens that are no longer valid
+					statMessagesFailed.increment();
+					RelayMetrics.pushMessagesFailed.increment();
+					removeToken(message);
+					break;
+				case RETRYABLE:
+					transientFailureCount++;
+					retry(message, result);
+					break;
+				case FAILED:
+					statMessagesFailed.increment();
+					RelayMetrics.pushMessagesFailed.increment();
+					Main.getLogger().log(Level.FINE, () -> "Failed to send push message for group " + message.getGroup().getGroupID() + ": " + result.getError());
+					break;
+			}
+		}
+		
+		circuitBreaker.recordResult(permit, batch.size() - transientFailureCount, transientFailureCount);
+	}
+	
+	/**
+	 * Removes a token that FCM no longer accepts from its group
+	 *
+	 * The group the message was submitted for may have been replaced since, taking a copy of its tokens,
+	 * so the token is removed from the group that's active now, or from storage if the group has closed.
+	 */
+	private void removeToken(PushMessage message) {
+		ConnectionGroup group = message.getGroup();
+		Function<String, ConnectionGroup> groupLookup = this.groupLookup;
+		ConnectionGroup activeGroup = groupLookup != null ? groupLookup.apply(group.getGroupID()) : group;
+		if(activeGroup != null) {
+			activeGroup.removeClientFCMToken(message.getToken());
+			return;
+		}
+		
+		if(!StorageUtils.isAvailable()) return;
+		try {
+			List<String> tokenList = StorageUtils.instance().getFCMTokens(group.getGroupID());
+			if(tokenList != null && tokenList.remove(message.getToken())) {
+				StorageUtils.instance().updateFCMTokens(group.getGroupID(), tokenList);
+			}
+		} catch(ExecutionException | InterruptedException exception) {
+			Main.getLogger().log(Level.WARNING, "Failed to remove FCM token of group " + group.getGroupID() + ": " + exception.getMessage(), exception);
+		}
+	}
+	
+	/**
+	 * Schedules a message that failed with a transient error to be queued again, or gives up on it
+	 */
+	private void retry(PushMessage message, PushResult result) {
+		if(isClosed) return;
+		
+		message.incrementAttempt();
+		if(message.getAttempt() > retryLimit) {
+			statMessagesFailed.increment();
+			RelayMetrics.pushMessagesFailed.increment();
+			Main.getLogger().log(Level.FINE, () -> "Giving up on push message for group " + message.getGroup().getGroupID() + " after " + retryLimit + " retries: " + result.getError());
+			return;
+		}
+		
+		//Using full jitter, but waiting for at least as long as FCM asks us to
+		long backoff = Math.min(retryBackoffBase << Math.min(message.getAttempt() - 1, 16), retryBackoffMax);
+		long delay = Math.max(ThreadLocalRandom.current().nextLong(backoff + 1), result.getRetryAfter());
+		
+		synchronized(retryQueue) {
+			//Keeping waiting retries within the size of the queue
+			if(retryQueue.size() >= queueCapacity) {
+				statMessagesDropped.increment();
+				RelayMetrics.pushMessagesDropped.increment();
+				return;
+			}
+			
+			retryQueue.add(new PendingRetry(message, clock.getAsLong() + delay));
+		}
+		statMessagesRetried.increment();
+		RelayMetrics.pushMessagesRetried.increment();
+	}
+	
+	/**
+	 * Moves retries that are due back onto the queue
+	 */
+	private void queueDueRetries() {
+		long time = clock.getAsLong();
+		List<PushMessage> dueList = new ArrayList<>();
+		synchronized(retryQueue) {
+			while(!retryQueue.isEmpty() && retryQueue.peek().dueTime <= time) dueList.add(retryQueue.poll().message);
+		}
+		
+		for(PushMessage message : dueList) {
+			if(circuitBreaker.isOpen()) {
+				statMessagesShed.increment();
+				RelayMetrics.pushMessagesShed.increment();
+			} else if(!queue.offer(message)) {
+				statMessagesDropped.increment();
+				RelayMetrics.pushMessagesDropped.increment();
+			}
+		}
+	}
+	
+	/**
+	 * Sets how to find the active group with an ID, so that invalid tokens are removed from groups that replaced the one a message was submitted for
+	 * @param groupLookup A function that returns the active group with an ID, or NULL if there is none
+	 */
+	public void setGroupLookup(Function<String, ConnectionGroup> groupLookup) {
+		this.groupLookup = groupLookup;
+	}
+	
+	/**
+	 * Gets the amount of messages currently waiting to be sent
+	 * @return The queue depth
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+	
+	/**
+	 * Gets the amount of messages waiting to be retried
+	 * @return The amount of pending retries
+	 */
+	public int getPendingRetryCount() {
+		synchronized(retryQueue) {
+			return retryQueue.size();
+		}
+	}
+	
+	/**
+	 * Logs and resets the statistics for the last reporting interval
+	 */
+	private void report() {
+		//Resetting every statistic, so that results that come in during a quiet interval aren't counted towards a later one
+		long batches = statBatches.sumThenReset();
+		long queued = statMessagesQueued.sumThenReset();
+		long dropped = statMessagesDropped.sumThenReset();
+		long shed = statMessagesShed.sumThenReset();
+		long sent = statMessagesSent.sumThenReset();
+		long failed = statMessagesFailed.sumThenReset();
+		long retried = statMessagesRetried.sumThenReset();
+		long batchMessages = statBatchMessages.sumThenReset();
+		long batchSizeMax = statBatchSizeMax.getThenReset();
+		long latencyTotal = statLatencyTotal.sumThenReset();
+		long latencyMax = statLatencyMax.getThenReset();
+		if(batches == 0 && queued == 0 && dropped == 0 && shed == 0 && sent == 0 && failed == 0 && retried == 0) return;
+		
+		Main.getLogger().log(Level.INFO, "Push dispatcher: " +
+				queued + " queued, " + dropped + " dropped, " + sent + " sent, " + failed + " failed, " + retried + " retried, " + shed + " shed; " +
+				"queue depth " + queue.size() + ", " + getPendingRetryCount() + " awaiting retry; circuit " + circuitBreaker.getState() + "; " +
+				batches + " batches (avg " + batchMessages / Math.max(batches, 1) + ", max " + batchSizeMax + "); " +
+				"latency avg " + TimeUnit.NANOSECONDS.toMillis(latencyTotal / Math.max(sent, 1)) + " ms, max " + TimeUnit.NANOSECONDS.toMillis(latencyMax) + " ms");
+	}
+	
+	/**
+	 * Stops the dispatcher's threads, discarding messages that are still queued or waiting to be retried
+	 */
+	public void close() {
+		isClosed = true;
+		dispatchThread.interrupt();
+		executor.shutdownNow();
+	}
+	
+	private static class PendingRetry {
+		final PushMessage message;
+		final long dueTime;
+		
+		PendingRetry(PushMessage message, long dueTime) {
+			this.message = message;
+			this.dueTime = dueTime;
+		}
+	}
+}
\ No newline at end of file
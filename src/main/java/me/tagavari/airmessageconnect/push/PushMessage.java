@@ -0,0 +1,65 @@
+package me.tagavari.airmessageconnect.push;
+
+import me.tagavari.airmessageconnect.structure.ConnectionGroup;
+
+import java.util.Map;
+
+/**
+ * Represents a push notification to a single device
+ */
+public class PushMessage {
+	private final ConnectionGroup group;
+	private final String token;
+	private final Map<String, String> data;
+	private final long arrivalTime;
+	private int attempt = 0;
+	
+	/**
+	 * Creates a new push message
+	 * @param group The group that the target device belongs to
+	 * @param token The FCM token of the target device
+	 * @param data The notification's data
+	 * @param arrivalTime The value of {@link System#nanoTime()} when the notification arrived at the relay
+	 */
+	public PushMessage(ConnectionGroup group, String token, Map<String, String> data, long arrivalTime) {
+		this.group = group;
+		this.token = token;
+		this.data = data;
+		this.arrivalTime = arrivalTime;
+	}
+	
+	public ConnectionGroup getGroup() {
+		return group;
+	}
+	
+	public String getToken() {
+		return token;
+	}
+	
+	public Map<String, String> getData() {
+		return data;
+	}
+	
+	/**
+	 * Gets the time the notification arrived at the relay, before it was held back to be coalesced
+	 * @return The value of {@link System#nanoTime()} when the notification arrived
+	 */
+	public long getArrivalTime() {
+		return arrivalTime;
+	}
+	
+	/**
+	 * Gets the amount of times this message has been retried
+	 * @return The amount of previous attempts
+	 */
+	public int getAttempt() {
+		return attempt;
+	}
+	
+	/**
+	 * Records a failed attempt to send this message
+	 */
+	public void incrementAttempt() {
+		attempt++;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,72 @@
+package me.tagavari.airmessageconnect.push;
+
+/**
+ * Represents the outcome of sending a single push message
+ */
+public class PushResult {
+	public enum Status {
+		SUCCESS, //The message was accepted for delivery
+		UNREGISTERED, //The target token is no longer valid, and should be removed
+		RETRYABLE, //The message couldn't be sent due to a temporary problem, and can be sent again later
+		FAILED //The message couldn't be sent
+	}
+	
+	private static final PushResult resultSuccess = new PushResult(Status.SUCCESS, null);
+	private static final PushResult resultUnregistered = new PushResult(Status.UNREGISTERED, null);
+	
+	private final Status status;
+	private final String error;
+	private final long retryAfter;
+	
+	private PushResult(Status status, String error) {
+		this(status, error, -1);
+	}
+	
+	private PushResult(Status status, String error, long retryAfter) {
+		this.status = status;
+		this.error = error;
+		this.retryAfter = retryAfter;
+	}
+	
+	public static PushResult success() {
+		return resultSuccess;
+	}
+	
+	public static PushResult unregistered() {
+		return resultUnregistered;
+	}
+	
+	/**
+	 * Creates a result for a message that failed due to a temporary problem
+	 * @param error A description of the error
+	 * @param retryAfter The minimum time to wait before retrying as requested by the service, in milliseconds, or -1 if unspecified
+	 * @return The result
+	 */
+	public static PushResult retryable(String error, long retryAfter) {
+		return new PushResult(Status.RETRYABLE, error, retryAfter);
+	}
+	
+	public static PushResult failed(String error) {
+		return new PushResult(Status.FAILED, error);
+	}
+	
+	public Status getStatus() {
+		return status;
+	}
+	
+	/**
+	 * Gets a description of why this message failed
+	 * @return The error description, or NULL if the message didn't fail
+	 */
+	public String getError() {
+		return error;
+	}
+	
+	/**
+	 * Gets how long the service asked to wait before retrying this message
+	 * @return The minimum retry delay in milliseconds, or -1 if unspecified
+	 */
+	public long getRetryAfter() {
+		return retryAfter;
+	}
+}
\ No newline at end of file
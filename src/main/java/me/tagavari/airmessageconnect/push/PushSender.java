@@ -0,0 +1,18 @@
+package me.tagavari.airmessageconnect.push;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Delivers batches of push messages to devices
+ */
+public interface PushSender {
+	/**
+	 * Sends a batch of push messages
+	 * @param messages The messages to send, no more than {@link PushDispatcher#batchLimit}
+	 * @return A future that completes with the result of each message in the same order as the messages
+	 * If the whole batch fails, every message should be given the same result;
+	 * the future should only complete exceptionally for unexpected errors
+	 */
+	CompletableFuture<List<PushResult>> send(List<PushMessage> messages);
+}
\ No newline at end of file
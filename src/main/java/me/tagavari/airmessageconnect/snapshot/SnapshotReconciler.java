@@ -0,0 +1,95 @@
+package me.tagavari.airmessageconnect.snapshot;
+
+import me.tagavari.airmessageconnect.Main;
+import me.tagavari.airmessageconnect.StorageUtils;
+import me.tagavari.airmessageconnect.storage.CachedStorageBackend;
+import me.tagavari.airmessageconnect.structure.ConnectionCollection;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+
+/**
+ * Brings state restored from a snapshot back in line with storage in the background,
+ * writing out token lists that weren't saved before shutdown and refreshing cached documents
+ */
+public class SnapshotReconciler extends Thread {
+	//The amount of storage operations to perform per second
+	private static final int operationsPerSecond = 50;
+	
+	//How long restored groups are kept for reconnecting servers
+	private static final long restoreWindow = 10 * 60 * 1000;
+	
+	private final ConnectionCollection connectionCollection;
+	private final Collection<StateSnapshot.Group> groups;
+	private final Collection<String> documentUserUIDs;
+	private final CachedStorageBackend cachedStorageBackend;
+	
+	/**
+	 * Creates a new reconciler
+	 * @param connectionCollection The connection collection that the snapshot's groups were restored into
+	 * @param snapshot The snapshot to reconcile
+	 * @param cachedStorageBackend The cache that the snapshot's documents were restored into, or NULL if unavailable
+	 */
+	public SnapshotReconciler(ConnectionCollection connectionCollection, StateSnapshot snapshot, CachedStorageBackend cachedStorageBackend) {
+		super("SnapshotReconciler");
+		setDaemon(true);
+		
+		this.connectionCollection = connectionCollection;
+		this.groups = new ArrayList<>(snapshot.getGroups());
+		this.documentUserUIDs = new ArrayList<>(snapshot.getDocuments().keySet());
+		this.cachedStorageBackend = cachedStorageBackend;
+	}
+	
+	@Override
+	public void run() {
+		long startTime = System.currentTimeMillis();
+		int savedCount = 0, refreshedCount = 0;
+		
+		try {
+			//Writing out modified token lists of groups whose servers haven't reconnected yet
+			if(StorageUtils.isAvailable()) {
+				for(StateSnapshot.Group group : groups) {
+					synchronized(group) {
+						if(group.isClaimed() || !group.isModified()) continue;
+						
+						try {
+							StorageUtils.instance().updateFCMTokens(group.getGroupID(), group.getFCMTokenList());
+							group.setSaved();
+							savedCount++;
+						} catch(ExecutionException exception) {
+							Main.getLogger().log(Level.WARNING, "Failed to save restored FCM tokens for group " + group.getGroupID() + ": " + exception.getMessage(), exception);
+						}
+					}
+					
+					Thread.sleep(1000 / operationsPerSecond);
+				}
+			}
+			
+			//Refreshing restored documents
+			if(cachedStorageBackend != null) {
+				for(String userUID : documentUserUIDs) {
+					try {
+						if(!cachedStorageBackend.refreshRestoredDocument(userUID)) continue;
+						refreshedCount++;
+					} catch(ExecutionException exception) {
+						Main.getLogger().log(Level.WARNING, "Failed to refresh restored document for user " + userUID + ": " + exception.getMessage(), exception);
+					}
+					
+					Thread.sleep(1000 / operationsPerSecond);
+				}
+			}
+			
+			Main.getLogger().log(Level.INFO, "Reconciled snapshot in " + (System.currentTimeMillis() - startTime) + " ms (" + savedCount + " token lists saved, " + refreshedCount + " documents refreshed)");
+			
+			//Discarding restored groups that weren't claimed in time
+			long remainingWindow = restoreWindow - (System.currentTimeMillis() - startTime);
+			if(remainingWindow > 0) Thread.sleep(remainingWindow);
+			int expiredCount = connectionCollection.clearRestoredGroups();
+			if(expiredCount > 0) Main.getLogger().log(Level.INFO, "Discarded " + expiredCount + " restored groups that did not reconnect");
+		} catch(InterruptedException exception) {
+			Main.getLogger().log(Level.WARNING, "Snapshot reconciliation interrupted");
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,167 @@
+package me.tagavari.airmessageconnect.snapshot;
+
+import me.tagavari.airmessageconnect.document.DocumentUser;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Represents the state of the relay at shutdown, used to warm up the relay when it starts again
+ */
+public class StateSnapshot {
+	//File format
+	private static final int fileMagic = 0x414D5353; //AMSS
+	private static final int fileVersion = 2;
+	
+	private final long timestamp;
+	private final List<Group> groups;
+	private final Map<String, DocumentUser> documents;
+	
+	/**
+	 * Creates a new state snapshot
+	 * @param timestamp The time this snapshot was taken
+	 * @param groups The connection groups that were active
+	 * @param documents The user documents that were cached
+	 */
+	public StateSnapshot(long timestamp, List<Group> groups, Map<String, DocumentUser> documents) {
+		this.timestamp = timestamp;
+		this.groups = groups;
+		this.documents = documents;
+	}
+	
+	public long getTimestamp() {
+		return timestamp;
+	}
+	
+	public List<Group> getGroups() {
+		return groups;
+	}
+	
+	public Map<String, DocumentUser> getDocuments() {
+		return documents;
+	}
+	
+	/**
+	 * Writes this snapshot to disk, replacing the file atomically
+	 * @param file The file to write to
+	 */
+	public void write(File file) throws IOException {
+		File tempFile = new File(file.getPath() + ".tmp");
+		try(DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+			stream.writeInt(fileMagic);
+			stream.writeInt(fileVersion);
+			stream.writeLong(timestamp);
+			
+			stream.writeInt(groups.size());
+			for(Group group : groups) {
+				stream.writeUTF(group.groupID);
+				stream.writeBoolean(group.isModified);
+				stream.writeInt(group.fcmTokenList.size());
+				for(String token : group.fcmTokenList) stream.writeUTF(token);
+			}
+			
+			stream.writeInt(documents.size());
+			for(Map.Entry<String, DocumentUser> entry : documents.entrySet()) {
+				stream.writeUTF(entry.getKey());
+				writeNullableString(stream, entry.getValue().relayID);
+				writeNullableString(stream, entry.getValue().installationID);
+			}
+		}
+		
+		if(!tempFile.renameTo(file)) throw new IOException("Failed to move snapshot to " + file.getPath());
+	}
+	
+	/**
+	 * Reads a snapshot from disk
+	 * @param file The file to read from
+	 * @return The snapshot
+	 */
+	public static StateSnapshot read(File file) throws IOException {
+		try(DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if(stream.readInt() != fileMagic) throw new IOException("File " + file.getPath() + " is not a snapshot");
+			int version = stream.readInt();
+			if(version != fileVersion) throw new IOException("Unsupported snapshot version " + version);
+			long timestamp = stream.readLong();
+			
+			int groupCount = stream.readInt();
+			List<Group> groups = new ArrayList<>(groupCount);
+			for(int i = 0; i < groupCount; i++) {
+				String groupID = stream.readUTF();
+				boolean isModified = stream.readBoolean();
+				int tokenCount = stream.readInt();
+				List<String> fcmTokenList = new ArrayList<>(tokenCount);
+				for(int j = 0; j < tokenCount; j++) fcmTokenList.add(stream.readUTF());
+				groups.add(new Group(groupID, fcmTokenList, isModified));
+			}
+			
+			int documentCount = stream.readInt();
+			Map<String, DocumentUser> documents = new HashMap<>(documentCount);
+			for(int i = 0; i < documentCount; i++) {
+				String userUID = stream.readUTF();
+				documents.put(userUID, new DocumentUser(readNullableString(stream), readNullableString(stream)));
+			}
+			
+			return new StateSnapshot(timestamp, groups, documents);
+		}
+	}
+	
+	private static void writeNullableString(DataOutputStream stream, String value) throws IOException {
+		stream.writeBoolean(value != null);
+		if(value != null) stream.writeUTF(value);
+	}
+	
+	private static String readNullableString(DataInputStream stream) throws IOException {
+		if(stream.readBoolean()) return stream.readUTF();
+		else return null;
+	}
+	
+	/**
+	 * The saved state of a single connection group
+	 *
+	 * Once restored, a group is either claimed by its reconnecting server,
+	 * or has its token list written back to storage by the reconciler,
+	 * so all access to a restored group is synchronized on the group itself
+	 */
+	public static class Group {
+		private final String groupID;
+		private final List<String> fcmTokenList;
+		private boolean isModified;
+		private boolean isClaimed = false;
+		
+		public Group(String groupID, List<String> fcmTokenList, boolean isModified) {
+			this.groupID = groupID;
+			this.fcmTokenList = fcmTokenList;
+			this.isModified = isModified;
+		}
+		
+		public String getGroupID() {
+			return groupID;
+		}
+		
+		public synchronized List<String> getFCMTokenList() {
+			return fcmTokenList;
+		}
+		
+		public synchronized boolean isModified() {
+			return isModified;
+		}
+		
+		/**
+		 * Marks this group's token list as saved to storage
+		 */
+		public synchronized void setSaved() {
+			isModified = false;
+		}
+		
+		/**
+		 * Marks this group as taken over by a reconnected server
+		 */
+		public synchronized void setClaimed() {
+			isClaimed = true;
+		}
+		
+		public synchronized boolean isClaimed() {
+			return isClaimed;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,133 @@
+package me.tagavari.airmessageconnect.storage;
+
+import me.tagavari.airmessageconnect.document.DocumentUser;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Wraps another storage backend, keeping recently used user documents in memory to be saved in snapshots
+ *
+ * Reads go through to the backend, so that changes made elsewhere (such as a rotated installation ID) are seen right away.
+ * The only documents served from memory are those restored from a snapshot, once each, until they are refreshed,
+ * so that servers reconnecting after a restart don't have to wait on the remote backend.
+ */
+public class CachedStorageBackend implements StorageBackend {
+	//The maximum amount of documents to keep in memory
+	private static final int documentCacheLimit = 100_000;
+	
+	private final StorageBackend backend;
+	private final Map<String, CachedDocument> documentMap = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75F, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedDocument> eldest) {
+			return size() > documentCacheLimit;
+		}
+	});
+	
+	/**
+	 * Creates a new cached storage backend
+	 * @param backend The backend to forward operations to
+	 */
+	public CachedStorageBackend(StorageBackend backend) {
+		this.backend = backend;
+	}
+	
+	@Override
+	public DocumentUser getDocumentUser(String userUID) throws ExecutionException, InterruptedException {
+		//Serving a document restored from a snapshot for its first use only
+		synchronized(documentMap) {
+			CachedDocument cachedDocument = documentMap.get(userUID);
+			if(cachedDocument != null && cachedDocument.isRestored) {
+				documentMap.put(userUID, new CachedDocument(cachedDocument.document, false));
+				return cachedDocument.document;
+			}
+		}
+		
+		//Fetching the document
+		DocumentUser document = backend.getDocumentUser(userUID);
+		if(document != null) documentMap.put(userUID, new CachedDocument(document, false));
+		else documentMap.remove(userUID);
+		return document;
+	}
+	
+	@Override
+	public List<String> getFCMTokens(String userUID) throws ExecutionException, InterruptedException {
+		return backend.getFCMTokens(userUID);
+	}
+	
+	@Override
+	public void updateFCMTokens(String userUID, List<String> list) throws ExecutionException, InterruptedException {
+		backend.updateFCMTokens(userUID, list);
+	}
+	
+	@Override
+	public void updateRegisteredServerRelayInstallationID(String userUID, String relayID, String installationID) throws ExecutionException, InterruptedException {
+		backend.updateRegisteredServerRelayInstallationID(userUID, relayID, installationID);
+		documentMap.put(userUID, new CachedDocument(new DocumentUser(relayID, installationID), false));
+	}
+	
+	@Override
+	public void updateRegisteredServerRelayID(String userUID, String relayID) throws ExecutionException, InterruptedException {
+		backend.updateRegisteredServerRelayID(userUID, relayID);
+		
+		//Merging the update into the cached document
+		synchronized(documentMap) {
+			CachedDocument cachedDocument = documentMap.get(userUID);
+			if(cachedDocument != null) {
+				documentMap.put(userUID, new CachedDocument(new DocumentUser(relayID, cachedDocument.document.installationID), cachedDocument.isRestored));
+			}
+		}
+	}
+	
+	/**
+	 * Gets a copy of all documents currently in the cache
+	 * @return A map of user UIDs to documents
+	 */
+	public Map<String, DocumentUser> getCachedDocuments() {
+		Map<String, DocumentUser> map = new HashMap<>();
+		synchronized(documentMap) {
+			for(Map.Entry<String, CachedDocument> entry : documentMap.entrySet()) map.put(entry.getKey(), entry.getValue().document);
+		}
+		return map;
+	}
+	
+	/**
+	 * Loads documents into the cache, to be served once each until they are refreshed
+	 * @param documents A map of user UIDs to documents
+	 */
+	public void restoreDocuments(Map<String, DocumentUser> documents) {
+		for(Map.Entry<String, DocumentUser> entry : documents.entrySet()) {
+			documentMap.put(entry.getKey(), new CachedDocument(entry.getValue(), true));
+		}
+	}
+	
+	/**
+	 * Re-fetches a document restored from a snapshot, if it hasn't been refreshed already
+	 * @param userUID The UID of the user to refresh
+	 * @return TRUE if the document was fetched from the backend
+	 */
+	public boolean refreshRestoredDocument(String userUID) throws ExecutionException, InterruptedException {
+		CachedDocument cachedDocument = documentMap.get(userUID);
+		if(cachedDocument == null || !cachedDocument.isRestored) return false;
+		
+		DocumentUser document = backend.getDocumentUser(userUID);
+		synchronized(documentMap) {
+			//Making sure the document wasn't updated while we were fetching it
+			if(documentMap.get(userUID) == cachedDocument) {
+				if(document != null) documentMap.put(userUID, new CachedDocument(document, false));
+				else documentMap.remove(userUID);
+			}
+		}
+		return true;
+	}
+	
+	private static class CachedDocument {
+		final DocumentUser document;
+		final boolean isRestored;
+		
+		CachedDocument(DocumentUser document, boolean isRestored) {
+			this.document = document;
+			this.isRestored = isRestored;
+		}
+	}
+}
\ No newline at end of file
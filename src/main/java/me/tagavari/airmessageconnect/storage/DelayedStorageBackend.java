@@ -0,0 +1,66 @@
+package me.tagavari.airmessageconnect.storage;
+
+import me.tagavari.airmessageconnect.document.DocumentUser;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Wraps another storage backend, adding an artificial delay before every operation
+ *
+ * Used to simulate the latency of a remote database when benchmarking against a local backend
+ */
+public class DelayedStorageBackend implements StorageBackend {
+	private final StorageBackend backend;
+	private final long minDelay, maxDelay;
+	
+	/**
+	 * Creates a new delayed storage backend
+	 * @param backend The backend to forward operations to
+	 * @param minDelay The minimum delay per operation, in milliseconds
+	 * @param maxDelay The maximum delay per operation, in milliseconds
+	 */
+	public DelayedStorageBackend(StorageBackend backend, long minDelay, long maxDelay) {
+		if(minDelay < 0 || maxDelay < minDelay) throw new IllegalArgumentException("Invalid delay range " + minDelay + "-" + maxDelay);
+		
+		this.backend = backend;
+		this.minDelay = minDelay;
+		this.maxDelay = maxDelay;
+	}
+	
+	private void delay() throws InterruptedException {
+		long delay = minDelay == maxDelay ? minDelay : ThreadLocalRandom.current().nextLong(minDelay, maxDelay + 1);
+		if(delay > 0) Thread.sleep(delay);
+	}
+	
+	@Override
+	public DocumentUser getDocumentUser(String userUID) throws ExecutionException, InterruptedException {
+		delay();
+		return backend.getDocumentUser(userUID);
+	}
+	
+	@Override
+	public List<String> getFCMTokens(String userUID) throws ExecutionException, InterruptedException {
+		delay();
+		return backend.getFCMTokens(userUID);
+	}
+	
+	@Override
+	public void updateFCMTokens(String userUID, List<String> list) throws ExecutionException, InterruptedException {
+		delay();
+		backend.updateFCMTokens(userUID, list);
+	}
+	
+	@Override
+	public void updateRegisteredServerRelayInstallationID(String userUID, String relayID, String installationID) throws ExecutionException, InterruptedException {
+		delay();
+		backend.updateRegisteredServerRelayInstallationID(userUID, relayID, installationID);
+	}
+	
+	@Override
+	public void updateRegisteredServerRelayID(String userUID, String relayID) throws ExecutionException, InterruptedException {
+		delay();
+		backend.updateRegisteredServerRelayID(userUID, relayID);
+	}
+}
\ No newline at end of file
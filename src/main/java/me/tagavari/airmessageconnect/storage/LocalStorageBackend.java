@@ -0,0 +1,365 @@
+package me.tagavari.airmessageconnect.storage;
+
+import me.tagavari.airmessageconnect.Main;
+import me.tagavari.airmessageconnect.document.DocumentUser;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+/**
+ * A storage backend that keeps its data in an append-only log file on the local disk
+ *
+ * Every update is appended to the file as a full record of the affected user's data,
+ * and the latest record for each user is kept in an in-memory index for reads.
+ * Updates are written to the file before they're applied to the index, so a failed write changes neither.
+ *
+ * The file starts with [int magic][int version], followed by records of [int length][int CRC32][payload].
+ * The log is replayed when the backend is created, stopping at the first record that was cut off or doesn't match its checksum,
+ * and is compacted when it's mostly made up of stale records, both at startup and as it grows.
+ */
+public class LocalStorageBackend implements StorageBackend {
+	private static final int magic = 0x414D4C53; //AMLS
+	private static final int version = 1;
+	private static final int headerLength = Integer.BYTES * 2;
+	private static final int recordHeaderLength = Integer.BYTES * 2;
+	
+	//Record types
+	private static final byte recordDocumentUser = 1;
+	private static final byte recordFCMTokens = 2;
+	
+	//The amount of stale records per live record to tolerate before compacting the log
+	private static final int compactionRatio = 2;
+	
+	//The smallest log that is compacted while running
+	private static final long minimumCompactionLength = 16 * 1024 * 1024;
+	
+	private final File file;
+	private final Map<String, Entry> entryMap = new HashMap<>();
+	private int recordCount = 0;
+	private FileOutputStream outputStream;
+	
+	//The length of the log, and the length at which to compact it
+	private long logLength;
+	private long compactionThreshold;
+	
+	/**
+	 * Creates a new local storage backend, loading any existing data from disk
+	 * @param file The log file to read from and append to
+	 * @throws IOException If the log file couldn't be read or opened for writing, or isn't a local storage file
+	 */
+	public LocalStorageBackend(File file) throws IOException {
+		this.file = file;
+		if(file.getParentFile() != null && !file.getParentFile().exists()) file.getParentFile().mkdirs();
+		
+		byte[] data = file.exists() ? Files.readAllBytes(file.toPath()) : new byte[0];
+		if(data.length == 0) {
+			//Starting a new log
+			try(FileOutputStream headerStream = new FileOutputStream(file)) {
+				headerStream.write(createHeader());
+			}
+			openLog(headerLength);
+		} else if(data.length < headerLength || ByteBuffer.wrap(data).getInt() != magic) {
+			//Leaving alone whatever file this is
+			throw new IOException(file.getPath() + " isn't a local storage file");
+		} else {
+			int fileVersion = ByteBuffer.wrap(data).getInt(Integer.BYTES);
+			if(fileVersion != version) throw new IOException("Unsupported local storage version " + fileVersion);
+			
+			//Replaying the existing log
+			int validLength = readLog(data);
+			
+			if(recordCount > entryMap.size() * compactionRatio) {
+				//Rewriting the log with only live records
+				compact();
+			} else {
+				//Discarding any partially-written or corrupted records at the end of the log
+				if(data.length != validLength) {
+					Main.getLogger().log(Level.WARNING, "Discarding " + (data.length - validLength) + " trailing bytes from local storage file " + file.getPath());
+					try(RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+						randomAccessFile.setLength(validLength);
+					}
+				}
+				
+				openLog(validLength);
+			}
+		}
+	}
+	
+	/**
+	 * Reads all records from the log file into the index, stopping at the first incomplete or corrupted record
+	 * @param data The contents of the log file
+	 * @return The length of the valid portion of the log file
+	 */
+	private int readLog(byte[] data) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		buffer.position(headerLength);
+		int validLength = headerLength;
+		CRC32 crc = new CRC32();
+		
+		while(buffer.remaining() >= recordHeaderLength) {
+			int length = buffer.getInt();
+			int checksum = buffer.getInt();
+			if(length <= 0 || length > buffer.remaining()) break;
+			
+			crc.reset();
+			crc.update(data, buffer.position(), length);
+			if((int) crc.getValue() != checksum) break;
+			
+			try(DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(data, buffer.position(), length))) {
+				applyRecord(inputStream);
+			} catch(EOFException exception) {
+				throw new IOException("Malformed record at offset " + validLength, exception);
+			}
+			
+			buffer.position(buffer.position() + length);
+			validLength = buffer.position();
+			recordCount++;
+		}
+		
+		return validLength;
+	}
+	
+	/**
+	 * Reads a single record and applies it to the index
+	 */
+	private void applyRecord(DataInputStream inputStream) throws IOException {
+		byte type = inputStream.readByte();
+		String userUID = inputStream.readUTF();
+		
+		if(type == recordDocumentUser) {
+			String relayID = readNullableString(inputStream);
+			String installationID = readNullableString(inputStream);
+			
+			Entry entry = entryMap.computeIfAbsent(userUID, key -> new Entry());
+			entry.hasDocument = true;
+			entry.relayID = relayID;
+			entry.installationID = installationID;
+		} else if(type == recordFCMTokens) {
+			int count = inputStream.readInt();
+			List<String> tokenList = new ArrayList<>(count);
+			for(int i = 0; i < count; i++) tokenList.add(inputStream.readUTF());
+			
+			entryMap.computeIfAbsent(userUID, key -> new Entry()).fcmTokenList = tokenList;
+		} else {
+			throw new IOException("Unknown record type " + type);
+		}
+	}
+	
+	/**
+	 * Rewrites the log file to contain a single record per piece of live data
+	 */
+	private void compact() throws IOException {
+		File compactFile = new File(file.getPath() + ".compact");
+		int compactRecordCount = 0;
+		long compactLength = headerLength;
+		try(OutputStream compactStream = new BufferedOutputStream(new FileOutputStream(compactFile))) {
+			compactStream.write(createHeader());
+			for(Map.Entry<String, Entry> mapEntry : entryMap.entrySet()) {
+				Entry entry = mapEntry.getValue();
+				if(entry.hasDocument) {
+					byte[] record = frameRecord(createDocumentRecord(mapEntry.getKey(), entry.relayID, entry.installationID));
+					compactStream.write(record);
+					compactLength += record.length;
+					compactRecordCount++;
+				}
+				if(entry.fcmTokenList != null) {
+					byte[] record = frameRecord(createFCMTokensRecord(mapEntry.getKey(), entry.fcmTokenList));
+					compactStream.write(record);
+					compactLength += record.length;
+					compactRecordCount++;
+				}
+			}
+		}
+		
+		//Replacing the log, and going back to the old one if that fails
+		if(outputStream != null) outputStream.close();
+		try {
+			Files.move(compactFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(IOException exception) {
+			if(outputStream != null) openLog(logLength);
+			throw exception;
+		}
+		
+		recordCount = compactRecordCount;
+		openLog(compactLength);
+		
+		Main.getLogger().log(Level.INFO, "Compacted local storage file " + file.getPath() + " to " + recordCount + " records");
+	}
+	
+	/**
+	 * Opens the log file for appending
+	 * @param length The length of the log file
+	 */
+	private void openLog(long length) throws IOException {
+		outputStream = new FileOutputStream(file, true);
+		logLength = length;
+		compactionThreshold = Math.max(minimumCompactionLength, length * (compactionRatio + 1));
+	}
+	
+	@Override
+	public synchronized DocumentUser getDocumentUser(String userUID) {
+		Entry entry = entryMap.get(userUID);
+		if(entry == null || !entry.hasDocument) return null;
+		
+		return new DocumentUser(entry.relayID, entry.installationID);
+	}
+	
+	@Override
+	public synchronized List<String> getFCMTokens(String userUID) {
+		Entry entry = entryMap.get(userUID);
+		if(entry == null || entry.fcmTokenList == null) return null;
+		
+		return new ArrayList<>(entry.fcmTokenList);
+	}
+	
+	@Override
+	public synchronized void updateFCMTokens(String userUID, List<String> list) throws ExecutionException {
+		List<String> tokenList = new ArrayList<>(list);
+		try {
+			append(createFCMTokensRecord(userUID, tokenList));
+		} catch(IOException exception) {
+			throw new ExecutionException(exception);
+		}
+		
+		entryMap.computeIfAbsent(userUID, key -> new Entry()).fcmTokenList = tokenList;
+		compactIfNeeded();
+	}
+	
+	@Override
+	public synchronized void updateRegisteredServerRelayInstallationID(String userUID, String relayID, String installationID) throws ExecutionException {
+		try {
+			append(createDocumentRecord(userUID, relayID, installationID));
+		} catch(IOException exception) {
+			throw new ExecutionException(exception);
+		}
+		
+		Entry entry = entryMap.computeIfAbsent(userUID, key -> new Entry());
+		entry.hasDocument = true;
+		entry.relayID = relayID;
+		entry.installationID = installationID;
+		compactIfNeeded();
+	}
+	
+	@Override
+	public synchronized void updateRegisteredServerRelayID(String userUID, String relayID) throws ExecutionException {
+		Entry existingEntry = entryMap.get(userUID);
+		String installationID = existingEntry != null ? existingEntry.installationID : null;
+		try {
+			append(createDocumentRecord(userUID, relayID, installationID));
+		} catch(IOException exception) {
+			throw new ExecutionException(exception);
+		}
+		
+		Entry entry = entryMap.computeIfAbsent(userUID, key -> new Entry());
+		entry.hasDocument = true;
+		entry.relayID = relayID;
+		compactIfNeeded();
+	}
+	
+	/**
+	 * Appends a record to the log
+	 * @param payload The record's payload
+	 * @throws IOException If the record couldn't be written
+	 */
+	private void append(byte[] payload) throws IOException {
+		byte[] record = frameRecord(payload);
+		try {
+			outputStream.write(record);
+		} catch(IOException exception) {
+			//Cutting off whatever part of the record reached the disk, so that it doesn't hide the records after it
+			try {
+				outputStream.getChannel().truncate(logLength);
+			} catch(IOException truncateException) {
+				exception.addSuppressed(truncateException);
+			}
+			throw exception;
+		}
+		
+		logLength += record.length;
+		recordCount++;
+	}
+	
+	/**
+	 * Compacts the log if it has grown past its threshold
+	 */
+	private void compactIfNeeded() {
+		if(logLength <= compactionThreshold) return;
+		
+		try {
+			compact();
+		} catch(IOException exception) {
+			//Waiting for the log to grow further before trying again
+			compactionThreshold = logLength + minimumCompactionLength;
+			Main.getLogger().log(Level.WARNING, "Failed to compact local storage file " + file.getPath() + ": " + exception.getMessage(), exception);
+		}
+	}
+	
+	private static byte[] createHeader() {
+		return ByteBuffer.allocate(headerLength).putInt(magic).putInt(version).array();
+	}
+	
+	/**
+	 * Prefixes a record's payload with its length and checksum
+	 */
+	private static byte[] frameRecord(byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		
+		return ByteBuffer.allocate(recordHeaderLength + payload.length)
+				.putInt(payload.length)
+				.putInt((int) crc.getValue())
+				.put(payload)
+				.array();
+	}
+	
+	private static byte[] createDocumentRecord(String userUID, String relayID, String installationID) throws IOException {
+		ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+		try(DataOutputStream stream = new DataOutputStream(byteStream)) {
+			stream.writeByte(recordDocumentUser);
+			stream.writeUTF(userUID);
+			writeNullableString(stream, relayID);
+			writeNullableString(stream, installationID);
+		}
+		return byteStream.toByteArray();
+	}
+	
+	private static byte[] createFCMTokensRecord(String userUID, List<String> tokenList) throws IOException {
+		ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+		try(DataOutputStream stream = new DataOutputStream(byteStream)) {
+			stream.writeByte(recordFCMTokens);
+			stream.writeUTF(userUID);
+			stream.writeInt(tokenList.size());
+			for(String token : tokenList) stream.writeUTF(token);
+		}
+		return byteStream.toByteArray();
+	}
+	
+	private static void writeNullableString(DataOutputStream stream, String value) throws IOException {
+		stream.writeBoolean(value != null);
+		if(value != null) stream.writeUTF(value);
+	}
+	
+	private static String readNullableString(DataInputStream stream) throws IOException {
+		if(stream.readBoolean()) return stream.readUTF();
+		else return null;
+	}
+	
+	/**
+	 * The stored data of a single user
+	 */
+	private static class Entry {
+		boolean hasDocument = false;
+		String relayID = null;
+		String installationID = null;
+		List<String> fcmTokenList = null;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,129 @@
+package me.tagavari.airmessageconnect.storage;
+
+import me.tagavari.airmessageconnect.document.DocumentUser;
+import me.tagavari.airmessageconnect.events.StorageEvent;
+import me.tagavari.airmessageconnect.metrics.Counter;
+import me.tagavari.airmessageconnect.metrics.Histogram;
+import me.tagavari.airmessageconnect.metrics.RelayMetrics;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Wraps another storage backend, recording the duration and failures of every operation in the relay's metrics,
+ * and as Flight Recorder events when they are enabled
+ */
+public class MeasuredStorageBackend implements StorageBackend {
+	private static final Operation operationGetDocumentUser = new Operation("get_document_user");
+	private static final Operation operationGetFCMTokens = new Operation("get_fcm_tokens");
+	private static final Operation operationUpdateFCMTokens = new Operation("update_fcm_tokens");
+	private static final Operation operationUpdateRelayInstallationID = new Operation("update_relay_installation_id");
+	private static final Operation operationUpdateRelayID = new Operation("update_relay_id");
+	
+	private final StorageBackend backend;
+	
+	/**
+	 * Creates a new measured storage backend
+	 * @param backend The backend to forward operations to
+	 */
+	public MeasuredStorageBackend(StorageBackend backend) {
+		this.backend = backend;
+	}
+	
+	@Override
+	public DocumentUser getDocumentUser(String userUID) throws ExecutionException, InterruptedException {
+		long startTime = System.nanoTime();
+		StorageEvent event = new StorageEvent();
+		event.begin();
+		try {
+			return backend.getDocumentUser(userUID);
+		} catch(ExecutionException | RuntimeException exception) {
+			operationGetDocumentUser.errors.increment();
+			event.fail();
+			throw exception;
+		} finally {
+			operationGetDocumentUser.duration.observeSince(startTime);
+			event.finish(operationGetDocumentUser.name, userUID);
+		}
+	}
+	
+	@Override
+	public List<String> getFCMTokens(String userUID) throws ExecutionException, InterruptedException {
+		long startTime = System.nanoTime();
+		StorageEvent event = new StorageEvent();
+		event.begin();
+		try {
+			return backend.getFCMTokens(userUID);
+		} catch(ExecutionException | RuntimeException exception) {
+			operationGetFCMTokens.errors.increment();
+			event.fail();
+			throw exception;
+		} finally {
+			operationGetFCMTokens.duration.observeSince(startTime);
+			event.finish(operationGetFCMTokens.name, userUID);
+		}
+	}
+	
+	@Override
+	public void updateFCMTokens(String userUID, List<String> list) throws ExecutionException, InterruptedException {
+		long startTime = System.nanoTime();
+		StorageEvent event = new StorageEvent();
+		event.begin();
+		try {
+			backend.updateFCMTokens(userUID, list);
+		} catch(ExecutionException | RuntimeException exception) {
+			operationUpdateFCMTokens.errors.increment();
+			event.fail();
+			throw exception;
+		} finally {
+			operationUpdateFCMTokens.duration.observeSince(startTime);
+			event.finish(operationUpdateFCMTokens.name, userUID);
+		}
+	}
+	
+	@Override
+	public void updateRegisteredServerRelayInstallationID(String userUID, String relayID, String installationID) throws ExecutionException, InterruptedException {
+		long startTime = System.nanoTime();
+		StorageEvent event = new StorageEvent();
+		event.begin();
+		try {
+			backend.updateRegisteredServerRelayInstallationID(userUID, relayID, installationID);
+		} catch(ExecutionException | RuntimeException exception) {
+			operationUpdateRelayInstallationID.errors.increment();
+			event.fail();
+			throw exception;
+		} finally {
+			operationUpdateRelayInstallationID.duration.observeSince(startTime);
+			event.finish(operationUpdateRelayInstallationID.name, userUID);
+		}
+	}
+	
+	@Override
+	public void updateRegisteredServerRelayID(String userUID, String relayID) throws ExecutionException, InterruptedException {
+		long startTime = System.nanoTime();
+		StorageEvent event = new StorageEvent();
+		event.begin();
+		try {
+			backend.updateRegisteredServerRelayID(userUID, relayID);
+		} catch(ExecutionException | RuntimeException exception) {
+			operationUpdateRelayID.errors.increment();
+			event.fail();
+			throw exception;
+		} finally {
+			operationUpdateRelayID.duration.observeSince(startTime);
+			event.finish(operationUpdateRelayID.name, userUID);
+		}
+	}
+	
+	private static class Operation {
+		final String name;
+		final Histogram duration;
+		final Counter errors;
+		
+		Operation(String name) {
+			this.name = name;
+			duration = RelayMetrics.registry.histogram("relay_storage_duration_seconds", "Time taken by storage operations", "operation", name);
+			errors = RelayMetrics.registry.counter("relay_storage_errors_total", "Storage operations that failed", "operation", name);
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,47 @@
+package me.tagavari.airmessageconnect.storage;
+
+import me.tagavari.airmessageconnect.document.DocumentUser;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Represents a persistent store of user documents and FCM tokens
+ */
+public interface StorageBackend {
+	/**
+	 * Get user information for a particular user
+	 * @param userUID The UID of the user to check
+	 * @return The document containing user information, or NULL if none was found
+	 */
+	DocumentUser getDocumentUser(String userUID) throws ExecutionException, InterruptedException;
+	
+	/**
+	 * Get the list of FCM tokens registered for a particular user
+	 * @param userUID The UID of the user to check
+	 * @return The list of FCM tokens, or NULL if none was found
+	 */
+	List<String> getFCMTokens(String userUID) throws ExecutionException, InterruptedException;
+	
+	/**
+	 * Replace the list of FCM tokens registered for a particular user
+	 * @param userUID The UID of the user to update
+	 * @param list The list of FCM tokens to apply
+	 */
+	void updateFCMTokens(String userUID, List<String> list) throws ExecutionException, InterruptedException;
+	
+	/**
+	 * Update the specified user's relay point ID and active server installation ID
+	 * @param userUID The UID of the user to update
+	 * @param relayID The relay ID to apply
+	 * @param installationID The installation ID to apply
+	 */
+	void updateRegisteredServerRelayInstallationID(String userUID, String relayID, String installationID) throws ExecutionException, InterruptedException;
+	
+	/**
+	 * Update the specified user's relay point ID
+	 * @param userUID The UID of the user to update
+	 * @param relayID The relay ID to apply
+	 */
+	void updateRegisteredServerRelayID(String userUID, String relayID) throws ExecutionException, InterruptedException;
+}
\ No newline at end of file
@@ -4,10 +4,14 @@ import me.tagavari.airmessageconnect.ClientData;
 import me.tagavari.airmessageconnect.Main;
 import me.tagavari.airmessageconnect.SharedData;
 import me.tagavari.airmessageconnect.StorageUtils;
+import me.tagavari.airmessageconnect.events.GroupEvent;
+import me.tagavari.airmessageconnect.metrics.RelayMetrics;
+import me.tagavari.airmessageconnect.snapshot.StateSnapshot;
 import org.java_websocket.WebSocket;
 import org.java_websocket.framing.CloseFrame;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 
@@ -20,6 +24,9 @@ public class ConnectionCollection {
 	
 	private final Map<String, ConnectionGroup> connectionMap = Collections.synchronizedMap(new HashMap<>());
 	
+	//Groups restored from a snapshot, waiting for their servers to reconnect
+	private final Map<String, StateSnapshot.Group> restoredGroupMap = new ConcurrentHashMap<>();
+	
 	/**
 	 * Registers a new server WebSocket with its group
 	 *
@@ -27,23 +34,47 @@ public class ConnectionCollection {
 	 * and will replace an existing one otherwise
 	 * @param connection The server WebSocket connection
 	 * @param groupID The connection's group ID
+	 * @param installationID The server's installation ID, or NULL if unavailable
+	 * @param allowTakeover TRUE to let a server of the same installation take over an existing group with its clients
 	 * @return TRUE if the operation was successful
 	 */
-	public boolean addServer(WebSocket connection, String groupID) {
+	public boolean addServer(WebSocket connection, String groupID, String installationID, boolean allowTakeover) {
 		List<String> fcmTokenList;
 		boolean fcmTokenListModified;
 		
+		GroupEvent event = new GroupEvent();
+		event.begin();
+		
 		//Checking if a group already exists
 		ConnectionGroup existingGroup = connectionMap.get(groupID);
+		
+		//Letting a reconnecting server pick up where it left off
+		if(existingGroup != null && allowTakeover && existingGroup.takeOverServer(connection, installationID)) {
+			connection.<ClientData>getAttachment().setConnectionGroup(existingGroup);
+			RelayMetrics.groupsTakenOver.increment();
+			event.finish(GroupEvent.actionTakenOver, groupID, existingGroup.getCount());
+			return true;
+		}
+		
+		StateSnapshot.Group restoredGroup = existingGroup == null ? restoredGroupMap.remove(groupID) : null;
 		if(existingGroup != null) {
 			//Closing the group
 			existingGroup.closeAll(SharedData.closeCodeOtherLocation);
+			RelayMetrics.groupsReplaced.increment();
 			
-			//Copying the FCM token list from the previous group
+			//Copying the FCM token list from the previous group, which may still be changed by its closing connections
 			fcmTokenList = existingGroup.getClientFCMTokenList();
+			if(fcmTokenList != null) fcmTokenList = new ArrayList<>(fcmTokenList);
 			fcmTokenListModified = existingGroup.isClientFCMTokenListModified();
+		} else if(restoredGroup != null) {
+			//Taking over the FCM token list from the restored group
+			synchronized(restoredGroup) {
+				restoredGroup.setClaimed();
+				fcmTokenList = new ArrayList<>(restoredGroup.getFCMTokenList());
+				fcmTokenListModified = restoredGroup.isModified();
+			}
 		} else {
-			if(!Main.isUnlinked()) {
+			if(StorageUtils.isAvailable()) {
 				//Reading the FCM token list from the database
 				try {
 					List<String> dataFCMTokens = StorageUtils.instance().getFCMTokens(groupID);
@@ -55,6 +86,7 @@ public class ConnectionCollection {
 					
 					//Closing the connection
 					connection.close(CloseFrame.TRY_AGAIN_LATER);
+					event.finish(GroupEvent.actionFailed, groupID, 0);
 					
 					//Returning false
 					return false;
@@ -68,9 +100,11 @@ public class ConnectionCollection {
 		}
 		
 		//Creating a new group
-		ConnectionGroup newGroup = new ConnectionGroup(connection, groupID, fcmTokenList);
+		ConnectionGroup newGroup = new ConnectionGroup(connection, groupID, installationID, fcmTokenList);
 		if(fcmTokenListModified) newGroup.setClientFCMTokenListModified();
 		connectionMap.put(groupID, newGroup);
+		RelayMetrics.groupsCreated.increment();
+		event.finish(existingGroup != null ? GroupEvent.actionReplaced : GroupEvent.actionCreated, groupID, 0);
 		
 		//Setting the connection's group
 		connection.<ClientData>getAttachment().setConnectionGroup(newGroup);
@@ -88,47 +122,133 @@ public class ConnectionCollection {
 	 * @param connection The client WebSocket client
 	 * @param groupID The connection's group ID
 	 * @param fcmToken The client's FCM token (or NULL if none is available)
+	 * @param resumeGroupEpoch The group epoch from the client's resume token, if it has one
+	 * @param resumeConnectionID The connection ID the client would like back, or -1 for a new one
 	 * @return TRUE if the operation was successful
 	 */
-	public boolean addClient(WebSocket connection, String groupID, String fcmToken) {
+	public boolean addClient(WebSocket connection, String groupID, String fcmToken, long resumeGroupEpoch, int resumeConnectionID) {
 		//Getting the group
 		ConnectionGroup group = connectionMap.get(groupID);
 		
 		//Checking if the group was not found
 		if(group == null) {
 			//Closing the connection
-			Main.getLogger().log(Level.FINE, "Rejecting connection (no group - " + groupID + ") from client " + Main.connectionToString(connection));
+			Main.getLogger().log(Level.FINE, () -> "Rejecting connection (no group - " + groupID + ") from client " + Main.connectionToString(connection));
 			connection.close(SharedData.closeCodeNoGroup);
+			RelayMetrics.clientsRejectedNoGroup.increment();
 			return false;
 		}
 		
 		//Checking if the group is at capacity
 		if(group.getCount() >= groupCapacity) {
 			//Closing the connection
-			Main.getLogger().log(Level.FINE, "Rejecting connection (no capacity - " + groupID + ") from client " + Main.connectionToString(connection));
+			Main.getLogger().log(Level.FINE, () -> "Rejecting connection (no capacity - " + groupID + ") from client " + Main.connectionToString(connection));
 			connection.close(SharedData.closeCodeNoCapacity);
+			RelayMetrics.clientsRejectedNoCapacity.increment();
 			return false;
 		}
 		
-		//Generating a new connection ID
-		int connectionID = group.nextConnectionID();
+		//Giving the client its previous connection ID back if it's still held for it, or generating a new one
+		boolean isResumed = resumeConnectionID != -1 && group.resumeClient(resumeGroupEpoch, resumeConnectionID);
+		int connectionID = isResumed ? resumeConnectionID : group.nextConnectionID();
+		
+		//Registering the client's FCM token, and sharing the group's copy of it so that connections from the same device don't each keep their own
+		if(fcmToken != null) fcmToken = group.addClientFCMToken(fcmToken);
 		
 		//Adding the client connection
-		group.addClient(connectionID, connection);
+		group.addClient(connectionID, connection, fcmToken);
 		
 		//Setting the connection's group
 		ClientData clientData = connection.getAttachment();
+		clientData.setResumed(isResumed);
+		if(isResumed) RelayMetrics.clientsResumed.increment();
 		clientData.setConnectionGroup(group);
 		clientData.setConnectionID(connectionID);
 		
-		//Registering the client's FCM token
-		if(fcmToken != null) group.addClientFCMToken(fcmToken);
-		
 		//Operation successful!
 		return true;
 	}
 	
+	/**
+	 * Checks if a group with the specified ID is active on this relay
+	 * @param groupID The ID of the group
+	 * @return TRUE if the group is active
+	 */
+	public boolean hasGroup(String groupID) {
+		return connectionMap.containsKey(groupID);
+	}
+	
+	/**
+	 * Gets the active group with the specified ID
+	 * @param groupID The ID of the group
+	 * @return The group, or NULL if no group with this ID is active
+	 */
+	public ConnectionGroup getGroup(String groupID) {
+		return connectionMap.get(groupID);
+	}
+	
+	/**
+	 * Gets the amount of active groups
+	 * @return The amount of groups
+	 */
+	public int getGroupCount() {
+		return connectionMap.size();
+	}
+	
+	/**
+	 * Gets a copy of all active groups
+	 * @return A list of groups
+	 */
+	public List<ConnectionGroup> getGroups() {
+		synchronized(connectionMap) {
+			return new ArrayList<>(connectionMap.values());
+		}
+	}
+	
 	public void removeGroup(String groupID) {
 		connectionMap.remove(groupID);
 	}
+	
+	/**
+	 * Unregisters a group, if it hasn't been replaced already
+	 * @param group The group to unregister
+	 */
+	public void removeGroup(ConnectionGroup group) {
+		GroupEvent event = new GroupEvent();
+		event.begin();
+		if(connectionMap.remove(group.getGroupID(), group)) event.finish(GroupEvent.actionClosed, group.getGroupID(), group.getCount());
+	}
+	
+	/**
+	 * Captures the state of all active groups
+	 * @return A list of group states
+	 */
+	public List<StateSnapshot.Group> getGroupStates() {
+		List<StateSnapshot.Group> list = new ArrayList<>();
+		synchronized(connectionMap) {
+			for(ConnectionGroup group : connectionMap.values()) {
+				list.add(new StateSnapshot.Group(group.getGroupID(), new ArrayList<>(group.getClientFCMTokenList()), group.isClientFCMTokenListModified()));
+			}
+		}
+		return list;
+	}
+	
+	/**
+	 * Registers groups restored from a snapshot, so that their servers
+	 * can pick up where they left off without reading from storage
+	 * @param groups The groups to restore
+	 */
+	public void restoreGroups(Collection<StateSnapshot.Group> groups) {
+		for(StateSnapshot.Group group : groups) restoredGroupMap.put(group.getGroupID(), group);
+	}
+	
+	/**
+	 * Discards all restored groups that haven't been claimed by a server
+	 * @return The amount of groups discarded
+	 */
+	public int clearRestoredGroups() {
+		int count = restoredGroupMap.size();
+		restoredGroupMap.clear();
+		return count;
+	}
 }
\ No newline at end of file
@@ -1,9 +1,16 @@
 package me.tagavari.airmessageconnect.structure;
 
 import me.tagavari.airmessageconnect.ClientData;
+import me.tagavari.airmessageconnect.SharedData;
+import me.tagavari.airmessageconnect.communicate.Protocol;
+import me.tagavari.airmessageconnect.metrics.MessageTrace;
 import org.java_websocket.WebSocket;
 
+import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Represents a group of connections centered around a single server with any number of clients
@@ -11,9 +18,18 @@ import java.util.*;
 public class ConnectionGroup {
 	private static final int fcmTokenListLimit = 8;
 	
+	//The longest FCM token accepted from a client, in bytes, which leaves real tokens plenty of room while keeping them storable
+	public static final int fcmTokenLengthLimit = 4096;
+	
+	private static final ClientSlot[] noClientSlots = new ClientSlot[0];
+	
+	private static final SecureRandom epochRandom = new SecureRandom();
+	
 	//Server and client connections
-	private final WebSocket serverConnection;
-	private final Map<Integer, WebSocket> clientConnections = Collections.synchronizedMap(new HashMap<>());
+	//Groups only have a few clients, so they are kept in an array that is replaced whenever a client is added or removed,
+	//which takes less memory than a map and can be read without locking
+	private volatile WebSocket serverConnection;
+	private volatile ClientSlot[] clientSlots = noClientSlots;
 	
 	//The list of FCM tokens for this account
 	private final List<String> clientFCMTokenList;
@@ -22,16 +38,43 @@ public class ConnectionGroup {
 	//The group ID of this connection group
 	private final String groupID;
 	
+	//The installation ID of the server, used to let a reconnecting server take over this group
+	private final String installationID;
+	
+	//Set while the server is disconnected and the group is waiting for it to reconnect,
+	//or while a reconnected server is being caught up
+	private boolean isServerAway = false;
+	private boolean isServerResuming = false;
+	private boolean isClosed = false;
+	
+	//Messages from clients to the server, held while the server is away, or NULL if there are none
+	private Deque<PendingServerMessage> pendingServerMessages = null;
+	private int pendingServerBytes = 0;
+	private int pendingServerByteLimit;
+	private ScheduledExecutorService graceExecutor;
+	private ScheduledFuture<?> graceFuture;
+	private Runnable graceExpiredTask;
+	
+	//Connection IDs of clients that disconnected with a resume token, held until they reconnect or their window runs out,
+	//or NULL if none have been held yet
+	private Map<Integer, ScheduledFuture<?>> heldConnectionIDs = null;
+	
 	//Used to assign IDs to clients
 	private int connectionID = 0;
 	
+	//Identifies this instance of the group in resume tokens, so that a token issued before the group was recreated
+	//can't claim a connection ID that this instance has given to another client
+	private final long epoch = epochRandom.nextLong();
+	
 	/**
 	 * Creates a new ConnectionGroup
 	 * @param serverConnection The server WebSocket connection
 	 * @param groupID The ID of this connection group
+	 * @param installationID The installation ID of the server, or NULL if unavailable
 	 */
-	public ConnectionGroup(WebSocket serverConnection, String groupID, List<String> clientFCMTokenList) {
+	public ConnectionGroup(WebSocket serverConnection, String groupID, String installationID, List<String> clientFCMTokenList) {
 		this.groupID = groupID;
+		this.installationID = installationID;
 		this.serverConnection = serverConnection;
 		if(clientFCMTokenList != null) this.clientFCMTokenList = clientFCMTokenList;
 		else this.clientFCMTokenList = new ArrayList<>(fcmTokenListLimit);
@@ -52,20 +95,27 @@ public class ConnectionGroup {
 	 * @param code The closing code
 	 */
 	public void closeClient(int connectionID, int code) {
-		WebSocket connection = clientConnections.remove(connectionID);
-		if(connection != null) connection.close(code);
+		ClientSlot slot = removeClientSlot(connectionID);
+		if(slot != null) slot.connection.close(code);
 	}
 	
 	/**
 	 * Closes all connections related to this group, rendering this group useless
 	 */
 	public void closeAll(int code) {
+		//Giving up on the server reconnecting
+		ClientSlot[] slots;
+		synchronized(this) {
+			endServerGrace();
+			slots = clientSlots;
+			clientSlots = noClientSlots;
+		}
+		
 		//Closing existing connections
-		for(WebSocket clientConnection : clientConnections.values()) {
-			clientConnection.<ClientData>getAttachment().setDisableCleanup(true);
-			clientConnection.close(code);
+		for(ClientSlot slot : slots) {
+			slot.connection.<ClientData>getAttachment().setDisableCleanup(true);
+			slot.connection.close(code);
 		}
-		clientConnections.clear();
 		
 		//Closing the server connection
 		serverConnection.<ClientData>getAttachment().setDisableCleanup(true);
@@ -77,16 +127,31 @@ public class ConnectionGroup {
 	 * @return The number of active client connections
 	 */
 	public int getCount() {
-		return clientConnections.size();
+		return clientSlots.length;
 	}
 	
 	/**
 	 * Registers a new client connection
 	 * @param connectionID The connection ID of this client
 	 * @param connection The connection to register
+	 * @param fcmToken The FCM token of this client, or NULL if none is available
 	 */
-	public void addClient(int connectionID, WebSocket connection) {
-		clientConnections.put(connectionID, connection);
+	public synchronized void addClient(int connectionID, WebSocket connection, String fcmToken) {
+		ClientSlot[] slots = clientSlots;
+		
+		//Replacing the client with the same connection ID, if there is one
+		for(int i = 0; i < slots.length; i++) {
+			if(slots[i].connectionID == connectionID) {
+				ClientSlot[] newSlots = slots.clone();
+				newSlots[i] = new ClientSlot(connectionID, connection, fcmToken);
+				clientSlots = newSlots;
+				return;
+			}
+		}
+		
+		ClientSlot[] newSlots = Arrays.copyOf(slots, slots.length + 1);
+		newSlots[slots.length] = new ClientSlot(connectionID, connection, fcmToken);
+		clientSlots = newSlots;
 	}
 	
 	/**
@@ -94,7 +159,26 @@ public class ConnectionGroup {
 	 * @param connectionID The connection ID of the client to unregister
 	 */
 	public void removeClient(int connectionID) {
-		clientConnections.remove(connectionID);
+		removeClientSlot(connectionID);
+	}
+	
+	private synchronized ClientSlot removeClientSlot(int connectionID) {
+		ClientSlot[] slots = clientSlots;
+		for(int i = 0; i < slots.length; i++) {
+			if(slots[i].connectionID != connectionID) continue;
+			
+			if(slots.length == 1) {
+				clientSlots = noClientSlots;
+			} else {
+				ClientSlot[] newSlots = new ClientSlot[slots.length - 1];
+				System.arraycopy(slots, 0, newSlots, 0, i);
+				System.arraycopy(slots, i + 1, newSlots, i, slots.length - i - 1);
+				clientSlots = newSlots;
+			}
+			return slots[i];
+		}
+		
+		return null;
 	}
 	
 	/**
@@ -105,13 +189,224 @@ public class ConnectionGroup {
 		return serverConnection;
 	}
 	
+	/**
+	 * Gets the installation ID of this group's server
+	 * @return The installation ID, or NULL if unavailable
+	 */
+	public String getInstallationID() {
+		return installationID;
+	}
+	
+	/**
+	 * Keeps this group and its clients alive after the server disconnects, holding messages for the server
+	 * until it reconnects, or until the grace period runs out
+	 * @param executor The executor to schedule the end of the grace period on
+	 * @param gracePeriod How long to wait for the server to reconnect, in milliseconds
+	 * @param byteLimit The maximum amount of message data to hold for the server
+	 * @param expiredTask The task to run if the server doesn't reconnect in time, or too much data is held
+	 */
+	public synchronized void startServerGrace(ScheduledExecutorService executor, long gracePeriod, int byteLimit, Runnable expiredTask) {
+		isServerAway = true;
+		pendingServerByteLimit = byteLimit;
+		graceExecutor = executor;
+		graceExpiredTask = expiredTask;
+		graceFuture = executor.schedule(this::expireServerGrace, gracePeriod, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Runs the expiry task if the server is still away
+	 */
+	private void expireServerGrace() {
+		Runnable task;
+		synchronized(this) {
+			if(!isServerAway) return;
+			task = graceExpiredTask;
+			endServerGrace();
+		}
+		
+		task.run();
+	}
+	
+	private void endServerGrace() {
+		isClosed = true;
+		if(heldConnectionIDs != null) {
+			for(ScheduledFuture<?> future : heldConnectionIDs.values()) future.cancel(false);
+			heldConnectionIDs = null;
+		}
+		if(graceFuture != null) graceFuture.cancel(false);
+		graceFuture = null;
+		graceExpiredTask = null;
+		isServerAway = false;
+		pendingServerMessages = null;
+		pendingServerBytes = 0;
+	}
+	
+	/**
+	 * Checks if this group's server is disconnected, and the group is waiting for it to reconnect
+	 * @return TRUE if the server is away
+	 */
+	public synchronized boolean isServerAway() {
+		return isServerAway;
+	}
+	
+	/**
+	 * Hands this group over to a reconnecting server of the same installation
+	 * The new server must be caught up with {@link #resumeServer()} once it's told that its connection is ready
+	 * @param connection The new server connection
+	 * @param installationID The installation ID of the new server
+	 * @return TRUE if the server took over this group, or FALSE if the installation doesn't match
+	 */
+	public synchronized boolean takeOverServer(WebSocket connection, String installationID) {
+		if(isClosed || installationID == null || !installationID.equals(this.installationID)) return false;
+		
+		//Cancelling the grace period, but keeping held messages
+		if(graceFuture != null) graceFuture.cancel(false);
+		graceFuture = null;
+		graceExpiredTask = null;
+		isServerAway = false;
+		isServerResuming = true;
+		
+		//Disconnecting the previous server if it's still around
+		WebSocket previousConnection = serverConnection;
+		serverConnection = connection;
+		if(!previousConnection.isClosed()) {
+			previousConnection.<ClientData>getAttachment().setDisableCleanup(true);
+			previousConnection.close(SharedData.closeCodeOtherLocation);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Catches a server that took over this group up on its connected clients and held messages
+	 */
+	public synchronized void resumeServer() {
+		if(!isServerResuming) return;
+		isServerResuming = false;
+		
+		Protocol protocol = serverConnection.<ClientData>getAttachment().getProtocol();
+		for(ClientSlot slot : clientSlots) {
+			protocol.send(serverConnection, protocol.sendServerConnection(slot.connectionID));
+		}
+		if(heldConnectionIDs != null) {
+			for(int connectionID : heldConnectionIDs.keySet()) {
+				protocol.send(serverConnection, protocol.sendServerConnection(connectionID));
+			}
+		}
+		
+		if(pendingServerMessages != null) {
+			for(PendingServerMessage message : pendingServerMessages) {
+				if(findClientSlot(message.connectionID) != null) {
+					protocol.send(serverConnection, protocol.sendServerProxy(message.connectionID, message.data));
+				}
+			}
+			pendingServerMessages = null;
+		}
+		pendingServerBytes = 0;
+	}
+	
+	/**
+	 * Sends a message from a client to the server, or holds it while the server is away
+	 * @param connectionID The connection ID of the sending client
+	 * @param data The message data
+	 * @param trace The trace of the message, or NULL if it isn't traced
+	 */
+	public synchronized void sendServerProxy(int connectionID, byte[] data, MessageTrace trace) {
+		if(isServerAway || isServerResuming) {
+			if(pendingServerMessages == null) pendingServerMessages = new ArrayDeque<>();
+			pendingServerMessages.add(new PendingServerMessage(connectionID, data));
+			pendingServerBytes += data.length;
+			
+			//Giving up on the server if too much data is piling up
+			if(isServerAway && pendingServerBytes > pendingServerByteLimit) {
+				graceFuture.cancel(false);
+				graceExecutor.execute(this::expireServerGrace);
+			}
+			return;
+		}
+		
+		if(trace != null) trace.startEncode();
+		Protocol protocol = serverConnection.<ClientData>getAttachment().getProtocol();
+		byte[] message = protocol.sendServerProxy(connectionID, data);
+		if(trace != null) trace.endEncode();
+		
+		protocol.send(serverConnection, message);
+		if(trace != null) {
+			trace.trackWrite(serverConnection);
+			trace.finishSending();
+		}
+	}
+	
+	/**
+	 * Notifies the server about the connection of a client
+	 * While the server is away, the client is instead announced once the server takes over
+	 * @param connectionID The client's connection ID
+	 */
+	public synchronized void notifyServerConnection(int connectionID) {
+		if(isServerAway || isServerResuming) return;
+		Protocol protocol = serverConnection.<ClientData>getAttachment().getProtocol();
+		protocol.send(serverConnection, protocol.sendServerConnection(connectionID));
+	}
+	
+	/**
+	 * Holds the connection ID of a disconnected client, so that it can get it back with its resume token
+	 * The server is only told about the disconnection if the client doesn't come back in time
+	 * @param connectionID The client's connection ID
+	 * @param executor The executor to schedule the end of the window on
+	 * @param window How long to hold the connection ID for, in milliseconds
+	 */
+	public synchronized void holdClient(int connectionID, ScheduledExecutorService executor, long window) {
+		if(isClosed) return;
+		if(heldConnectionIDs == null) heldConnectionIDs = new HashMap<>(4);
+		heldConnectionIDs.put(connectionID, executor.schedule(() -> {
+			synchronized(this) {
+				if(heldConnectionIDs == null || heldConnectionIDs.remove(connectionID) == null) return;
+				notifyServerDisconnection(connectionID);
+			}
+		}, window, TimeUnit.MILLISECONDS));
+	}
+	
+	/**
+	 * Gives a reconnecting client its held connection ID back
+	 * @param epoch The group epoch from the client's resume token
+	 * @param connectionID The connection ID from the client's resume token
+	 * @return TRUE if the connection ID was held for the client, or FALSE if it should get a new one
+	 */
+	public synchronized boolean resumeClient(long epoch, int connectionID) {
+		if(epoch != this.epoch || heldConnectionIDs == null) return false;
+		ScheduledFuture<?> future = heldConnectionIDs.remove(connectionID);
+		if(future == null) return false;
+		
+		future.cancel(false);
+		return true;
+	}
+	
+	/**
+	 * Notifies the server about the disconnection of a client
+	 * While the server is away, the client is instead left out once the server takes over
+	 * @param connectionID The client's connection ID
+	 */
+	public synchronized void notifyServerDisconnection(int connectionID) {
+		if(isServerAway || isServerResuming) return;
+		Protocol protocol = serverConnection.<ClientData>getAttachment().getProtocol();
+		protocol.send(serverConnection, protocol.sendServerDisconnection(connectionID));
+	}
+	
 	/**
 	 * Gets the specified client connection
 	 * @param connectionID The connection ID of the client
 	 * @return The client connection, or NULL if none is available
 	 */
 	public WebSocket getConnectionClient(int connectionID) {
-		return clientConnections.get(connectionID);
+		ClientSlot slot = findClientSlot(connectionID);
+		return slot != null ? slot.connection : null;
+	}
+	
+	private ClientSlot findClientSlot(int connectionID) {
+		for(ClientSlot slot : clientSlots) {
+			if(slot.connectionID == connectionID) return slot;
+		}
+		return null;
 	}
 	
 	/**
@@ -119,17 +414,28 @@ public class ConnectionGroup {
 	 * @return A collection of all currently connected clients
 	 */
 	public Collection<WebSocket> getAllConnectionsClient() {
-		return clientConnections.values();
+		ClientSlot[] slots = clientSlots;
+		List<WebSocket> list = new ArrayList<>(slots.length);
+		for(ClientSlot slot : slots) list.add(slot.connection);
+		return list;
 	}
 	
 	/**
 	 * Returns an integer representing a value that is safe to use to identify connections
 	 * @return The ID
 	 */
-	public int nextConnectionID() {
+	public synchronized int nextConnectionID() {
 		return ++connectionID;
 	}
 	
+	/**
+	 * Gets the random value that identifies this instance of the group in resume tokens
+	 * @return The group epoch
+	 */
+	public long getEpoch() {
+		return epoch;
+	}
+	
 	/**
 	 * Returns a list representing the FCM tokens of all registered clients
 	 * @return The list
@@ -138,21 +444,45 @@ public class ConnectionGroup {
 		return clientFCMTokenList;
 	}
 	
+	/**
+	 * Returns a copy of the list of FCM tokens, safe to use from other threads
+	 * @return The copied list
+	 */
+	public synchronized List<String> copyClientFCMTokenList() {
+		return new ArrayList<>(clientFCMTokenList);
+	}
+	
+	/**
+	 * Returns a copy of the list of FCM tokens, leaving out tokens of clients that are currently connected
+	 * These clients already receive messages over their connection, and don't need to be woken up
+	 * @return The copied list
+	 */
+	public List<String> copyOfflineClientFCMTokenList() {
+		List<String> list = copyClientFCMTokenList();
+		for(ClientSlot slot : clientSlots) {
+			if(slot.fcmToken != null) list.remove(slot.fcmToken);
+		}
+		return list;
+	}
+	
 	/**
 	 * Add a client FCM token to this group
 	 * This function is safe to call at any time -
 	 * if the token is already in the list, it will be brought to the top
 	 * if the token is not in the list, it will be added to the top, discarding the oldest item
 	 * @param token The token to add
+	 * @return The instance of the token kept by this group, which callers can hold on to instead of their own copy
 	 */
-	public void addClientFCMToken(String token) {
+	public synchronized String addClientFCMToken(String token) {
 		//Checking if the token already exists in the list
 		int index = clientFCMTokenList.indexOf(token);
 		if(index != -1) {
+			token = clientFCMTokenList.get(index);
+			
 			//Checking if the token isn't first in the list
 			if(index != 0) {
 				//Moving the token to the top of the list
-				clientFCMTokenList.remove(token);
+				clientFCMTokenList.remove(index);
 				clientFCMTokenList.add(0, token);
 				setClientFCMTokenListModified();
 			}
@@ -167,17 +497,61 @@ public class ConnectionGroup {
 			clientFCMTokenList.add(0, token);
 			setClientFCMTokenListModified();
 		}
+		
+		return token;
 	}
 	
 	/**
 	 * Remove a client FCM token to this group
 	 * @param token The token to remove
 	 */
-	public void removeClientFCMToken(String token) {
+	public synchronized void removeClientFCMToken(String token) {
 		boolean containedToken = clientFCMTokenList.remove(token);
 		if(containedToken) setClientFCMTokenListModified();
 	}
 	
+	/**
+	 * Add a client FCM token to this group on behalf of a connected client,
+	 * and use it as that client's token so that the client isn't sent push notifications while it's connected
+	 * @param connectionID The connection ID of the client that registered the token
+	 * @param token The token to add
+	 */
+	public synchronized void addClientFCMToken(int connectionID, String token) {
+		token = addClientFCMToken(token);
+		setClientSlotFCMToken(connectionID, token);
+	}
+	
+	/**
+	 * Remove a client FCM token from this group on behalf of a connected client,
+	 * clearing that client's token if it was the one removed
+	 * @param connectionID The connection ID of the client that removed the token
+	 * @param token The token to remove
+	 */
+	public synchronized void removeClientFCMToken(int connectionID, String token) {
+		removeClientFCMToken(token);
+		for(ClientSlot slot : clientSlots) {
+			if(slot.connectionID == connectionID && token.equals(slot.fcmToken)) {
+				setClientSlotFCMToken(connectionID, null);
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Replaces the slot of a connected client with one that has a different FCM token
+	 */
+	private void setClientSlotFCMToken(int connectionID, String fcmToken) {
+		ClientSlot[] slots = clientSlots;
+		for(int i = 0; i < slots.length; i++) {
+			if(slots[i].connectionID != connectionID) continue;
+			
+			ClientSlot[] newSlots = slots.clone();
+			newSlots[i] = new ClientSlot(connectionID, slots[i].connection, fcmToken);
+			clientSlots = newSlots;
+			return;
+		}
+	}
+	
 	/**
 	 * Called to check if the FCM token list has been modified
 	 * since it was loaded into this connection group
@@ -194,4 +568,26 @@ public class ConnectionGroup {
 	public void setClientFCMTokenListModified() {
 		isClientFCMTokenListModified = true;
 	}
+	
+	private static class ClientSlot {
+		final int connectionID;
+		final WebSocket connection;
+		final String fcmToken;
+		
+		ClientSlot(int connectionID, WebSocket connection, String fcmToken) {
+			this.connectionID = connectionID;
+			this.connection = connection;
+			this.fcmToken = fcmToken;
+		}
+	}
+	
+	private static class PendingServerMessage {
+		final int connectionID;
+		final byte[] data;
+		
+		PendingServerMessage(int connectionID, byte[] data) {
+			this.connectionID = connectionID;
+			this.data = data;
+		}
+	}
 }
\ No newline at end of file
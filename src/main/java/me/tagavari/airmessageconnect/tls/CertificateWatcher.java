@@ -0,0 +1,108 @@
+package me.tagavari.airmessageconnect.tls;
+
+import me.tagavari.airmessageconnect.Main;
+import me.tagavari.airmessageconnect.SecurityUtils;
+import me.tagavari.airmessageconnect.metrics.Counter;
+import me.tagavari.airmessageconnect.metrics.RelayMetrics;
+
+import javax.net.ssl.SSLContext;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.logging.Level;
+
+/**
+ * Checks the certificate file for changes in the background, and swaps a renewed certificate in for new connections
+ *
+ * The file's contents are compared rather than its modification time, so that certificates replaced through a symbolic link are picked up too.
+ * A certificate that fails to load is left alone until the file changes again, and the current certificate stays in use.
+ */
+public class CertificateWatcher extends Thread {
+	private static final Counter reloadsSucceeded = RelayMetrics.registry.counter("relay_certificate_reloads_total", "Certificate reloads after the certificate file changed, by result", "result", "success");
+	private static final Counter reloadsFailed = RelayMetrics.registry.counter("relay_certificate_reloads_total", "Certificate reloads after the certificate file changed, by result", "result", "failure");
+	
+	private final File file;
+	private final long interval;
+	private final TLSServerFactory serverFactory;
+	
+	//The contents of the file when it was last loaded
+	private byte[] fileData;
+	private boolean isReadFailing = false;
+	private volatile long loadTime = System.currentTimeMillis();
+	
+	/**
+	 * Creates a new certificate watcher
+	 * @param file The certificate file, which should already be loaded into the server factory
+	 * @param interval How often to check the file for changes in milliseconds
+	 * @param serverFactory The server factory to swap reloaded certificates into
+	 */
+	public CertificateWatcher(File file, long interval, TLSServerFactory serverFactory) {
+		super("CertificateWatcher");
+		setDaemon(true);
+		
+		this.file = file;
+		this.interval = interval;
+		this.serverFactory = serverFactory;
+		
+		try {
+			fileData = Files.readAllBytes(file.toPath());
+		} catch(IOException exception) {
+			fileData = null;
+		}
+		
+		RelayMetrics.registry.gauge("relay_certificate_loaded_timestamp_seconds", "When the certificate in use was loaded", () -> loadTime / 1000);
+	}
+	
+	@Override
+	public void run() {
+		while(true) {
+			try {
+				Thread.sleep(interval);
+			} catch(InterruptedException exception) {
+				return;
+			}
+			
+			checkCertificate();
+		}
+	}
+	
+	/**
+	 * Reloads the certificate if the file has changed
+	 */
+	private void checkCertificate() {
+		byte[] newFileData;
+		try {
+			newFileData = Files.readAllBytes(file.toPath());
+		} catch(IOException exception) {
+			//Only logging the first failure, since the file may be missing for a while as it's replaced
+			if(!isReadFailing) {
+				isReadFailing = true;
+				Main.getLogger().log(Level.WARNING, "Failed to read certificate file " + file.getPath() + " - keeping the current certificate: " + exception.getMessage());
+			}
+			return;
+		}
+		isReadFailing = false;
+		
+		if(Arrays.equals(newFileData, fileData)) return;
+		fileData = newFileData;
+		
+		SSLContext sslContext;
+		try {
+			sslContext = SecurityUtils.loadPEM(file);
+		} catch(RuntimeException exception) {
+			Main.getLogger().log(Level.SEVERE, exception.getMessage(), exception);
+			sslContext = null;
+		}
+		if(sslContext == null) {
+			reloadsFailed.increment();
+			Main.getLogger().log(Level.SEVERE, "Failed to reload certificate from " + file.getPath() + " - keeping the current certificate");
+			return;
+		}
+		
+		serverFactory.setSSLContext(sslContext);
+		loadTime = System.currentTimeMillis();
+		reloadsSucceeded.increment();
+		Main.getLogger().log(Level.INFO, "Reloaded certificate from " + file.getPath() + " - new connections will use it");
+	}
+}
\ No newline at end of file
@@ -0,0 +1,85 @@
+package me.tagavari.airmessageconnect.tls;
+
+import me.tagavari.airmessageconnect.metrics.Counter;
+import me.tagavari.airmessageconnect.metrics.Histogram;
+import me.tagavari.airmessageconnect.metrics.RelayMetrics;
+import org.java_websocket.SSLSocketChannel2;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A TLS connection that records whether its handshake resumed a session, and how much CPU time the handshake's delegated work took
+ */
+class MeasuredSSLSocketChannel extends SSLSocketChannel2 {
+	private static final Histogram fullHandshakeTime = RelayMetrics.registry.fineHistogram("relay_tls_handshake_cpu_seconds", "CPU time spent on the delegated work of TLS handshakes, by session", "session", "full");
+	private static final Histogram resumedHandshakeTime = RelayMetrics.registry.fineHistogram("relay_tls_handshake_cpu_seconds", "CPU time spent on the delegated work of TLS handshakes, by session", "session", "resumed");
+	private static final Counter tls13Handshakes = RelayMetrics.registry.counter("relay_tls_protocol_handshakes_total", "Completed TLS handshakes, by protocol", "protocol", "TLSv1.3");
+	private static final Counter tls12Handshakes = RelayMetrics.registry.counter("relay_tls_protocol_handshakes_total", "Completed TLS handshakes, by protocol", "protocol", "TLSv1.2");
+	private static final Counter otherHandshakes = RelayMetrics.registry.counter("relay_tls_protocol_handshakes_total", "Completed TLS handshakes, by protocol", "protocol", "other");
+	
+	//Falling back to wall time where the JVM can't measure the CPU time of a thread
+	private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+	private static final boolean isCPUTimeSupported = threadMXBean.isCurrentThreadCpuTimeSupported() && threadMXBean.isThreadCpuTimeEnabled();
+	
+	private static final AtomicLongFieldUpdater<MeasuredSSLSocketChannel> taskTimeUpdater = AtomicLongFieldUpdater.newUpdater(MeasuredSSLSocketChannel.class, "taskTime");
+	
+	//These fields are used while the superclass constructor starts the handshake, so they're left without initializers
+	private volatile long taskTime;
+	private boolean isConstructed;
+	private boolean isHandshakeRecorded;
+	
+	//The time the connection was accepted, in milliseconds since the epoch
+	private final long startTime;
+	
+	MeasuredSSLSocketChannel(SocketChannel channel, SSLEngine sslEngine, ExecutorService exec, SelectionKey key, long startTime) throws IOException {
+		super(channel, sslEngine, exec, key);
+		this.startTime = startTime;
+		isConstructed = true;
+	}
+	
+	@Override
+	protected void consumeDelegatedTasks() {
+		Runnable task;
+		while((task = sslEngine.getDelegatedTask()) != null) {
+			Runnable delegatedTask = task;
+			tasks.add(exec.submit(() -> {
+				long taskStartTime = getThreadTime();
+				try {
+					delegatedTask.run();
+				} finally {
+					taskTimeUpdater.addAndGet(this, getThreadTime() - taskStartTime);
+				}
+			}));
+		}
+	}
+	
+	@Override
+	protected void createBuffers(SSLSession session) {
+		super.createBuffers(session);
+		
+		//Buffers are also created when the connection is constructed, before the handshake has happened
+		if(!isConstructed || isHandshakeRecorded) return;
+		isHandshakeRecorded = true;
+		
+		//A resumed session keeps the creation time of the handshake that first established it
+		if(session.getCreationTime() < startTime) resumedHandshakeTime.observe(taskTime);
+		else fullHandshakeTime.observe(taskTime);
+		
+		String protocol = session.getProtocol();
+		if("TLSv1.3".equals(protocol)) tls13Handshakes.increment();
+		else if("TLSv1.2".equals(protocol)) tls12Handshakes.increment();
+		else otherHandshakes.increment();
+	}
+	
+	private static long getThreadTime() {
+		return isCPUTimeSupported ? threadMXBean.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+}
\ No newline at end of file
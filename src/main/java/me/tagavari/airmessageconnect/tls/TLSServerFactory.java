@@ -0,0 +1,95 @@
+package me.tagavari.airmessageconnect.tls;
+
+import org.java_websocket.server.DefaultSSLWebSocketServerFactory;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import java.io.IOException;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Wraps connections in TLS, measuring every handshake
+ *
+ * Handshake work that JSSE delegates, which is where certificates are signed and keys are agreed on,
+ * runs on a pool of threads rather than the single thread the library would otherwise use,
+ * so that a wave of reconnecting clients doesn't queue up behind one core.
+ */
+public class TLSServerFactory extends DefaultSSLWebSocketServerFactory {
+	private static final AtomicInteger threadCount = new AtomicInteger();
+	
+	private final String[] protocols;
+	private final int sessionCacheSize;
+	private final int sessionTimeout;
+	
+	//The context that new connections are created with, which can be swapped while the server is running
+	private volatile SSLContext sslContext;
+	
+	/**
+	 * Creates a new TLS server factory
+	 * @param sslContext The SSL context to create connections with
+	 * @param protocols The TLS versions to accept, in order of preference
+	 * @param sessionCacheSize The maximum amount of sessions to keep for resumption, or 0 for no limit
+	 * @param sessionTimeout How long sessions can be resumed for in seconds, or 0 for no limit
+	 * @param handshakeThreads The amount of threads to run handshake work on
+	 * @throws IllegalArgumentException If none of the protocols are supported
+	 */
+	public TLSServerFactory(SSLContext sslContext, String[] protocols, int sessionCacheSize, int sessionTimeout, int handshakeThreads) {
+		super(sslContext, Executors.newFixedThreadPool(handshakeThreads, runnable -> {
+			Thread thread = new Thread(runnable, "TLSHandshake-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}));
+		
+		//Leaving out protocols that this runtime doesn't support
+		List<String> supportedProtocols = Arrays.asList(sslContext.getSupportedSSLParameters().getProtocols());
+		this.protocols = Arrays.stream(protocols).filter(supportedProtocols::contains).toArray(String[]::new);
+		if(this.protocols.length == 0) throw new IllegalArgumentException("None of the protocols " + String.join(", ", protocols) + " are supported");
+		
+		this.sessionCacheSize = sessionCacheSize;
+		this.sessionTimeout = sessionTimeout;
+		configureSessions(sslContext);
+		this.sslContext = sslContext;
+	}
+	
+	/**
+	 * Replaces the SSL context that new connections are created with, such as after the certificate is renewed
+	 * Existing connections keep using the context they were created with
+	 * @param sslContext The new SSL context
+	 */
+	public void setSSLContext(SSLContext sslContext) {
+		configureSessions(sslContext);
+		this.sslContext = sslContext;
+	}
+	
+	/**
+	 * Gets the TLS versions that connections are accepted with
+	 */
+	public String[] getProtocols() {
+		return protocols.clone();
+	}
+	
+	/**
+	 * Applies the session limits to an SSL context
+	 */
+	private void configureSessions(SSLContext sslContext) {
+		SSLSessionContext sessionContext = sslContext.getServerSessionContext();
+		sessionContext.setSessionCacheSize(sessionCacheSize);
+		sessionContext.setSessionTimeout(sessionTimeout);
+	}
+	
+	@Override
+	public ByteChannel wrapChannel(SocketChannel channel, SelectionKey key) throws IOException {
+		long startTime = System.currentTimeMillis();
+		SSLEngine engine = sslContext.createSSLEngine();
+		engine.setEnabledProtocols(protocols);
+		engine.setUseClientMode(false);
+		return new MeasuredSSLSocketChannel(channel, engine, exec, key, startTime);
+	}
+}
\ No newline at end of file
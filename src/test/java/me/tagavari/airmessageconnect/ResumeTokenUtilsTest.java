@@ -0,0 +1,128 @@
+package me.tagavari.airmessageconnect;
+
+import me.tagavari.airmessageconnect.structure.ConnectionGroup;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.*;
+
+public class ResumeTokenUtilsTest {
+	private static final byte[] secret = "0123456789abcdef0123456789abcdef".getBytes();
+	private static final long tokenLifetime = 60 * 1000;
+	private static final long connectionWindow = 60 * 1000;
+	
+	private ScheduledExecutorService executor;
+	
+	@Before
+	public void setUp() {
+		ResumeTokenUtils.initialize(secret, tokenLifetime, connectionWindow);
+		executor = Executors.newSingleThreadScheduledExecutor();
+	}
+	
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+	
+	@Test
+	public void testVerifiesIssuedToken() {
+		ResumeTokenUtils.ResumeToken token = ResumeTokenUtils.verify(ResumeTokenUtils.issue("group", 1234, 5));
+		assertNotNull(token);
+		assertEquals("group", token.getGroupID());
+		assertEquals(1234, token.getGroupEpoch());
+		assertEquals(5, token.getConnectionID());
+	}
+	
+	@Test
+	public void testRejectsChangedPayload() {
+		String[] parts = ResumeTokenUtils.issue("group", 1234, 5).split("\\.");
+		byte[] payload = decode(parts[0]);
+		
+		//Changing the last byte of the connection ID
+		payload[1 + Long.BYTES * 2 + Integer.BYTES - 1] ^= 1;
+		assertNull(ResumeTokenUtils.verify(encode(payload) + "." + parts[1]));
+	}
+	
+	@Test
+	public void testRejectsChangedSignature() {
+		String[] parts = ResumeTokenUtils.issue("group", 1234, 5).split("\\.");
+		byte[] signature = decode(parts[1]);
+		signature[0] ^= 1;
+		assertNull(ResumeTokenUtils.verify(parts[0] + "." + encode(signature)));
+	}
+	
+	@Test
+	public void testRejectsTokenFromOtherSecret() {
+		String token = ResumeTokenUtils.issue("group", 1234, 5);
+		ResumeTokenUtils.initialize("fedcba9876543210fedcba9876543210".getBytes(), tokenLifetime, connectionWindow);
+		assertNull(ResumeTokenUtils.verify(token));
+	}
+	
+	@Test
+	public void testRejectsExpiredToken() {
+		ResumeTokenUtils.initialize(secret, -1, connectionWindow);
+		assertNull(ResumeTokenUtils.verify(ResumeTokenUtils.issue("group", 1234, 5)));
+	}
+	
+	@Test
+	public void testRejectsWrongVersion() {
+		byte[] payload = decode(ResumeTokenUtils.issue("group", 1234, 5).split("\\.")[0]);
+		
+		//Signing the changed payload properly, so that only the version is wrong
+		payload[0] = 2;
+		assertNull(ResumeTokenUtils.verify(encode(payload) + "." + encode(sign(payload))));
+	}
+	
+	@Test
+	public void testRejectsMalformedToken() {
+		assertNull(ResumeTokenUtils.verify("no-separator"));
+		assertNull(ResumeTokenUtils.verify("not base64!.also not base64!"));
+		assertNull(ResumeTokenUtils.verify("."));
+	}
+	
+	@Test
+	public void testResumesOnlyWithGroupEpoch() {
+		ConnectionGroup group = new ConnectionGroup(null, "group", null, new ArrayList<>());
+		int connectionID = group.nextConnectionID();
+		ResumeTokenUtils.ResumeToken token = ResumeTokenUtils.verify(ResumeTokenUtils.issue(group.getGroupID(), group.getEpoch(), connectionID));
+		assertNotNull(token);
+		
+		//A new instance of the group doesn't hand out the old instance's connection IDs
+		ConnectionGroup newGroup = new ConnectionGroup(null, "group", null, new ArrayList<>());
+		newGroup.holdClient(connectionID, executor, connectionWindow);
+		assertNotEquals(group.getEpoch(), newGroup.getEpoch());
+		assertFalse(newGroup.resumeClient(token.getGroupEpoch(), token.getConnectionID()));
+		
+		//The group that issued the token gives the connection ID back once
+		group.holdClient(connectionID, executor, connectionWindow);
+		assertTrue(group.resumeClient(token.getGroupEpoch(), token.getConnectionID()));
+		assertFalse(group.resumeClient(token.getGroupEpoch(), token.getConnectionID()));
+	}
+	
+	private static byte[] decode(String value) {
+		return Base64.getUrlDecoder().decode(value);
+	}
+	
+	private static String encode(byte[] value) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(value);
+	}
+	
+	private static byte[] sign(byte[] payload) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+			return mac.doFinal(payload);
+		} catch(GeneralSecurityException exception) {
+			throw new IllegalStateException(exception);
+		}
+	}
+}
\ No newline at end of file
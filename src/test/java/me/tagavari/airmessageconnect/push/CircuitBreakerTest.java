@@ -0,0 +1,91 @@
+package me.tagavari.airmessageconnect.push;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+	//How long the breaker stays open in these tests, in milliseconds
+	private static final long openDuration = 100;
+	
+	//The time of the breaker's clock, in milliseconds
+	private final AtomicLong time = new AtomicLong();
+	
+	private CircuitBreaker createBreaker() {
+		return new CircuitBreaker(0.5, 10, 60 * 1000, openDuration, time::get);
+	}
+	
+	@Test
+	public void testOpensAndRecovers() {
+		CircuitBreaker breaker = createBreaker();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		
+		//Failing enough messages to open the breaker
+		long permit = breaker.allowRequest();
+		assertNotEquals(CircuitBreaker.permitDenied, permit);
+		breaker.recordResult(permit, 2, 8);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertTrue(breaker.isOpen());
+		assertEquals(CircuitBreaker.permitDenied, breaker.allowRequest());
+		
+		//Staying open until the open duration passes
+		time.addAndGet(openDuration - 1);
+		assertTrue(breaker.isOpen());
+		assertEquals(CircuitBreaker.permitDenied, breaker.allowRequest());
+		
+		//Letting a single trial through once the open duration passes
+		time.addAndGet(1);
+		assertFalse(breaker.isOpen());
+		long trialPermit = breaker.allowRequest();
+		assertNotEquals(CircuitBreaker.permitDenied, trialPermit);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		assertEquals(CircuitBreaker.permitDenied, breaker.allowRequest());
+		
+		//Closing after the trial succeeds
+		breaker.recordResult(trialPermit, 10, 0);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertNotEquals(CircuitBreaker.permitDenied, breaker.allowRequest());
+	}
+	
+	@Test
+	public void testReopensAfterFailedTrial() {
+		CircuitBreaker breaker = createBreaker();
+		breaker.recordResult(breaker.allowRequest(), 0, 10);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		
+		time.addAndGet(openDuration);
+		long trialPermit = breaker.allowRequest();
+		breaker.recordResult(trialPermit, 1, 9);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertEquals(CircuitBreaker.permitDenied, breaker.allowRequest());
+	}
+	
+	@Test
+	public void testIgnoresBatchesFromBeforeOpening() {
+		CircuitBreaker breaker = createBreaker();
+		
+		//Sending two batches, the first of which opens the breaker
+		long firstPermit = breaker.allowRequest();
+		long secondPermit = breaker.allowRequest();
+		breaker.recordResult(firstPermit, 0, 10);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		
+		//The second batch finishes while the trial is running, and shouldn't be taken as the trial's result
+		time.addAndGet(openDuration);
+		long trialPermit = breaker.allowRequest();
+		breaker.recordResult(secondPermit, 10, 0);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		
+		breaker.recordResult(trialPermit, 0, 10);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+	
+	@Test
+	public void testStaysClosedBelowMinimum() {
+		CircuitBreaker breaker = createBreaker();
+		breaker.recordResult(breaker.allowRequest(), 0, 9);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+}
\ No newline at end of file
@@ -0,0 +1,129 @@
+package me.tagavari.airmessageconnect.push;
+
+import me.tagavari.airmessageconnect.metrics.RelayMetrics;
+import me.tagavari.airmessageconnect.structure.ConnectionGroup;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+public class PushDispatcherTest {
+	//The time of the dispatcher's and the breaker's clock, in milliseconds
+	private final AtomicLong time = new AtomicLong();
+	
+	private final List<PushDispatcher> dispatcherList = new ArrayList<>();
+	
+	@After
+	public void tearDown() {
+		for(PushDispatcher dispatcher : dispatcherList) dispatcher.close();
+	}
+	
+	private PushDispatcher createDispatcher(FakePushSender sender, int retryLimit, CircuitBreaker breaker) {
+		PushDispatcher dispatcher = new PushDispatcher(sender, 100, 1, retryLimit, breaker, time::get);
+		dispatcherList.add(dispatcher);
+		return dispatcher;
+	}
+	
+	private CircuitBreaker createBreaker(double failureThreshold, int minimumRequests) {
+		return new CircuitBreaker(failureThreshold, minimumRequests, 60 * 1000, 60 * 1000, time::get);
+	}
+	
+	private static ConnectionGroup createGroup(int tokenCount) {
+		List<String> tokenList = new ArrayList<>(tokenCount);
+		for(int i = 0; i < tokenCount; i++) tokenList.add("token-" + i);
+		return new ConnectionGroup(null, "group", null, tokenList);
+	}
+	
+	/**
+	 * Waits for the dispatcher's threads to make a condition true
+	 */
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10 * 1000;
+		while(!condition.getAsBoolean()) {
+			if(System.currentTimeMillis() > deadline) fail("Timed out waiting for the dispatcher");
+			Thread.sleep(5);
+		}
+	}
+	
+	@Test
+	public void testDeliversOnce() throws InterruptedException {
+		FakePushSender sender = new FakePushSender(0, 0, 0, 0, 0);
+		PushDispatcher dispatcher = createDispatcher(sender, 4, createBreaker(0.5, 10));
+		long sentCount = RelayMetrics.pushMessagesSent.get();
+		long retriedCount = RelayMetrics.pushMessagesRetried.get();
+		
+		dispatcher.submit(createGroup(3), Collections.singletonMap("payload", "a"), System.nanoTime());
+		await(() -> RelayMetrics.pushMessagesSent.get() - sentCount == 3);
+		
+		//Successful messages shouldn't be retried
+		assertEquals(3, sender.getMessageCount());
+		assertEquals(0, RelayMetrics.pushMessagesRetried.get() - retriedCount);
+		assertEquals(0, dispatcher.getPendingRetryCount());
+	}
+	
+	@Test
+	public void testRetriesWithBackoff() throws InterruptedException {
+		//Failing every message, with a breaker that never opens
+		FakePushSender sender = new FakePushSender(0, 0, 0, 1, 0);
+		PushDispatcher dispatcher = createDispatcher(sender, 2, createBreaker(1, Integer.MAX_VALUE));
+		long failedCount = RelayMetrics.pushMessagesFailed.get();
+		
+		//Sending the message once, then holding it for a backoff of up to 0.5 seconds
+		dispatcher.submit(createGroup(1), Collections.singletonMap("payload", "a"), System.nanoTime());
+		await(() -> dispatcher.getPendingRetryCount() == 1);
+		assertEquals(1, sender.getMessageCount());
+		
+		//Retrying once the backoff passes, then holding it for a backoff of up to 1 second
+		time.addAndGet(500);
+		await(() -> sender.getMessageCount() == 2 && dispatcher.getPendingRetryCount() == 1);
+		
+		//Giving up after the retry limit
+		time.addAndGet(1000);
+		await(() -> RelayMetrics.pushMessagesFailed.get() - failedCount == 1);
+		assertEquals(3, sender.getMessageCount());
+		assertEquals(0, dispatcher.getPendingRetryCount());
+		assertEquals(0, dispatcher.getQueueDepth());
+	}
+	
+	@Test
+	public void testShedsWhileOpen() throws InterruptedException {
+		FakePushSender sender = new FakePushSender(0, 0, 0, 1, 0);
+		CircuitBreaker breaker = createBreaker(0.5, 10);
+		PushDispatcher dispatcher = createDispatcher(sender, 0, breaker);
+		
+		//Opening the breaker with a batch that fails completely
+		dispatcher.submit(createGroup(10), Collections.singletonMap("payload", "a"), System.nanoTime());
+		await(breaker::isOpen);
+		assertEquals(10, sender.getMessageCount());
+		
+		//Shedding new messages instead of sending them
+		long shedCount = RelayMetrics.pushMessagesShed.get();
+		dispatcher.submit(createGroup(10), Collections.singletonMap("payload", "b"), System.nanoTime());
+		assertEquals(10, RelayMetrics.pushMessagesShed.get() - shedCount);
+		assertEquals(0, dispatcher.getQueueDepth());
+		assertEquals(10, sender.getMessageCount());
+	}
+	
+	@Test
+	public void testRemovesUnregisteredTokensFromActiveGroup() throws InterruptedException {
+		//Rejecting every token as unregistered
+		FakePushSender sender = new FakePushSender(0, 0, 1, 0, 0);
+		PushDispatcher dispatcher = createDispatcher(sender, 0, createBreaker(0.5, 10));
+		
+		//Replacing the group after the notification is submitted, as a reconnecting server would
+		ConnectionGroup group = createGroup(2);
+		ConnectionGroup replacementGroup = createGroup(2);
+		dispatcher.setGroupLookup(groupID -> replacementGroup);
+		dispatcher.submit(group, Collections.singletonMap("payload", "a"), System.nanoTime());
+		
+		await(() -> replacementGroup.getClientFCMTokenList().isEmpty());
+		assertEquals(2, sender.getMessageCount());
+		assertTrue(replacementGroup.isClientFCMTokenListModified());
+	}
+}
\ No newline at end of file
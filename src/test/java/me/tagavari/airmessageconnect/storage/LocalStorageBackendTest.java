@@ -0,0 +1,195 @@
+package me.tagavari.airmessageconnect.storage;
+
+import me.tagavari.airmessageconnect.document.DocumentUser;
+import me.tagavari.airmessageconnect.structure.ConnectionGroup;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public class LocalStorageBackendTest {
+	//The length of a record's length and checksum
+	private static final int recordHeaderLength = Integer.BYTES * 2;
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private File createFile() {
+		return new File(folder.getRoot(), "storage.log");
+	}
+	
+	@Test
+	public void testReloadsRecords() throws IOException, ExecutionException {
+		File file = createFile();
+		LocalStorageBackend backend = new LocalStorageBackend(file);
+		backend.updateRegisteredServerRelayInstallationID("user", "relay", "installation");
+		backend.updateFCMTokens("user", Arrays.asList("token-1", "token-2"));
+		
+		LocalStorageBackend reopenedBackend = new LocalStorageBackend(file);
+		DocumentUser document = reopenedBackend.getDocumentUser("user");
+		assertEquals("relay", document.relayID);
+		assertEquals("installation", document.installationID);
+		assertEquals(Arrays.asList("token-1", "token-2"), reopenedBackend.getFCMTokens("user"));
+		assertNull(reopenedBackend.getDocumentUser("other"));
+	}
+	
+	@Test
+	public void testDropsCutOffRecord() throws IOException, ExecutionException {
+		File file = createFile();
+		LocalStorageBackend backend = new LocalStorageBackend(file);
+		backend.updateFCMTokens("user-1", Collections.singletonList("token-1"));
+		long validLength = file.length();
+		backend.updateFCMTokens("user-2", Collections.singletonList("token-2"));
+		
+		//Cutting the second record off partway through its payload
+		setLength(file, validLength + recordHeaderLength + 3);
+		
+		LocalStorageBackend reopenedBackend = new LocalStorageBackend(file);
+		assertEquals(Collections.singletonList("token-1"), reopenedBackend.getFCMTokens("user-1"));
+		assertNull(reopenedBackend.getFCMTokens("user-2"));
+		assertEquals(validLength, file.length());
+		
+		//Appending after the discarded bytes
+		reopenedBackend.updateFCMTokens("user-3", Collections.singletonList("token-3"));
+		assertEquals(Collections.singletonList("token-3"), new LocalStorageBackend(file).getFCMTokens("user-3"));
+	}
+	
+	@Test
+	public void testDropsRecordsFromBadChecksum() throws IOException, ExecutionException {
+		File file = createFile();
+		LocalStorageBackend backend = new LocalStorageBackend(file);
+		backend.updateFCMTokens("user-1", Collections.singletonList("token-1"));
+		long validLength = file.length();
+		backend.updateFCMTokens("user-2", Collections.singletonList("token-2"));
+		backend.updateFCMTokens("user-3", Collections.singletonList("token-3"));
+		
+		//Flipping a byte of the second record's checksum, which hides every record after it
+		flipByte(file, validLength + Integer.BYTES);
+		
+		LocalStorageBackend reopenedBackend = new LocalStorageBackend(file);
+		assertEquals(Collections.singletonList("token-1"), reopenedBackend.getFCMTokens("user-1"));
+		assertNull(reopenedBackend.getFCMTokens("user-2"));
+		assertNull(reopenedBackend.getFCMTokens("user-3"));
+		assertEquals(validLength, file.length());
+	}
+	
+	@Test
+	public void testDropsRecordWithCorruptedPayload() throws IOException, ExecutionException {
+		File file = createFile();
+		LocalStorageBackend backend = new LocalStorageBackend(file);
+		backend.updateRegisteredServerRelayInstallationID("user", "relay-1", "installation");
+		long validLength = file.length();
+		backend.updateRegisteredServerRelayID("user", "relay-2");
+		
+		//Flipping the last byte of the second record's payload
+		flipByte(file, file.length() - 1);
+		
+		LocalStorageBackend reopenedBackend = new LocalStorageBackend(file);
+		assertEquals("relay-1", reopenedBackend.getDocumentUser("user").relayID);
+		assertEquals(validLength, file.length());
+	}
+	
+	@Test
+	public void testFailedWriteChangesNothing() throws IOException, ExecutionException {
+		File file = createFile();
+		LocalStorageBackend backend = new LocalStorageBackend(file);
+		backend.updateFCMTokens("user", Collections.singletonList("token-1"));
+		long length = file.length();
+		
+		//Writing a token that's too long to be encoded
+		char[] characters = new char[70000];
+		Arrays.fill(characters, 'a');
+		try {
+			backend.updateFCMTokens("user", Collections.singletonList(new String(characters)));
+			fail("Expected the update to fail");
+		} catch(ExecutionException exception) {
+			//Expected
+		}
+		
+		assertEquals(Collections.singletonList("token-1"), backend.getFCMTokens("user"));
+		assertEquals(length, file.length());
+	}
+	
+	@Test
+	public void testStoresLongestAcceptedToken() throws IOException, ExecutionException {
+		//Using characters that take up the most space once encoded for storage
+		StringBuilder builder = new StringBuilder();
+		while(builder.toString().getBytes(StandardCharsets.UTF_8).length < ConnectionGroup.fcmTokenLengthLimit) builder.appendCodePoint(0x1F600);
+		String token = builder.toString();
+		assertEquals(ConnectionGroup.fcmTokenLengthLimit, token.getBytes(StandardCharsets.UTF_8).length);
+		
+		File file = createFile();
+		new LocalStorageBackend(file).updateFCMTokens("user", Collections.singletonList(token));
+		assertEquals(Collections.singletonList(token), new LocalStorageBackend(file).getFCMTokens("user"));
+	}
+	
+	@Test
+	public void testCompactsStaleRecords() throws IOException, ExecutionException {
+		File file = createFile();
+		LocalStorageBackend backend = new LocalStorageBackend(file);
+		for(int i = 0; i < 10; i++) {
+			backend.updateRegisteredServerRelayInstallationID("user", "relay-" + i, "installation");
+			backend.updateFCMTokens("user", Collections.singletonList("token-" + i));
+		}
+		long staleLength = file.length();
+		
+		//Writing the same live data to a fresh log, to compare against
+		File freshFile = new File(folder.getRoot(), "fresh.log");
+		LocalStorageBackend freshBackend = new LocalStorageBackend(freshFile);
+		freshBackend.updateRegisteredServerRelayInstallationID("user", "relay-9", "installation");
+		freshBackend.updateFCMTokens("user", Collections.singletonList("token-9"));
+		
+		//Compacting the log when it's reopened
+		LocalStorageBackend reopenedBackend = new LocalStorageBackend(file);
+		assertEquals(freshFile.length(), file.length());
+		assertTrue(file.length() < staleLength);
+		assertFalse(new File(file.getPath() + ".compact").exists());
+		assertEquals("relay-9", reopenedBackend.getDocumentUser("user").relayID);
+		assertEquals(Collections.singletonList("token-9"), reopenedBackend.getFCMTokens("user"));
+		
+		//Appending to the compacted log
+		reopenedBackend.updateRegisteredServerRelayID("user", "relay-10");
+		assertEquals("relay-10", new LocalStorageBackend(file).getDocumentUser("user").relayID);
+	}
+	
+	@Test
+	public void testRejectsOtherFiles() throws IOException {
+		File file = createFile();
+		byte[] data = "Not a storage file\n".getBytes(StandardCharsets.UTF_8);
+		Files.write(file.toPath(), data);
+		
+		try {
+			new LocalStorageBackend(file);
+			fail("Expected the file to be rejected");
+		} catch(IOException exception) {
+			//Expected
+		}
+		assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+	}
+	
+	private static void setLength(File file, long length) throws IOException {
+		try(RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+			randomAccessFile.setLength(length);
+		}
+	}
+	
+	private static void flipByte(File file, long position) throws IOException {
+		try(RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+			randomAccessFile.seek(position);
+			int value = randomAccessFile.read();
+			randomAccessFile.seek(position);
+			randomAccessFile.write(value ^ 0xFF);
+		}
+	}
+}
\ No newline at end of file